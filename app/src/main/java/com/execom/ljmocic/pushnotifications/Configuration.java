@@ -25,6 +25,10 @@ public class Configuration {
       Regions.fromName("us-east-1");
     public static final String AMAZON_COGNITO_IDENTITY_POOL_ID =
         "-";
+    // HOW LONG BEFORE EXPIRATION THE COGNITO CREDENTIALS ARE REFRESHED; MUST STAY ABOVE THE
+    // SDK PROVIDER'S OWN REFRESH THRESHOLD (500 SECONDS), OR REQUESTS REFRESH THEM FIRST
+    public static final long AMAZON_COGNITO_CREDENTIALS_REFRESH_MARGIN_MILLIS =
+        10 * 60 * 1000L;
     // GOOGLE CLOUD MESSAGING API KEY
     public static final String GOOGLE_CLOUD_MESSAGING_API_KEY =
         "-";
@@ -43,6 +47,40 @@ public class Configuration {
     // SNS PLATFORM TOPIC ARNS
     public static final String[] AMAZON_SNS_TOPIC_ARNS =
         {};
+    // SNS PUBLISHES IN PARALLEL ACROSS ALL FAN-OUTS, ONE OF WHICH IS KEPT FOR INTERACTIVE SENDS
+    public static final int AMAZON_SNS_PUBLISH_CONCURRENCY =
+        4;
+    // SNS PUBLISHES PER SECOND TO START WITH, ADAPTED TO THROTTLING WHILE SENDING
+    public static final double AMAZON_SNS_PUBLISH_INITIAL_RATE =
+        10;
+    // SNS PUBLISHES PER SECOND NEVER EXCEEDED, BELOW THE ACCOUNT'S PUBLISH LIMIT
+    public static final double AMAZON_SNS_PUBLISH_MAX_RATE =
+        300;
+    // HOW LONG THE CACHED SNS ENDPOINT ATTRIBUTES ARE TRUSTED BEFORE REVALIDATING
+    public static final long AMAZON_SNS_ENDPOINT_REVALIDATION_TTL_MILLIS =
+        24 * 60 * 60 * 1000L;
+    // HOW OLD THE LOCAL ENDPOINT DIRECTORY MAY GET BEFORE IT IS SYNCED WITH SNS AGAIN
+    public static final long AMAZON_SNS_ENDPOINT_DIRECTORY_SYNC_INTERVAL_MILLIS =
+        60 * 60 * 1000L;
+    // WHETHER ENDPOINTS QUARANTINED AFTER SNS REPORTED THEM DISABLED OR INVALID ARE DELETED FROM SNS
+    public static final boolean AMAZON_SNS_DELETE_QUARANTINED_ENDPOINTS =
+        false;
+    // HOW OFTEN QUARANTINED ENDPOINTS ARE DELETED, AND HOW MANY AT MOST EACH TIME
+    public static final long AMAZON_SNS_QUARANTINE_DELETE_INTERVAL_MILLIS =
+        15 * 60 * 1000L;
+    public static final int AMAZON_SNS_QUARANTINE_DELETE_BATCH_SIZE =
+        50;
+    // RESOLUTION OF THE DUE TIMES OF SCHEDULED SENDS, AND HOW MANY DUE SENDS ARE PUBLISHED AT ONCE
+    public static final long AMAZON_SNS_SCHEDULE_TICK_MILLIS =
+        1000L;
+    public static final int AMAZON_SNS_SCHEDULE_BATCH_SIZE =
+        20;
+    // HOW LONG A GCM TOKEN OBSERVER MAY TAKE BEFORE IT IS COUNTED AS SLOW IN THE PUSH METRICS
+    public static final long GCM_TOKEN_OBSERVER_SLOW_THRESHOLD_MILLIS =
+        100L;
+    // HOW OFTEN THE PUSH METRICS ARE WRITTEN TO push-metrics.txt IN THE APP'S FILES DIRECTORY
+    public static final long PUSH_METRICS_DUMP_INTERVAL_MILLIS =
+        60 * 1000L;
 
     // Mockup endpoints
     public static String endpointARN_1 = "-";
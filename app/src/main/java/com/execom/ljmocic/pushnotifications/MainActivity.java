@@ -2,7 +2,6 @@ package com.execom.ljmocic.pushnotifications;
 
 
 import android.app.ProgressDialog;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -12,10 +11,20 @@ import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Toast;
 
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.services.sns.model.PublishRequest;
 import com.execom.ljmocic.pushnotifications.aws.AWSMobileClient;
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
+import com.execom.ljmocic.pushnotifications.aws.push.DispatchResult;
+import com.execom.ljmocic.pushnotifications.aws.push.PushDispatcher;
 import com.execom.ljmocic.pushnotifications.aws.push.PushManager;
+import com.execom.ljmocic.pushnotifications.aws.push.PushPayload;
+import com.execom.ljmocic.pushnotifications.aws.push.PushTrace;
+import com.execom.ljmocic.pushnotifications.aws.retry.ErrorClassifier;
+import com.execom.ljmocic.pushnotifications.services.NotificationCoalescer;
+import com.execom.ljmocic.pushnotifications.utils.ThreadUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 public class MainActivity extends AppCompatActivity implements View.OnClickListener{
 
@@ -30,25 +39,47 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     Button sendNotification;
     CheckBox firstReceiver;
     CheckBox secondReceiver;
+    CheckBox allReceivers;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        //init pushManager
-        pushManager = AWSMobileClient.defaultMobileClient().getPushManager();
-
         // Init UI elements
         notificationSubject = (EditText) findViewById(R.id.notification_subject);
         notificationMessage = (EditText) findViewById(R.id.notification_message);
         sendNotification = (Button) findViewById(R.id.send_notification);
         firstReceiver = (CheckBox) findViewById(R.id.checkbox_first_receiver);
         secondReceiver = (CheckBox) findViewById(R.id.checkbox_second_receiver);
+        allReceivers = (CheckBox) findViewById(R.id.checkbox_all_receivers);
 
         //setListeners
         sendNotification.setOnClickListener(this);
 
+        //init pushManager, sending is possible once the AWS components finished initializing
+        sendNotification.setEnabled(false);
+        AWSMobileClient.defaultMobileClient().getPushManager(new AWSMobileClient.PushManagerCallback() {
+            @Override
+            public void onPushManagerReady(final PushManager readyPushManager) {
+                pushManager = readyPushManager;
+                sendNotification.setEnabled(true);
+                pushManager.syncEndpointDirectoryIfStale(Configuration.AMAZON_SNS_ENDPOINT_DIRECTORY_SYNC_INTERVAL_MILLIS);
+            }
+
+            @Override
+            public void onPushManagerFailed(final Exception exception) {
+                notifyToast(exception.getMessage());
+            }
+        });
+
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // The user has seen the app, start counting received messages from zero again
+        NotificationCoalescer.getInstance(this).clear();
     }
 
     @Override
@@ -60,45 +91,146 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
                 if(notificationSubject.getText().toString().isEmpty() || notificationMessage.getText().toString().isEmpty()){
                     notifyToast(getString(R.string.please_wait));
                 }
+                else if(allReceivers.isChecked()){
+                    sendNotificationToAll(notificationSubject.getText().toString(), notificationMessage.getText().toString());
+                }
                 else{
+                    final List<String> targetArns = new ArrayList<>();
                     if(firstReceiver.isChecked()){
-                        sendNotification(notificationSubject.getText().toString(), notificationMessage.getText().toString(), Configuration.endpointARN_1);
+                        targetArns.add(Configuration.endpointARN_1);
                     }
                     if(secondReceiver.isChecked()){
-                        sendNotification(notificationSubject.getText().toString(), notificationMessage.getText().toString(), Configuration.endpointARN_2);
+                        targetArns.add(Configuration.endpointARN_2);
+                    }
+                    if(!targetArns.isEmpty()){
+                        sendNotification(notificationSubject.getText().toString(), notificationMessage.getText().toString(), targetArns);
                     }
                 }
         }
     }
 
-    public void sendNotification(final String subject, final String message, final String ARN){
+    public void sendNotification(final String subject, final String message, final List<String> targetArns){
 
         final ProgressDialog dialog = showWaitingDialog(R.string.please_wait);
 
-        new AsyncTask<Void, Void, String>() {
+        // Publishes to all recipients in parallel, the dialog is dismissed once the whole fan-out is done.
+        // Recipients that could not be reached are retried in the background.
+        // Large messages are compressed, and split into chunks if still too large for GCM.
+        final PushDispatcher.Callback callback = new PushDispatcher.Callback() {
+            @Override
+            public void onDispatchComplete(final DispatchResult result) {
+                Log.d(LOG_TAG, String.format("Sent to %d of %d recipients in %d ms",
+                        result.getSuccessCount(), result.getOutcomes().size() + result.getSkippedTargetArns().size(),
+                        result.getWallTimeMillis()));
+                for (DispatchResult.Outcome failure : result.getFailures()) {
+                    if (ErrorClassifier.isThrottling(failure.getError())) {
+                        // The publish rate was cut and the queue sends it again later.
+                        Log.w(LOG_TAG, "Throttled sending to " + failure.getTargetArn() + ", will retry");
+                    } else {
+                        Log.e(LOG_TAG, "Failed sending to " + failure.getTargetArn(), failure.getError());
+                    }
+                }
+                for (String skipped : result.getSkippedTargetArns()) {
+                    Log.w(LOG_TAG, "Skipped quarantined recipient " + skipped);
+                }
+                // Quarantined recipients didn't get the message either.
+                final int failureCount = result.getFailureCount() + result.getSkippedTargetArns().size();
+
+                ThreadUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dialog.dismiss();
+                        if (failureCount > 0) {
+                            notifyToast(getString(R.string.send_failed, failureCount));
+                        }
+                    }
+                });
+            }
+        };
+        final PushPayload.Builder payload = buildPayload(subject, message);
+        final PushManager manager = pushManager;
+        sendInBackground(dialog, new Runnable() {
             @Override
-            protected String doInBackground(final Void... params) {
+            public void run() {
+                // The user waits for this send, it overtakes fan-outs to the directory and retries.
+                manager.send(payload, subject, targetArns, PushDispatcher.Lane.INTERACTIVE, callback);
+            }
+        });
 
-                PublishRequest publishRequest = new PublishRequest()
-                        .withTargetArn(ARN)
-                        .withSubject(subject)
-                        .withMessage(message);
+    }
 
-                try {
+    public void sendNotificationToAll(final String subject, final String message){
 
-                    pushManager.getSns().publish(publishRequest);
+        final ProgressDialog dialog = showWaitingDialog(R.string.please_wait);
+
+        // Recipients are read from the endpoint directory in batches, the dialog is dismissed after the last one.
+        final PushManager.DirectorySendListener listener = new PushManager.DirectorySendListener() {
+            @Override
+            public void onBatchComplete(final DispatchResult result) {
+                Log.d(LOG_TAG, String.format("Sent batch to %d of %d recipients in %d ms",
+                        result.getSuccessCount(), result.getOutcomes().size(), result.getWallTimeMillis()));
+            }
 
-                    return null;
-                } catch (final AmazonClientException ace) {
-                    return null;
+            @Override
+            public void onSendComplete(final int successCount, final int failureCount, final Exception error) {
+                if (error != null) {
+                    Log.e(LOG_TAG, "Failed reading the endpoint directory", error);
                 }
+                Log.d(LOG_TAG, String.format("Sent to %d registered devices, %d failed", successCount, failureCount));
+
+                ThreadUtils.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dialog.dismiss();
+                        if (failureCount > 0) {
+                            notifyToast(getString(R.string.send_failed, failureCount));
+                        }
+                    }
+                });
+            }
+        };
+        final PushPayload.Builder payload = buildPayload(subject, message);
+        final PushManager manager = pushManager;
+        sendInBackground(dialog, new Runnable() {
+            @Override
+            public void run() {
+                manager.sendToDirectory(payload, subject, listener);
             }
+        });
 
+    }
+
+    // Large messages are compressed and chunked when sent, which must not block the UI thread.
+    private void sendInBackground(final ProgressDialog dialog, final Runnable send){
+
+        PushExecutors.shared().network().execute(new Runnable() {
             @Override
-            protected void onPostExecute(final String errorMessage) {
-                dialog.dismiss();
+            public void run() {
+                try {
+                    send.run();
+                } catch (final IllegalArgumentException ex) {
+                    Log.e(LOG_TAG, "Failed sending message", ex);
+                    ThreadUtils.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            dialog.dismiss();
+                            notifyToast(getString(R.string.message_too_large));
+                        }
+                    });
+                }
             }
-        }.execute();
+        });
+
+    }
+
+    // The message ID lets receivers drop redeliveries of this send, the trace measures its delivery latency.
+    private static PushPayload.Builder buildPayload(final String subject, final String message){
+
+        return new PushPayload.Builder()
+                .withMessage(message)
+                .withTitle(subject)
+                .withMessageId(UUID.randomUUID().toString())
+                .withTrace(PushTrace.newTraceId(), PushTrace.currentTimeMillis());
 
     }
 
@@ -110,7 +242,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     private ProgressDialog showWaitingDialog(final int resId, final Object... args) {
 
-        return ProgressDialog.show(this, getString(R.string.please_wait), getString(resId, (Object[]) args));
+        return ProgressDialog.show(this, getString(R.string.please_wait), getString(resId, args));
 
     }
 
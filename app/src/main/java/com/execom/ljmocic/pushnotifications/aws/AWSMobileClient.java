@@ -6,23 +6,61 @@ import android.util.Log;
 
 import com.amazonaws.ClientConfiguration;
 import com.execom.ljmocic.pushnotifications.Configuration;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.push.AdaptiveRateLimiter;
+import com.execom.ljmocic.pushnotifications.aws.push.ConnectionProfile;
 import com.execom.ljmocic.pushnotifications.aws.push.GCMTokenHelper;
+import com.execom.ljmocic.pushnotifications.aws.push.LegacyPushPreferences;
 import com.execom.ljmocic.pushnotifications.aws.push.PushManager;
+import com.execom.ljmocic.pushnotifications.aws.push.PushScheduler;
+import com.execom.ljmocic.pushnotifications.aws.push.PushStateStore;
+import com.execom.ljmocic.pushnotifications.aws.push.SnsClientFactory;
 import com.execom.ljmocic.pushnotifications.aws.user.IdentityManager;
 import com.amazonaws.regions.Regions;
+import com.execom.ljmocic.pushnotifications.utils.ThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 public class AWSMobileClient {
 
+    public interface PushManagerCallback {
+        void onPushManagerReady(PushManager pushManager);
+
+        void onPushManagerFailed(Exception exception);
+    }
+
     private final static String LOG_TAG = AWSMobileClient.class.getSimpleName();
 
-    private static AWSMobileClient instance;
+    // File the push metrics are dumped to, relative to the app's files directory
+    private static final String METRICS_FILE_NAME = "push-metrics.txt";
+    // File of the push state, relative to the app's files directory
+    private static final String PUSH_STATE_FILE_NAME = "push-state";
+
+    private static volatile AWSMobileClient instance;
 
     private final Context context;
 
-    private ClientConfiguration clientConfiguration;
-    private IdentityManager identityManager;
-    private GCMTokenHelper gcmTokenHelper;
-    private PushManager pushManager;
+    private final ClientConfiguration clientConfiguration;
+    private final Collection<ConnectionProfile> connectionProfiles;
+    private final SnsClientFactory snsClientFactory;
+    private volatile IdentityManager identityManager;
+    private volatile GCMTokenHelper gcmTokenHelper;
+    private final FutureTask<PushManager> pushManagerTask;
+    // Set before the push manager task completes
+    private volatile PushScheduler pushScheduler;
+
+    private volatile long callerInitMillis = -1;
+    private volatile long backgroundInitMillis = -1;
 
     public static class Builder {
 
@@ -31,6 +69,8 @@ public class AWSMobileClient {
         private Regions cognitoRegion;
         private ClientConfiguration clientConfiguration;
         private IdentityManager identityManager;
+        private final Map<String, ConnectionProfile> connectionProfiles = new LinkedHashMap<>();
+        private SnsClientFactory snsClientFactory = SnsClientFactory.AWS;
 
 	/**
 	 * Constructor.
@@ -61,7 +101,7 @@ public class AWSMobileClient {
         }
 
         /**
-         * Provides the identity manager.
+         * Provides the identity manager. If none is provided, it is created in the background.
 	 * @param identityManager identity manager
 	 * @return builder
 	 */
@@ -80,17 +120,47 @@ public class AWSMobileClient {
             return this;
         }
 
+        /**
+         * Provides a connection profile for the SNS clients, replacing the default profile of
+         * the same name ({@link ConnectionProfile#INTERACTIVE} or {@link ConnectionProfile#BULK}).
+         * @param connectionProfile connection profile
+         * @return builder
+         */
+        public Builder withConnectionProfile(final ConnectionProfile connectionProfile) {
+            connectionProfiles.put(connectionProfile.getName(), connectionProfile);
+            return this;
+        }
+
+        /**
+         * Provides the factory of the SNS clients, e.g. one returning a
+         * {@link com.execom.ljmocic.pushnotifications.aws.push.FakeAmazonSNS} for load tests.
+         * @param snsClientFactory SNS client factory
+         * @return builder
+         */
+        public Builder withSnsClientFactory(final SnsClientFactory snsClientFactory) {
+            this.snsClientFactory = snsClientFactory;
+            return this;
+        }
+
 	/**
 	 * Creates the AWS mobile client instance and initializes it.
 	 * @return AWS mobile client
 	 */
         public AWSMobileClient build() {
+            if (!connectionProfiles.containsKey(ConnectionProfile.INTERACTIVE_NAME)) {
+                connectionProfiles.put(ConnectionProfile.INTERACTIVE_NAME, ConnectionProfile.INTERACTIVE);
+            }
+            if (!connectionProfiles.containsKey(ConnectionProfile.BULK_NAME)) {
+                connectionProfiles.put(ConnectionProfile.BULK_NAME, ConnectionProfile.BULK);
+            }
             return
                 new AWSMobileClient(applicationContext,
                                     cognitoIdentityPoolID,
                                     cognitoRegion,
                                     identityManager,
-                                    clientConfiguration);
+                                    clientConfiguration,
+                                    connectionProfiles.values(),
+                                    snsClientFactory);
         }
     }
 
@@ -98,24 +168,102 @@ public class AWSMobileClient {
                             final String cognitoIdentityPoolID,
                             final Regions cognitoRegion,
                             final IdentityManager identityManager,
-                            final ClientConfiguration clientConfiguration) {
+                            final ClientConfiguration clientConfiguration,
+                            final Collection<ConnectionProfile> connectionProfiles,
+                            final SnsClientFactory snsClientFactory) {
 
         this.context = context;
         this.identityManager = identityManager;
         this.clientConfiguration = clientConfiguration;
+        this.connectionProfiles = connectionProfiles;
+        this.snsClientFactory = snsClientFactory;
+        // Before any connection is opened, the pool is sized once for the process.
+        ConnectionProfile.configureConnectionReuse(connectionProfiles);
 
+        // Building the AWS components reads shared preferences and talks to Play services,
+        // which must not happen on the main thread during app startup.
+        this.pushManagerTask = new FutureTask<>(new Callable<PushManager>() {
+            @Override
+            public PushManager call() {
+                return initialize();
+            }
+        });
+        PushExecutors.shared().network().execute(pushManagerTask);
+    }
 
-        this.gcmTokenHelper = new GCMTokenHelper(context, Configuration.GOOGLE_CLOUD_MESSAGING_SENDER_ID);
-        this.pushManager =
+    private PushManager initialize() {
+        final long startNanos = System.nanoTime();
+        PushMetrics.shared().startPeriodicDump(new File(context.getFilesDir(), METRICS_FILE_NAME),
+            PushExecutors.shared().disk(), Configuration.PUSH_METRICS_DUMP_INTERVAL_MILLIS);
+        if (identityManager == null) {
+            identityManager = new IdentityManager(context, clientConfiguration);
+        }
+        final long identityNanos = System.nanoTime();
+
+        // The push state is read once here and shared by the token helper and the push manager.
+        final PushStateStore stateStore = loadPushState();
+        gcmTokenHelper = new GCMTokenHelper(context, Configuration.GOOGLE_CLOUD_MESSAGING_SENDER_ID, stateStore,
+            PushExecutors.shared().observers(), Configuration.GCM_TOKEN_OBSERVER_SLOW_THRESHOLD_MILLIS);
+        final long gcmNanos = System.nanoTime();
+
+        final PushManager pushManager =
             new PushManager(context,
                             gcmTokenHelper,
+                            stateStore,
                             identityManager.getCredentialsProvider(),
                             Configuration.AMAZON_SNS_PLATFORM_APPLICATION_ARN,
                             clientConfiguration,
+                            connectionProfiles,
+                            snsClientFactory,
                             Configuration.AMAZON_SNS_DEFAULT_TOPIC_ARN,
                             Configuration.AMAZON_SNS_TOPIC_ARNS,
-                            Configuration.AMAZON_SNS_REGION);
+                            Configuration.AMAZON_SNS_REGION,
+                            Configuration.AMAZON_SNS_PUBLISH_CONCURRENCY,
+                            new AdaptiveRateLimiter(Configuration.AMAZON_SNS_PUBLISH_INITIAL_RATE,
+                                AdaptiveRateLimiter.DEFAULT_MIN_RATE,
+                                Configuration.AMAZON_SNS_PUBLISH_MAX_RATE),
+                            Configuration.AMAZON_SNS_ENDPOINT_REVALIDATION_TTL_MILLIS);
         gcmTokenHelper.init();
+        pushScheduler = new PushScheduler(context, pushManager,
+            Configuration.AMAZON_SNS_SCHEDULE_TICK_MILLIS, Configuration.AMAZON_SNS_SCHEDULE_BATCH_SIZE);
+        pushScheduler.start();
+        if (Configuration.AMAZON_SNS_DELETE_QUARANTINED_ENDPOINTS) {
+            PushExecutors.shared().timer().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    pushManager.deleteQuarantinedEndpoints(Configuration.AMAZON_SNS_QUARANTINE_DELETE_BATCH_SIZE);
+                }
+            }, Configuration.AMAZON_SNS_QUARANTINE_DELETE_INTERVAL_MILLIS,
+                Configuration.AMAZON_SNS_QUARANTINE_DELETE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        final long endNanos = System.nanoTime();
+
+        backgroundInitMillis = TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+        Log.d(LOG_TAG, String.format(Locale.US,
+            "Background initialization took %d ms (identity %d ms, GCM %d ms, push %d ms)",
+            backgroundInitMillis,
+            TimeUnit.NANOSECONDS.toMillis(identityNanos - startNanos),
+            TimeUnit.NANOSECONDS.toMillis(gcmNanos - identityNanos),
+            TimeUnit.NANOSECONDS.toMillis(endNanos - gcmNanos)));
+        return pushManager;
+    }
+
+    private PushStateStore loadPushState() {
+        final PushStateStore stateStore = new PushStateStore(new File(context.getFilesDir(), PUSH_STATE_FILE_NAME),
+            PushExecutors.shared().disk());
+        try {
+            if (stateStore.load()) {
+                return stateStore;
+            }
+            Log.d(LOG_TAG, "No push state file, migrating shared preferences.");
+            if (!LegacyPushPreferences.migrate(context, stateStore)) {
+                Log.w(LOG_TAG, "Failed writing migrated push state, migrating again on next start.");
+            }
+        } catch (final IOException ex) {
+            // Starts over with an empty state, the device registers again.
+            Log.e(LOG_TAG, "Unreadable push state : " + ex, ex);
+        }
+        return stateStore;
     }
 
     public static void setDefaultMobileClient(AWSMobileClient client) {
@@ -126,25 +274,101 @@ public class AWSMobileClient {
         return instance;
     }
 
+    /**
+     * Returns the push manager, waiting for the background initialization if it is still
+     * running. Prefer {@link #getPushManagerAsync()} on the main thread.
+     * @return push manager
+     */
     public PushManager getPushManager() {
-        return this.pushManager;
+        if (!pushManagerTask.isDone()) {
+            Log.w(LOG_TAG, "Waiting for the AWS Mobile Client to finish initializing.");
+        }
+        try {
+            return pushManagerTask.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while initializing the AWS Mobile Client.", ex);
+        } catch (final ExecutionException ex) {
+            throw new IllegalStateException("AWS Mobile Client initialization failed.", ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the scheduler of deferred sends, waiting for the background initialization like
+     * {@link #getPushManager()}.
+     * @return push scheduler
+     */
+    public PushScheduler getPushScheduler() {
+        getPushManager();
+        return pushScheduler;
+    }
+
+    /** @return future of the push manager, which completes once background initialization is done */
+    public Future<PushManager> getPushManagerAsync() {
+        return pushManagerTask;
+    }
+
+    /**
+     * Notifies the callback on the main thread once the push manager is ready.
+     * @param callback callback
+     */
+    public void getPushManager(final PushManagerCallback callback) {
+        PushExecutors.shared().callbacks().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final PushManager pushManager = pushManagerTask.get();
+                    ThreadUtils.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onPushManagerReady(pushManager);
+                        }
+                    });
+                } catch (final InterruptedException | ExecutionException ex) {
+                    final Exception cause = ex instanceof ExecutionException && ex.getCause() instanceof Exception
+                        ? (Exception) ex.getCause() : ex;
+                    Log.e(LOG_TAG, "AWS Mobile Client initialization failed.", cause);
+                    ThreadUtils.runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onPushManagerFailed(cause);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** @return time the caller of {@link #initializeMobileClientIfNecessary(Context)} was blocked */
+    public long getCallerInitMillis() {
+        return callerInitMillis;
+    }
+
+    /** @return time the background initialization took, or -1 if it is still running */
+    public long getBackgroundInitMillis() {
+        return backgroundInitMillis;
     }
 
-    public static void initializeMobileClientIfNecessary(final Context context) {
+    /**
+     * Starts initializing the AWS components in the background and returns right away.
+     * @param context Android context
+     */
+    public static synchronized void initializeMobileClientIfNecessary(final Context context) {
+        final long startNanos = System.nanoTime();
         if (AWSMobileClient.defaultMobileClient() == null) {
             Log.d(LOG_TAG, "Initializing AWS Mobile Client...");
             final ClientConfiguration clientConfiguration = new ClientConfiguration();
             clientConfiguration.setUserAgent(Configuration.AWS_MOBILEHUB_USER_AGENT);
-            final IdentityManager identityManager = new IdentityManager(context, clientConfiguration);
             final AWSMobileClient awsClient =
                 new AWSMobileClient.Builder(context)
                     .withCognitoRegion(Configuration.AMAZON_COGNITO_REGION)
                     .withCognitoIdentityPoolID(Configuration.AMAZON_COGNITO_IDENTITY_POOL_ID)
-                    .withIdentityManager(identityManager)
                     .withClientConfiguration(clientConfiguration)
                     .build();
 
+            awsClient.callerInitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
             AWSMobileClient.setDefaultMobileClient(awsClient);
+            Log.d(LOG_TAG, "AWS Mobile Client initialization started in " + awsClient.callerInitMillis + " ms");
         }
         Log.d(LOG_TAG, "AWS Mobile Client is OK");
     }
@@ -0,0 +1,163 @@
+package com.execom.ljmocic.pushnotifications.aws;
+
+import android.os.Process;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * App-wide, bounded thread pools for all background work of the AWS components, so the number
+ * of threads stays predictable no matter how much work is queued.
+ */
+public class PushExecutors {
+
+    public enum Pool {
+        /** Blocking calls to SNS, Cognito and GCM. */
+        NETWORK,
+        /** Journal and state file I/O, serialized on a single thread. */
+        DISK,
+        /** Listener and callback invocations, so slow listeners don't hold up I/O threads. */
+        CALLBACK,
+        /** GCM token observers, which make blocking SNS calls; kept apart so an outage doesn't stall callbacks. */
+        OBSERVER,
+        /** Delayed and periodic triggers; tasks are expected to hand off real work to another pool. */
+        TIMER
+    }
+
+    private static final int NETWORK_THREADS = 6;
+    private static final int CALLBACK_THREADS = 2;
+    private static final int OBSERVER_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static PushExecutors instance;
+
+    private final ThreadPoolExecutor network;
+    private final ScheduledThreadPoolExecutor disk;
+    private final ThreadPoolExecutor callback;
+    private final ThreadPoolExecutor observer;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private PushExecutors() {
+        network = new ThreadPoolExecutor(NETWORK_THREADS, NETWORK_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("push-network"));
+        network.allowCoreThreadTimeOut(true);
+
+        disk = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("push-disk"));
+
+        callback = new ThreadPoolExecutor(CALLBACK_THREADS, CALLBACK_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("push-callback"));
+        callback.allowCoreThreadTimeOut(true);
+
+        observer = new ThreadPoolExecutor(OBSERVER_THREADS, OBSERVER_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("push-observer"));
+        observer.allowCoreThreadTimeOut(true);
+
+        timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("push-timer"));
+    }
+
+    public static synchronized PushExecutors shared() {
+        if (instance == null) {
+            instance = new PushExecutors();
+        }
+        return instance;
+    }
+
+    public ExecutorService network() {
+        return network;
+    }
+
+    public ScheduledExecutorService disk() {
+        return disk;
+    }
+
+    public ExecutorService callbacks() {
+        return callback;
+    }
+
+    public ExecutorService observers() {
+        return observer;
+    }
+
+    public ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    /** @return number of tasks waiting for a thread, including scheduled tasks that are not due yet */
+    public int getQueueDepth(final Pool pool) {
+        return executor(pool).getQueue().size();
+    }
+
+    /** @return number of threads currently running a task */
+    public int getActiveThreadCount(final Pool pool) {
+        return executor(pool).getActiveCount();
+    }
+
+    /** @return number of threads currently alive in the pool */
+    public int getPoolSize(final Pool pool) {
+        return executor(pool).getPoolSize();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("PushExecutors{");
+        for (Pool pool : Pool.values()) {
+            builder.append(String.format(Locale.US, "%s: active=%d, threads=%d, queued=%d; ",
+                    pool.name().toLowerCase(Locale.US), getActiveThreadCount(pool),
+                    getPoolSize(pool), getQueueDepth(pool)));
+        }
+        return builder.append('}').toString();
+    }
+
+    private ThreadPoolExecutor executor(final Pool pool) {
+        switch (pool) {
+            case NETWORK:
+                return network;
+            case DISK:
+                return disk;
+            case CALLBACK:
+                return callback;
+            case OBSERVER:
+                return observer;
+            case TIMER:
+                return timer;
+            default:
+                throw new IllegalArgumentException("Unknown pool " + pool);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -2,14 +2,18 @@ package com.execom.ljmocic.pushnotifications.aws.push;
 
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.utils.SingleFlight;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import com.google.android.gms.iid.InstanceID;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 /** The GCMTokenHelper registers the app on the device with Google Cloud Messaging (GCM) */
 public class GCMTokenHelper {
@@ -21,69 +25,117 @@ public class GCMTokenHelper {
 
     private static final String LOG_TAG = GCMTokenHelper.class.getSimpleName();
 
-    // Name of the shared preferences
-    private static final String SHARED_PREFS_FILE_NAME = GCMTokenHelper.class.getName();
-    // Keys in shared preferences
-    private static final String SHARED_PREFS_KEY_DEVICE_TOKEN = "deviceToken";
-
-    private final SharedPreferences sharedPreferences;
+    private final PushStateStore stateStore;
 
     private final InstanceID instanceID;
     private final String gcmSenderID;
 
     volatile private String deviceToken;
 
-    private Set<GCMTokenUpdateObserver> updateObservers;
+    private final ObserverRegistry<GCMTokenUpdateObserver> updateObservers;
+
+    private final SingleFlight<String> tokenUpdate = new SingleFlight<>(new Callable<String>() {
+        @Override
+        public String call() {
+            return fetchGCMToken();
+        }
+    });
 
-    public GCMTokenHelper(final Context context, final String gcmSenderID) {
+    /**
+     * @param context context
+     * @param gcmSenderID GCM sender ID
+     * @param stateStore push state, holding the last known token
+     * @param observerExecutor executor notifying each observer in a task of its own; the token
+     *                         update waits for the observers, which may make blocking SNS calls,
+     *                         so it must be a pool of its own, not the network or callback executor
+     * @param slowObserverThresholdMillis notification time above which an observer is counted as slow
+     */
+    public GCMTokenHelper(final Context context,
+                          final String gcmSenderID,
+                          final PushStateStore stateStore,
+                          final Executor observerExecutor,
+                          final long slowObserverThresholdMillis) {
         if (gcmSenderID == null || gcmSenderID.isEmpty()) {
             throw new IllegalArgumentException("Missing GCM sender ID.");
         }
 
         this.gcmSenderID = gcmSenderID;
         this.instanceID = InstanceID.getInstance(context);
-        sharedPreferences = context.getSharedPreferences(SHARED_PREFS_FILE_NAME,
-            Context.MODE_PRIVATE);
-
-        // load previously saved device token and endpoint arn
-        deviceToken = sharedPreferences.getString(SHARED_PREFS_KEY_DEVICE_TOKEN, "");
-
-        updateObservers = new HashSet<>();
+        this.stateStore = stateStore;
+
+        // load previously saved device token
+        deviceToken = stateStore.get().getDeviceToken();
+
+        updateObservers = new ObserverRegistry<>(PushMetrics.GCM_TOKEN_OBSERVER,
+            observerExecutor, slowObserverThresholdMillis,
+            new ObserverRegistry.FailureListener<GCMTokenUpdateObserver>() {
+                @Override
+                public void onObserverFailed(final GCMTokenUpdateObserver observer, final RuntimeException ex) {
+                    Log.e(LOG_TAG, "GCM token observer " + observer.getClass().getName() + " failed.", ex);
+                }
+            });
     }
 
     public void init() {
         // Ensure device is registered for push and subscribe to the default topic.
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Log.d(LOG_TAG, "Initial App Startup - Ensuring device is registered for GCM push...");
-
-                updateGCMToken();
-            }
-        }).start();
+        Log.d(LOG_TAG, "Initial App Startup - Ensuring device is registered for GCM push...");
+        updateGCMTokenAsync();
     }
 
-    synchronized
     public void addTokenUpdateObserver(final GCMTokenUpdateObserver tokenUpdateObserver) {
         updateObservers.add(tokenUpdateObserver);
     }
 
     /**
-     * Updates the GCM Token.
+     * Stops notifying an observer. A notification already dispatched to it may still arrive.
+     * @return false if the observer was not added
+     */
+    public boolean removeTokenUpdateObserver(final GCMTokenUpdateObserver tokenUpdateObserver) {
+        return updateObservers.remove(tokenUpdateObserver);
+    }
+
+    /**
+     * Updates the GCM Token and waits until all observers were notified.
      */
-    synchronized
     public void updateGCMToken() {
+        try {
+            updateGCMTokenAsync().get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ex) {
+            Log.e(LOG_TAG, "GCM token update failed.", ex.getCause());
+        }
+    }
+
+    /**
+     * Updates the GCM Token in the background. Concurrent callers share a single update, the
+     * returned future completes after all observers returned. Observers are notified in parallel
+     * on the observer executor.
+     * @return future of the current token, or null if registering with GCM failed
+     */
+    public Future<String> updateGCMTokenAsync() {
+        return tokenUpdate.run(PushExecutors.shared().network());
+    }
+
+    private String fetchGCMToken() {
         String newDeviceToken;
+        final PushMetrics.Operation metrics = PushMetrics.shared().operation(PushMetrics.GCM_GET_TOKEN);
+        final long start = metrics.start();
         // GCM throws a NullPointerException in some failure cases.
         try {
             newDeviceToken = instanceID.getToken(gcmSenderID, GoogleCloudMessaging.INSTANCE_ID_SCOPE);
+            metrics.success(start);
         } catch (final Exception re) {
+            metrics.failure(start);
             final String error = "Unable to register with GCM. " + re.getMessage();
             Log.e(LOG_TAG, error, re);
-            for (GCMTokenUpdateObserver observer : updateObservers) {
-                observer.onGCMTokenUpdateFailed(re);
-            }
-            return;
+            notifyObservers(new ObserverRegistry.Notification<GCMTokenUpdateObserver>() {
+                @Override
+                public void notify(final GCMTokenUpdateObserver observer) {
+                    observer.onGCMTokenUpdateFailed(re);
+                }
+            });
+            return null;
         }
 
         Log.d(LOG_TAG, "Current GCM Device Token:" + newDeviceToken);
@@ -92,12 +144,29 @@ public class GCMTokenHelper {
         if (didTokenChange) {
             Log.d(LOG_TAG, "GCM Device Token changed from: " + deviceToken);
             deviceToken = newDeviceToken;
-            sharedPreferences.edit()
-                .putString(SHARED_PREFS_KEY_DEVICE_TOKEN, deviceToken)
+            stateStore.edit()
+                .putDeviceToken(deviceToken)
                 .apply();
         }
-        for (GCMTokenUpdateObserver observer : updateObservers) {
-            observer.onGCMTokenUpdate(deviceToken, didTokenChange);
+        final String token = newDeviceToken;
+        notifyObservers(new ObserverRegistry.Notification<GCMTokenUpdateObserver>() {
+            @Override
+            public void notify(final GCMTokenUpdateObserver observer) {
+                observer.onGCMTokenUpdate(token, didTokenChange);
+            }
+        });
+        return newDeviceToken;
+    }
+
+    /** Notifies the observers in parallel, they may do network I/O, and waits until all returned. */
+    private void notifyObservers(final ObserverRegistry.Notification<GCMTokenUpdateObserver> notification) {
+        try {
+            updateObservers.dispatch(notification).get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ex) {
+            // Observer failures are counted by the registry, the dispatch itself doesn't fail.
+            Log.e(LOG_TAG, "Notifying GCM token observers failed.", ex.getCause());
         }
     }
 
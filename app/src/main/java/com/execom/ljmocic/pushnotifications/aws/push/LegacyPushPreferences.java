@@ -0,0 +1,70 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * Shared preferences {@link PushManager} and {@link GCMTokenHelper} kept their state in before
+ * the {@link PushStateStore}. Read once to migrate them, and cleared after.
+ */
+public final class LegacyPushPreferences {
+
+    // Names of the shared preferences
+    private static final String PUSH_MANAGER_FILE_NAME = PushManager.class.getName();
+    private static final String GCM_TOKEN_HELPER_FILE_NAME = GCMTokenHelper.class.getName();
+
+    // Keys in the push manager's shared preferences
+    private static final String KEY_PUSH_ENABLED = "pushEnabled";
+    private static final String KEY_ENDPOINT_ARN = "endpointArn";
+    private static final String KEY_PREVIOUS_PLATFORM_APPLICATION = "previousPlatformApp";
+    private static final String KEY_ENDPOINT_TOKEN = "endpointToken";
+    private static final String KEY_ENDPOINT_ENABLED = "endpointEnabled";
+    private static final String KEY_ENDPOINT_VERIFIED_AT = "endpointVerifiedAt";
+    private static final String KEY_TOPIC_SUBSCRIPTION_PREFIX = "topicSubscription:";
+    // Key in the GCM token helper's shared preferences
+    private static final String KEY_DEVICE_TOKEN = "deviceToken";
+
+    private LegacyPushPreferences() {
+    }
+
+    /**
+     * Copies the state from the shared preferences into the store and writes it. The shared
+     * preferences are cleared only once the store was written, so a failed migration is
+     * repeated on the next start. Must be called from a background thread.
+     * @param context context
+     * @param stateStore loaded store without a state file
+     * @return true if the store was written
+     */
+    public static boolean migrate(final Context context, final PushStateStore stateStore) {
+        final SharedPreferences pushPreferences =
+                context.getSharedPreferences(PUSH_MANAGER_FILE_NAME, Context.MODE_PRIVATE);
+        final SharedPreferences tokenPreferences =
+                context.getSharedPreferences(GCM_TOKEN_HELPER_FILE_NAME, Context.MODE_PRIVATE);
+
+        final PushStateStore.Editor editor = stateStore.edit()
+                .putDeviceToken(tokenPreferences.getString(KEY_DEVICE_TOKEN, ""))
+                .putEndpointArn(pushPreferences.getString(KEY_ENDPOINT_ARN, ""))
+                .putPlatformApplicationArn(pushPreferences.getString(KEY_PREVIOUS_PLATFORM_APPLICATION, ""))
+                .putPushEnabled(pushPreferences.getBoolean(KEY_PUSH_ENABLED, false));
+        if (pushPreferences.contains(KEY_ENDPOINT_TOKEN)) {
+            editor.putEndpointState(new EndpointState(pushPreferences.getString(KEY_ENDPOINT_TOKEN, ""),
+                    pushPreferences.getBoolean(KEY_ENDPOINT_ENABLED, false),
+                    pushPreferences.getLong(KEY_ENDPOINT_VERIFIED_AT, 0)));
+        }
+        for (Map.Entry<String, ?> entry : pushPreferences.getAll().entrySet()) {
+            final String key = entry.getKey();
+            if (key.startsWith(KEY_TOPIC_SUBSCRIPTION_PREFIX)) {
+                editor.putTopicSubscription(key.substring(KEY_TOPIC_SUBSCRIPTION_PREFIX.length()),
+                        String.valueOf(entry.getValue()));
+            }
+        }
+        if (!editor.commit()) {
+            return false;
+        }
+        pushPreferences.edit().clear().apply();
+        tokenPreferences.edit().clear().apply();
+        return true;
+    }
+}
@@ -1,23 +1,46 @@
 package com.execom.ljmocic.pushnotifications.aws.push;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.util.Log;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.sns.AmazonSNS;
-import com.amazonaws.services.sns.AmazonSNSClient;
 import com.amazonaws.services.sns.model.CreatePlatformEndpointRequest;
 import com.amazonaws.services.sns.model.CreatePlatformEndpointResult;
+import com.amazonaws.services.sns.model.DeleteEndpointRequest;
+import com.amazonaws.services.sns.model.GetEndpointAttributesRequest;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishResult;
 import com.amazonaws.services.sns.model.SetEndpointAttributesRequest;
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.retry.CircuitBreaker;
+import com.execom.ljmocic.pushnotifications.aws.retry.ErrorClassifier;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+import com.execom.ljmocic.pushnotifications.utils.SingleFlight;
 import com.execom.ljmocic.pushnotifications.utils.ThreadUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class PushManager implements GCMTokenHelper.GCMTokenUpdateObserver {
 
@@ -25,79 +48,212 @@ public class PushManager implements GCMTokenHelper.GCMTokenUpdateObserver {
         void onPushStateChange(PushManager pushManager, boolean isEnabled);
     }
 
-    private static final String LOG_TAG = PushManager.class.getSimpleName();
+    public interface DirectorySendListener {
+        /** Called on a background thread after every batch of recipients. */
+        void onBatchComplete(DispatchResult result);
+
+        /** Called once on a background thread after the last batch, error is null on success. */
+        void onSendComplete(int successCount, int failureCount, Exception error);
+    }
 
-    // Name of the shared preferences
-    private static final String SHARED_PREFS_FILE_NAME = PushManager.class.getName();
+    private static final String LOG_TAG = PushManager.class.getSimpleName();
 
-    // Keys in shared preferences
-    private static final String SHARED_PREFS_PUSH_ENABLED = "pushEnabled";
-    private static final String SHARED_PREFS_KEY_ENDPOINT_ARN = "endpointArn";
-    private static final String SHARED_PREFS_PREVIOUS_PLATFORM_APPLICATION = "previousPlatformApp";
+    // Directory of the outbound journal, relative to the app's files directory
+    private static final String OUTBOUND_JOURNAL_DIRECTORY = "outbound";
+    // Directory of the endpoint index, relative to the app's files directory
+    private static final String ENDPOINT_DIRECTORY = "endpoints";
+    // Pages listed between checkpoints of the endpoint directory sync
+    private static final int ENDPOINT_DIRECTORY_SYNC_PAGES = 10;
+    // Log of endpoints SNS reported as dead, relative to the app's files directory
+    private static final String ENDPOINT_QUARANTINE_FILE = "quarantined-endpoints";
+    // Recipients read from the endpoint directory per fan-out
+    private static final int DIRECTORY_SEND_BATCH_SIZE = 500;
 
     // Constants for SNS
-    private static final String SNS_PROTOCOL_APPLICATION = "application";
     private static final String SNS_ENDPOINT_ATTRIBUTE_ENABLED = "Enabled";
+    private static final String SNS_ENDPOINT_ATTRIBUTE_TOKEN = "Token";
+
+    // Name of the circuit breaker guarding every SNS call
+    private static final String SNS_CIRCUIT = "sns";
 
     private static PushStateListener pushStateListener;
 
-    private final AmazonSNS sns;
+    // Profile name to SNS client
+    private final Map<String, LazySnsClient> snsClients = new HashMap<>();
+    private final PushDispatcher pushDispatcher;
+    private final PushMetrics.Operation createEndpointMetrics =
+            PushMetrics.shared().operation(PushMetrics.SNS_CREATE_PLATFORM_ENDPOINT);
+    private final PushMetrics.Operation getAttributesMetrics =
+            PushMetrics.shared().operation(PushMetrics.SNS_GET_ENDPOINT_ATTRIBUTES);
+    private final PushMetrics.Operation setAttributesMetrics =
+            PushMetrics.shared().operation(PushMetrics.SNS_SET_ENDPOINT_ATTRIBUTES);
+    private final PushMetrics.Operation deleteEndpointMetrics =
+            PushMetrics.shared().operation(PushMetrics.SNS_DELETE_ENDPOINT);
+    // Topic publishes use the interactive client but share the dispatcher's rate limiter
+    private final SnsPublisher topicPublisher;
+    // Opens when SNS is unreachable, shared by all SNS calls of this manager
+    private final CircuitBreaker snsCircuitBreaker = new CircuitBreaker.Builder(SNS_CIRCUIT).build();
+    private final RetryPolicy snsRetryPolicy = RetryPolicy.INTERACTIVE;
+    private final OutboundQueue outboundQueue;
+    private final EndpointDirectory endpointDirectory;
+    // Endpoints skipped by fan-outs because publishing to them failed with a dead endpoint error
+    private final EndpointQuarantine endpointQuarantine;
+    private final SingleFlight<Boolean> endpointDirectorySync = new SingleFlight<>(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException {
+            // Checkpoints every few pages, a sync cut short resumes where it stopped.
+            while (!endpointDirectory.sync(ENDPOINT_DIRECTORY_SYNC_PAGES)) {
+                Log.d(LOG_TAG, "Endpoint directory sync checkpointed.");
+            }
+            Log.d(LOG_TAG, "Endpoint directory synced, " + endpointDirectory.size() + " endpoints.");
+            return true;
+        }
+    });
 
-    private final SharedPreferences sharedPreferences;
+    private final PushStateStore stateStore;
 
     private final GCMTokenHelper gcmTokenHelper;
 
     private final String platformApplicationArn;
-    private String endpointArn;
-    private boolean shouldEnablePush;
-    private boolean pushEnabled;
+    private volatile String endpointArn;
+    private volatile boolean shouldEnablePush;
+    private volatile boolean pushEnabled;
     private Boolean previousPushState = null;
+    // Null if the endpoint's attributes are unknown
+    private volatile EndpointState endpointState;
+    private final long endpointRevalidationTtlMillis;
     private final String defaultTopicArn;
+    private final String[] topicArns;
+    private final TopicSubscriptions topicSubscriptions;
+    // Set when the last registration failed with a transient error, it is retried once connected
+    private volatile boolean registrationFailed;
 
     public PushManager(final Context context,
                        final GCMTokenHelper gcmTokenHelper,
+                       final PushStateStore stateStore,
                        final AWSCredentialsProvider provider,
                        final String platformApplicationArn,
                        final ClientConfiguration clientConfiguration,
+                       final Collection<ConnectionProfile> connectionProfiles,
+                       final SnsClientFactory snsClientFactory,
                        final String defaultTopicArn,
                        final String[] topicArns,
-                       final Regions region) {
+                       final Regions region,
+                       final int publishConcurrency,
+                       final AdaptiveRateLimiter publishRateLimiter,
+                       final long endpointRevalidationTtlMillis) {
 
-        sharedPreferences = context.getSharedPreferences(SHARED_PREFS_FILE_NAME,
-                Context.MODE_PRIVATE);
+        this.stateStore = stateStore;
 
         this.gcmTokenHelper = gcmTokenHelper;
         this.platformApplicationArn = platformApplicationArn;
         this.defaultTopicArn = defaultTopicArn;
-        sns = new AmazonSNSClient(provider, clientConfiguration);
-        sns.setRegion(Region.getRegion(region));
+        this.topicArns = topicArns;
+        this.endpointRevalidationTtlMillis = endpointRevalidationTtlMillis;
+        // The SNS clients are only created when SNS is first called, not on app startup.
+        for (ConnectionProfile profile : connectionProfiles) {
+            snsClients.put(profile.getName(),
+                    new LazySnsClient(provider, profile.applyTo(clientConfiguration), region, snsClientFactory));
+        }
+        if (!snsClients.containsKey(ConnectionProfile.INTERACTIVE_NAME)) {
+            snsClients.put(ConnectionProfile.INTERACTIVE_NAME, new LazySnsClient(provider,
+                    ConnectionProfile.INTERACTIVE.applyTo(clientConfiguration), region, snsClientFactory));
+        }
+        if (!snsClients.containsKey(ConnectionProfile.BULK_NAME)) {
+            snsClients.put(ConnectionProfile.BULK_NAME, new LazySnsClient(provider,
+                    ConnectionProfile.BULK.applyTo(clientConfiguration), region, snsClientFactory));
+        }
+        final PushExecutors executors = PushExecutors.shared();
+        endpointQuarantine = new EndpointQuarantine(new File(context.getFilesDir(), ENDPOINT_QUARANTINE_FILE),
+                executors.disk());
+        // Fan-outs and retries of the outbound queue use the bulk connections.
+        pushDispatcher = new PushDispatcher(
+                new SnsPublisher(snsClients.get(ConnectionProfile.BULK_NAME), publishRateLimiter,
+                        snsRetryPolicy, snsCircuitBreaker),
+                executors.network(), executors.callbacks(), publishConcurrency, endpointQuarantine);
+        topicPublisher = new SnsPublisher(snsClients.get(ConnectionProfile.INTERACTIVE_NAME), publishRateLimiter,
+                snsRetryPolicy, snsCircuitBreaker);
+        outboundQueue = new OutboundQueue(
+                new OutboundJournal(new File(context.getFilesDir(), OUTBOUND_JOURNAL_DIRECTORY),
+                        OutboundJournal.DEFAULT_SEGMENT_BYTES),
+                pushDispatcher,
+                executors.disk(),
+                OutboundQueue.DEFAULT_BATCH_SIZE);
+        endpointDirectory = new EndpointDirectory(new File(context.getFilesDir(), ENDPOINT_DIRECTORY),
+                snsClients.get(ConnectionProfile.BULK_NAME), platformApplicationArn,
+                snsRetryPolicy, snsCircuitBreaker);
 
 
         // Avoid the situation where a previous download/build of the sample app has
         // been run in a re-used emulator and the platform application arn changed.
-        final String previousPlatformApp =
-                sharedPreferences.getString(SHARED_PREFS_PREVIOUS_PLATFORM_APPLICATION, "");
+        final PushStateStore.State state = stateStore.get();
+        final String previousPlatformApp = state.getPlatformApplicationArn();
 
         if (!previousPlatformApp.equalsIgnoreCase(platformApplicationArn)) {
             Log.d(LOG_TAG, "SNS platform application ARN changed or not set. Triggering SNS endpoint refresh.");
             endpointArn = "";
-            // clear shared preferences.
-            sharedPreferences.edit().clear().apply();
+            // clear the stored endpoint and subscriptions.
+            stateStore.edit().clearRegistration().apply();
             pushEnabled = false;
             shouldEnablePush = true;
         } else {
-            endpointArn = sharedPreferences.getString(SHARED_PREFS_KEY_ENDPOINT_ARN, "");
-            pushEnabled = sharedPreferences.getBoolean(SHARED_PREFS_PUSH_ENABLED, false);
+            endpointArn = state.getEndpointArn();
+            pushEnabled = state.isPushEnabled();
             shouldEnablePush = pushEnabled;
+            endpointState = state.getEndpointState();
         }
+        // Read after a changed platform application cleared the recorded subscriptions.
+        topicSubscriptions = new TopicSubscriptions(snsClients.get(ConnectionProfile.INTERACTIVE_NAME), stateStore,
+                snsRetryPolicy, snsCircuitBreaker);
         gcmTokenHelper.addTokenUpdateObserver(this);
+
+        // Replay whatever was left in the journal by a previous run, and again whenever the
+        // device gets connected.
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    Log.d(LOG_TAG, "Network available, draining outbound queue.");
+                    outboundQueue.onNetworkAvailable();
+                    if (registrationFailed) {
+                        Log.d(LOG_TAG, "Retrying failed registration.");
+                        registerDevice();
+                    }
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        outboundQueue.drain();
     }
 
     @Override
     public void onGCMTokenUpdate(final String gcmToken, final boolean didTokenChange) {
-        if (didTokenChange || !isRegistered()) {
-            try {
-                Log.d(LOG_TAG, "GCM Token changed or SNS endpoint not registered.");
+        final EndpointState state = endpointState;
+        if (isRegistered() && state != null && state.matches(gcmToken, shouldEnablePush)
+                && !state.isStale(System.currentTimeMillis(), endpointRevalidationTtlMillis)) {
+            // Nothing changed since the endpoint was last verified, no need to ask SNS.
+            pushEnabled = state.isEnabled();
+            informStateListener();
+            Log.d(LOG_TAG, "Push Notifications - OK (endpoint up to date)");
+            return;
+        }
+
+        final String previousEndpointArn = endpointArn;
+        try {
+            Log.d(LOG_TAG, "GCM Token changed, SNS endpoint not registered or not verified recently.");
+            Map<String, String> attributes = null;
+            if (isRegistered()) {
+                try {
+                    attributes = getSNSEndpointAttributes();
+                } catch (final NotFoundException ex) {
+                    Log.d(LOG_TAG, "SNS endpoint was deleted, creating a new one.");
+                    endpointArn = "";
+                } catch (final AmazonClientException ex) {
+                    Log.e(LOG_TAG, "Error reading endpoint attributes: " + ex.getMessage(), ex);
+                    throw ex;
+                }
+            }
+
+            if (!isRegistered()) {
                 try {
                     createPlatformArn();
                 } catch (final AmazonClientException ex) {
@@ -105,42 +261,89 @@ public class PushManager implements GCMTokenHelper.GCMTokenUpdateObserver {
                     pushEnabled = false;
                     throw ex;
                 }
+            }
 
+            // A new endpoint, or one re-used by SNS for the same token, may be disabled.
+            if (attributes == null
+                    || !gcmToken.equals(attributes.get(SNS_ENDPOINT_ATTRIBUTE_TOKEN))
+                    || !String.valueOf(shouldEnablePush).equalsIgnoreCase(attributes.get(SNS_ENDPOINT_ATTRIBUTE_ENABLED))) {
                 try {
                     Log.d(LOG_TAG, "Updating push enabled state to " + shouldEnablePush);
-                    setSNSEndpointEnabled(shouldEnablePush);
+                    setSNSEndpointAttributes(gcmToken, shouldEnablePush);
                 } catch (final AmazonClientException ex) {
                     Log.e(LOG_TAG, "Failed to set push enabled state : " + ex, ex);
                     throw ex;
                 }
+            } else {
+                pushEnabled = shouldEnablePush;
+            }
+            endpointState = new EndpointState(gcmToken, shouldEnablePush, System.currentTimeMillis());
 
-                try {
+            try {
+                if (!endpointArn.equals(previousEndpointArn)) {
                     Log.d(LOG_TAG, "Resubscribing to subscribed topics.");
-                } catch (final AmazonClientException ex) {
-                    Log.e(LOG_TAG, "Failed resubscribing to topics : " + ex, ex);
-                    throw ex;
+                    topicSubscriptions.moveTo(endpointArn);
                 }
             } catch (final AmazonClientException ex) {
-                // Clear the endpoint ARN, regardless of what failed, this will force the app
-                // to try again the next time the app is started or registerDevice() is called.
+                Log.e(LOG_TAG, "Failed resubscribing to topics : " + ex, ex);
+                throw ex;
+            }
+        } catch (final AmazonClientException ex) {
+            // Retries are exhausted or the SNS circuit is open. A transient failure keeps a
+            // previously registered endpoint ARN, so the next attempt only verifies the endpoint
+            // instead of creating a new one. Anything else, or a new endpoint that was not
+            // resubscribed to its topics yet, clears it, forcing a full registration the next
+            // time the app is started or registerDevice() is called.
+            registrationFailed = ErrorClassifier.isRetryable(ex);
+            if (!registrationFailed || !endpointArn.equals(previousEndpointArn)) {
                 endpointArn = "";
-                Log.e(LOG_TAG, "Push Notifications - FAILED : " + ex, ex);
-                return;
-            } finally {
-                sharedPreferences.edit()
-                        .putString(SHARED_PREFS_PREVIOUS_PLATFORM_APPLICATION, platformApplicationArn)
-                        .putString(SHARED_PREFS_KEY_ENDPOINT_ARN, endpointArn)
-                        // Setting push enabled to whether push should be enabled, so a failure
-                        // will not disable push in shared preferences, and the app will retry
-                        // when restarted.
-                        .putBoolean(SHARED_PREFS_PUSH_ENABLED, shouldEnablePush)
-                        .apply();
-                informStateListener();
             }
+            endpointState = null;
+            Log.e(LOG_TAG, "Push Notifications - FAILED : " + ex, ex);
+            return;
+        } finally {
+            stateStore.edit()
+                    .putPlatformApplicationArn(platformApplicationArn)
+                    .putEndpointArn(endpointArn)
+                    // Setting push enabled to whether push should be enabled, so a failure
+                    // will not disable push in shared preferences, and the app will retry
+                    // when restarted.
+                    .putPushEnabled(shouldEnablePush)
+                    .putEndpointState(endpointState)
+                    .apply();
+            informStateListener();
         }
+        registrationFailed = false;
+        // This device's endpoint is enabled again, in case a failed publish to it quarantined it.
+        endpointQuarantine.release(endpointArn);
+        subscribeToConfiguredTopics();
         Log.d(LOG_TAG, "Push Notifications - OK ");
     }
 
+    /**
+     * Subscribes the endpoint to the default and configured topics it is not subscribed to yet.
+     * A failure doesn't fail the registration; a transient one is retried with the registration
+     * once the device is connected.
+     */
+    private void subscribeToConfiguredTopics() {
+        final List<String> configured = new ArrayList<>();
+        configured.add(defaultTopicArn);
+        if (topicArns != null) {
+            Collections.addAll(configured, topicArns);
+        }
+        try {
+            topicSubscriptions.subscribeAll(endpointArn, configured);
+        } catch (final AmazonClientException ex) {
+            Log.e(LOG_TAG, "Failed subscribing to configured topics : " + ex, ex);
+            if (ErrorClassifier.isRetryable(ex)) {
+                registrationFailed = true;
+                // Makes the retry ask SNS again instead of taking the up to date shortcut.
+                endpointState = null;
+                stateStore.edit().putEndpointState(null).apply();
+            }
+        }
+    }
+
     @Override
     public void onGCMTokenUpdateFailed(final Exception ex) {
         Log.e(LOG_TAG, "Push Notifications - FAILED : GCM registration failed : " + ex, ex);
@@ -148,43 +351,497 @@ public class PushManager implements GCMTokenHelper.GCMTokenUpdateObserver {
         informStateListener();
     }
 
-    public void registerDevice() {
+    /**
+     * Registers the device in the background. If a registration is already running, e.g. the
+     * one started on app startup, the caller joins it instead of starting another one.
+     * @return future that completes once the endpoint is refreshed
+     */
+    public Future<String> registerDevice() {
         // Updates the GCM token, which triggers {@link #onGCMTokenUpdate(String,boolean)} to create the platform
         // arn set push enabled, and re-subscribe to any previously subscribed topics.
-        gcmTokenHelper.updateGCMToken();
+        return gcmTokenHelper.updateGCMTokenAsync();
     }
 
     private void createPlatformArn() {
         final CreatePlatformEndpointRequest request = new CreatePlatformEndpointRequest();
         request.setPlatformApplicationArn(platformApplicationArn);
         request.setToken(gcmTokenHelper.getGCMToken());
-        final CreatePlatformEndpointResult result = sns.createPlatformEndpoint(request);
+        final CreatePlatformEndpointResult result = callSns(new RetryPolicy.Call<CreatePlatformEndpointResult>() {
+            @Override
+            public CreatePlatformEndpointResult call() {
+                final long start = createEndpointMetrics.start();
+                try {
+                    final CreatePlatformEndpointResult result = getSns().createPlatformEndpoint(request);
+                    createEndpointMetrics.success(start);
+                    return result;
+                } catch (final RuntimeException ex) {
+                    createEndpointMetrics.failure(start);
+                    throw ex;
+                }
+            }
+        });
         endpointArn = result.getEndpointArn();
         Log.d(LOG_TAG, "endpoint arn: " + endpointArn);
     }
 
+    private Map<String, String> getSNSEndpointAttributes() {
+        final GetEndpointAttributesRequest request = new GetEndpointAttributesRequest();
+        request.setEndpointArn(endpointArn);
+        return callSns(new RetryPolicy.Call<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() {
+                final long start = getAttributesMetrics.start();
+                try {
+                    final Map<String, String> attributes = getSns().getEndpointAttributes(request).getAttributes();
+                    getAttributesMetrics.success(start);
+                    return attributes;
+                } catch (final RuntimeException ex) {
+                    getAttributesMetrics.failure(start);
+                    throw ex;
+                }
+            }
+        });
+    }
+
+    private void setSNSEndpointAttributes(final String token, final boolean enabled) {
+        Map<String, String> attr = new HashMap<String, String>();
+        attr.put(SNS_ENDPOINT_ATTRIBUTE_TOKEN, token);
+        attr.put(SNS_ENDPOINT_ATTRIBUTE_ENABLED, String.valueOf(enabled));
+        setSNSEndpointAttributes(attr);
+        Log.d(LOG_TAG, String.format("Set push %s for endpoint arn: %s",
+                enabled ? "enabled" : "disabled", endpointArn));
+        this.pushEnabled = enabled;
+    }
+
     private void setSNSEndpointEnabled(final boolean enabled) {
         Map<String, String> attr = new HashMap<String, String>();
         attr.put(SNS_ENDPOINT_ATTRIBUTE_ENABLED, String.valueOf(enabled));
-        SetEndpointAttributesRequest request = new SetEndpointAttributesRequest();
-        request.setEndpointArn(endpointArn);
-        request.setAttributes(attr);
-        sns.setEndpointAttributes(request);
+        setSNSEndpointAttributes(attr);
         Log.d(LOG_TAG, String.format("Set push %s for endpoint arn: %s",
                 enabled ? "enabled" : "disabled", endpointArn));
         this.pushEnabled = enabled;
     }
 
+    private void setSNSEndpointAttributes(final Map<String, String> attributes) {
+        final SetEndpointAttributesRequest request = new SetEndpointAttributesRequest();
+        request.setEndpointArn(endpointArn);
+        request.setAttributes(attributes);
+        callSns(new RetryPolicy.Call<Void>() {
+            @Override
+            public Void call() {
+                final long start = setAttributesMetrics.start();
+                try {
+                    getSns().setEndpointAttributes(request);
+                    setAttributesMetrics.success(start);
+                    return null;
+                } catch (final RuntimeException ex) {
+                    setAttributesMetrics.failure(start);
+                    throw ex;
+                }
+            }
+        });
+    }
+
     public void setPushEnabled(final boolean enabled) {
         shouldEnablePush = enabled;
-        setSNSEndpointEnabled(enabled);
+        final EndpointState state = endpointState;
+        if (isRegistered() && state != null && state.isEnabled() == enabled) {
+            // The endpoint already has this state.
+            pushEnabled = enabled;
+        } else {
+            setSNSEndpointEnabled(enabled);
+            if (state != null) {
+                endpointState = state.withEnabled(enabled);
+            }
+        }
         informStateListener();
-        sharedPreferences.edit()
-                .putBoolean(SHARED_PREFS_PUSH_ENABLED, enabled)
-                .putString(SHARED_PREFS_PREVIOUS_PLATFORM_APPLICATION, platformApplicationArn)
+        stateStore.edit()
+                .putPushEnabled(enabled)
+                .putPlatformApplicationArn(platformApplicationArn)
+                .putEndpointState(endpointState)
                 .apply();
     }
 
+    /**
+     * Publishes a message to endpoints through the outbound queue. The message is journaled
+     * first, so targets that fail with a transient error are retried in the background.
+     * Quarantined targets are skipped, the result lists them in
+     * {@link DispatchResult#getSkippedTargetArns()}.
+     * @param message message to publish
+     * @param targetArns endpoint ARNs
+     * @param callback notified with the result of the first attempt, on a background thread
+     */
+    public void send(final PushMessage message,
+                     final Collection<String> targetArns,
+                     final PushDispatcher.Callback callback) {
+        final List<String> skipped = new ArrayList<>();
+        outboundQueue.send(message, endpointQuarantine.filter(targetArns, skipped), reportSkipped(skipped, callback));
+    }
+
+    /**
+     * Publishes a payload to endpoints through the outbound queue. A payload too large for GCM
+     * is compressed, and split into chunks every target receives, see {@link PayloadPacker}.
+     * Compression runs on the calling thread, call it off the main thread for large payloads.
+     * @param payload payload to publish
+     * @param subject subject of the publish, may be null
+     * @param targetArns endpoint ARNs
+     * @param callback notified once with the combined result of the first attempt of all chunks,
+     *                 on a background thread
+     * @throws IllegalArgumentException if the payload is too large even when chunked
+     */
+    public void send(final PushPayload.Builder payload,
+                     final String subject,
+                     final Collection<String> targetArns,
+                     final PushDispatcher.Callback callback) {
+        send(payload, subject, targetArns, PushDispatcher.Lane.NORMAL, callback);
+    }
+
+    /**
+     * Publishes a payload to endpoints through the outbound queue, like
+     * {@link #send(PushPayload.Builder, String, Collection, PushDispatcher.Callback)}, with the
+     * first attempt in the given dispatcher lane. Sends a user waits for go in
+     * {@link PushDispatcher.Lane#INTERACTIVE}, so they overtake fan-outs in progress; they are
+     * not journaled before the first attempt, so they don't wait for the disk thread either.
+     * @param payload payload to publish
+     * @param subject subject of the publish, may be null
+     * @param targetArns endpoint ARNs
+     * @param lane dispatcher lane
+     * @param callback notified once with the combined result of the first attempt of all chunks
+     * @throws IllegalArgumentException if the payload is too large even when chunked
+     */
+    public void send(final PushPayload.Builder payload,
+                     final String subject,
+                     final Collection<String> targetArns,
+                     final PushDispatcher.Lane lane,
+                     final PushDispatcher.Callback callback) {
+        send(pack(payload, subject), targetArns, lane, callback);
+    }
+
+    /**
+     * Publishes a payload packed by {@link #pack} to endpoints through the outbound queue.
+     * @param parts messages every target receives
+     * @param targetArns endpoint ARNs
+     * @param lane dispatcher lane
+     * @param callback notified once with the combined result of the first attempt of all parts
+     */
+    void send(final List<PushMessage> parts,
+              final Collection<String> targetArns,
+              final PushDispatcher.Lane lane,
+              final PushDispatcher.Callback callback) {
+        final List<String> skipped = new ArrayList<>();
+        sendParts(parts, endpointQuarantine.filter(targetArns, skipped), lane, reportSkipped(skipped, callback));
+    }
+
+    private static PushDispatcher.Callback reportSkipped(final List<String> skipped,
+                                                         final PushDispatcher.Callback callback) {
+        if (callback == null || skipped.isEmpty()) {
+            return callback;
+        }
+        return new PushDispatcher.Callback() {
+            @Override
+            public void onDispatchComplete(final DispatchResult result) {
+                callback.onDispatchComplete(result.withSkippedTargetArns(skipped));
+            }
+        };
+    }
+
+    /**
+     * Compresses and chunks a payload on the calling thread, see {@link PayloadPacker}.
+     * @throws IllegalArgumentException if the payload is too large even when chunked
+     */
+    List<PushMessage> pack(final PushPayload.Builder payload, final String subject) {
+        final List<PushPayload> payloads = PayloadPacker.DEFAULT.pack(payload);
+        final List<PushMessage> parts = new ArrayList<>(payloads.size());
+        for (PushPayload part : payloads) {
+            parts.add(part.toPushMessage(subject));
+        }
+        return parts;
+    }
+
+    private void sendParts(final List<PushMessage> parts,
+                           final List<String> targetArns,
+                           final PushDispatcher.Lane lane,
+                           final PushDispatcher.Callback callback) {
+        if (parts.size() == 1) {
+            outboundQueue.send(parts.get(0), targetArns, lane, callback);
+            return;
+        }
+        final AtomicReferenceArray<DispatchResult> results = new AtomicReferenceArray<>(parts.size());
+        final AtomicInteger remaining = new AtomicInteger(parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            final int index = i;
+            outboundQueue.send(parts.get(i), targetArns, lane, new PushDispatcher.Callback() {
+                @Override
+                public void onDispatchComplete(final DispatchResult result) {
+                    results.set(index, result);
+                    if (remaining.decrementAndGet() == 0 && callback != null) {
+                        final List<DispatchResult> partResults = new ArrayList<>(parts.size());
+                        for (int j = 0; j < parts.size(); j++) {
+                            partResults.add(results.get(j));
+                        }
+                        callback.onDispatchComplete(DispatchResult.merge(partResults));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes up to the given number of quarantined endpoints from SNS in the background. The
+     * endpoints stay quarantined, since stale copies of their ARNs may still be targeted.
+     * @param maxCount maximum number of endpoints deleted
+     * @return future for the number of endpoints deleted
+     */
+    public Future<Integer> deleteQuarantinedEndpoints(final int maxCount) {
+        final FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int deleted = 0;
+                for (final String quarantinedArn : endpointQuarantine.getUndeleted(maxCount)) {
+                    if (quarantinedArn.equals(endpointArn)) {
+                        // Re-enabled by the registration, never deleted from here.
+                        endpointQuarantine.release(quarantinedArn);
+                        continue;
+                    }
+                    try {
+                        deleteEndpoint(quarantinedArn);
+                    } catch (final AmazonClientException ex) {
+                        // Left for the next run, e.g. once the SNS circuit closes again.
+                        Log.w(LOG_TAG, "Failed deleting quarantined endpoint " + quarantinedArn + " : " + ex);
+                        break;
+                    }
+                    endpointQuarantine.markDeleted(quarantinedArn);
+                    deleted++;
+                }
+                Log.d(LOG_TAG, "Deleted " + deleted + " quarantined endpoints, "
+                        + endpointQuarantine.size() + " quarantined.");
+                return deleted;
+            }
+        });
+        PushExecutors.shared().network().execute(task);
+        return task;
+    }
+
+    private void deleteEndpoint(final String targetArn) {
+        final DeleteEndpointRequest request = new DeleteEndpointRequest().withEndpointArn(targetArn);
+        callSns(new RetryPolicy.Call<Void>() {
+            @Override
+            public Void call() {
+                final long start = deleteEndpointMetrics.start();
+                try {
+                    // Deleting an endpoint that no longer exists succeeds as well.
+                    getSns(ConnectionProfile.BULK_NAME).deleteEndpoint(request);
+                    deleteEndpointMetrics.success(start);
+                    return null;
+                } catch (final RuntimeException ex) {
+                    deleteEndpointMetrics.failure(start);
+                    throw ex;
+                }
+            }
+        });
+    }
+
+    /**
+     * Publishes a message to every enabled, not quarantined endpoint of the endpoint directory. Recipients are
+     * streamed from the directory in batches, each sent through the outbound queue once the
+     * previous batch completed, so the recipients are never all in memory.
+     * @param message message to publish
+     * @param listener notified after every batch and once at the end
+     */
+    public void sendToDirectory(final PushMessage message, final DirectorySendListener listener) {
+        sendToDirectory(Collections.singletonList(message), listener);
+    }
+
+    /**
+     * Publishes a payload to every enabled, not quarantined endpoint of the endpoint directory,
+     * compressed or chunked like {@link #send(PushPayload.Builder, String, Collection, PushDispatcher.Callback)}.
+     * @param payload payload to publish
+     * @param subject subject of the publish, may be null
+     * @param listener notified after every batch and once at the end
+     * @throws IllegalArgumentException if the payload is too large even when chunked
+     */
+    public void sendToDirectory(final PushPayload.Builder payload,
+                                final String subject,
+                                final DirectorySendListener listener) {
+        sendToDirectory(pack(payload, subject), listener);
+    }
+
+    void sendToDirectory(final List<PushMessage> parts, final DirectorySendListener listener) {
+        PushExecutors.shared().disk().execute(new Runnable() {
+            @Override
+            public void run() {
+                final EndpointDirectory.Cursor cursor;
+                try {
+                    cursor = endpointDirectory.open();
+                } catch (final IOException ex) {
+                    listener.onSendComplete(0, 0, ex);
+                    return;
+                }
+                new DirectorySend(cursor, parts, listener).run();
+            }
+        });
+    }
+
+    /**
+     * Syncs the endpoint directory with SNS in the background. Concurrent callers share a single sync.
+     * @return future that completes once the directory is synced
+     */
+    public Future<Boolean> syncEndpointDirectory() {
+        return endpointDirectorySync.run(PushExecutors.shared().network());
+    }
+
+    /**
+     * Syncs the endpoint directory if it is older than the given age, or a sync was cut short.
+     * @param maxAgeMillis age after which the directory is synced again
+     */
+    public void syncEndpointDirectoryIfStale(final long maxAgeMillis) {
+        PushExecutors.shared().disk().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (endpointDirectory.isSyncInProgress()
+                            || System.currentTimeMillis() - endpointDirectory.getSyncedAtMillis() > maxAgeMillis) {
+                        syncEndpointDirectory();
+                    }
+                } catch (final IOException ex) {
+                    Log.w(LOG_TAG, "Unreadable endpoint directory, syncing again : " + ex);
+                    syncEndpointDirectory();
+                }
+            }
+        });
+    }
+
+    public EndpointDirectory getEndpointDirectory() {
+        return endpointDirectory;
+    }
+
+    /** Reads the next batch of recipients on the disk executor whenever the previous batch completed. */
+    private class DirectorySend implements Runnable, PushDispatcher.Callback {
+
+        private final EndpointDirectory.Cursor cursor;
+        private final List<PushMessage> parts;
+        private final DirectorySendListener listener;
+        private int successCount;
+        private int failureCount;
+
+        DirectorySend(final EndpointDirectory.Cursor cursor,
+                      final List<PushMessage> parts,
+                      final DirectorySendListener listener) {
+            this.cursor = cursor;
+            this.parts = parts;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            final List<String> batch = new ArrayList<>(DIRECTORY_SEND_BATCH_SIZE);
+            try {
+                while (batch.size() < DIRECTORY_SEND_BATCH_SIZE && cursor.next()) {
+                    // Disabled endpoints would only fail with EndpointDisabled.
+                    if (cursor.isEnabled() && !isQuarantined(cursor)) {
+                        batch.add(cursor.getEndpointArn());
+                    }
+                }
+            } catch (final IOException ex) {
+                finish(ex);
+                return;
+            }
+            if (batch.isEmpty()) {
+                finish(null);
+                return;
+            }
+            // Fan-outs to the directory never hold up other sends.
+            sendParts(parts, batch, PushDispatcher.Lane.BULK, this);
+        }
+
+        private boolean isQuarantined(final EndpointDirectory.Cursor cursor) {
+            final String targetArn = cursor.getEndpointArn();
+            final long quarantinedAt = endpointQuarantine.getQuarantinedAtMillis(targetArn);
+            if (quarantinedAt < 0) {
+                return false;
+            }
+            if (cursor.getLastSeenMillis() > quarantinedAt) {
+                // SNS listed the endpoint as enabled after it was quarantined, its device re-registered.
+                endpointQuarantine.release(targetArn);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onDispatchComplete(final DispatchResult result) {
+            successCount += result.getSuccessCount();
+            failureCount += result.getFailureCount();
+            listener.onBatchComplete(result);
+            PushExecutors.shared().disk().execute(this);
+        }
+
+        private void finish(final Exception error) {
+            try {
+                cursor.close();
+            } catch (final IOException ex) {
+                Log.w(LOG_TAG, "Failed closing endpoint directory : " + ex);
+            }
+            listener.onSendComplete(successCount, failureCount, error);
+        }
+    }
+
+    /**
+     * Subscribes this device's endpoint to a topic, so it receives everything published to it.
+     * Must be called from a background thread.
+     * @param topicArn topic ARN
+     */
+    public void subscribeToTopic(final String topicArn) {
+        if (!isRegistered()) {
+            throw new IllegalStateException("Device is not registered for push.");
+        }
+        topicSubscriptions.subscribe(endpointArn, topicArn);
+        Log.d(LOG_TAG, "Subscribed to topic: " + topicArn);
+    }
+
+    /**
+     * Removes this device's subscription from a topic. Must be called from a background thread.
+     * The default and configured topics are subscribed to again on the next registration.
+     * @param topicArn topic ARN
+     */
+    public void unsubscribeFromTopic(final String topicArn) {
+        if (topicSubscriptions.unsubscribe(topicArn)) {
+            Log.d(LOG_TAG, "Unsubscribed from topic: " + topicArn);
+        }
+    }
+
+    public boolean isSubscribedToTopic(final String topicArn) {
+        return topicSubscriptions.isSubscribed(topicArn);
+    }
+
+    public Set<String> getSubscribedTopicArns() {
+        return topicSubscriptions.getTopicArns();
+    }
+
+    /**
+     * Publishes a message once to a topic, SNS delivers it to every subscribed endpoint.
+     * Must be called from a background thread, it may wait for the publish rate limiter.
+     * @param topicArn topic ARN
+     * @param message message to publish
+     * @return publish result
+     */
+    public PublishResult publishToTopic(final String topicArn, final PushMessage message) {
+        return topicPublisher.publish(message.toTopicPublishRequest(topicArn));
+    }
+
+    /**
+     * Publishes a message to the default topic. Must be called from a background thread.
+     * @param message message to publish
+     * @return publish result
+     * @throws IllegalStateException if no default topic is configured
+     */
+    public PublishResult broadcast(final PushMessage message) {
+        if (!TopicSubscriptions.isTopicArn(defaultTopicArn)) {
+            throw new IllegalStateException("No default topic configured: " + defaultTopicArn);
+        }
+        return publishToTopic(defaultTopicArn, message);
+    }
+
     public boolean isRegistered() {
         return endpointArn != null && !endpointArn.isEmpty();
     }
@@ -193,6 +850,14 @@ public class PushManager implements GCMTokenHelper.GCMTokenUpdateObserver {
         return endpointArn;
     }
 
+    public String getDefaultTopicArn() {
+        return defaultTopicArn;
+    }
+
+    public String[] getTopicArns() {
+        return topicArns;
+    }
+
 
     public static void setPushStateListener(final PushStateListener listener) {
         PushManager.pushStateListener = listener;
@@ -225,7 +890,42 @@ public class PushManager implements GCMTokenHelper.GCMTokenUpdateObserver {
         return pushEnabled;
     }
 
+    /**
+     * Makes an SNS call guarded by the SNS circuit breaker, retrying transient failures.
+     * @param call the call
+     * @param <T> result type
+     * @return result of the call
+     */
+    private <T> T callSns(final RetryPolicy.Call<T> call) {
+        return snsRetryPolicy.call(snsCircuitBreaker, call);
+    }
+
+    /** @return SNS client of the interactive profile */
     public AmazonSNS getSns() {
-        return sns;
+        return getSns(ConnectionProfile.INTERACTIVE_NAME);
+    }
+
+    /**
+     * @param profileName name of a connection profile
+     * @return SNS client of the profile
+     */
+    public AmazonSNS getSns(final String profileName) {
+        final LazySnsClient client = snsClients.get(profileName);
+        if (client == null) {
+            throw new IllegalArgumentException("Unknown connection profile: " + profileName);
+        }
+        return client.getSns();
+    }
+
+    public PushDispatcher getPushDispatcher() {
+        return pushDispatcher;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public EndpointQuarantine getEndpointQuarantine() {
+        return endpointQuarantine;
     }
 }
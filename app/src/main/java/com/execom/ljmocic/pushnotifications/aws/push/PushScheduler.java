@@ -0,0 +1,252 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
+import com.execom.ljmocic.pushnotifications.receivers.BootCompletedReceiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends payloads at a later time through the {@link PushManager}. Scheduled sends are kept in a
+ * {@link SendSchedule}, so they survive process death and reboots: the schedule is re-armed
+ * whenever the app starts, and an alarm wakes the {@link BootCompletedReceiver} when the next
+ * send is due while the process is not running.
+ *
+ * <p>Due sends are handed to the publish path in batches; the next batch is read once the first
+ * attempt of every send of the previous batch completed, so a large backlog coming due at once
+ * doesn't flood the outbound queue. All schedule access happens on the disk executor.</p>
+ */
+public class PushScheduler {
+
+    private static final String LOG_TAG = PushScheduler.class.getSimpleName();
+
+    // Log of scheduled sends, relative to the app's files directory
+    private static final String SCHEDULE_FILE = "scheduled-sends";
+    // Request code of the alarm's pending intent
+    private static final int ALARM_REQUEST_CODE = 1;
+
+    private final Context context;
+    private final PushManager pushManager;
+    private final SendSchedule schedule;
+    private final int batchSize;
+
+    // Only accessed on the disk executor.
+    private ScheduledFuture<?> armedTick;
+    private long armedAtMillis = -1;
+    private int inFlight;
+    private final List<Long> firedIds = new ArrayList<>();
+
+    /**
+     * @param context context
+     * @param pushManager push manager publishing the due sends
+     * @param tickMillis resolution of due times
+     * @param batchSize sends handed to the publish path at once
+     */
+    public PushScheduler(final Context context,
+                         final PushManager pushManager,
+                         final long tickMillis,
+                         final int batchSize) {
+        this.context = context.getApplicationContext();
+        this.pushManager = pushManager;
+        this.schedule = new SendSchedule(new File(context.getFilesDir(), SCHEDULE_FILE), tickMillis);
+        this.batchSize = batchSize;
+    }
+
+    /** Reads the schedule in the background and fires the sends that came due while the app was not running. */
+    public void start() {
+        fireDue();
+    }
+
+    /**
+     * Schedules a payload to be published to endpoints, compressed or chunked like
+     * {@link PushManager#send(PushPayload.Builder, String, Collection, PushDispatcher.Callback)}.
+     * Compression runs on the calling thread.
+     * @param payload payload to publish
+     * @param subject subject of the publish, may be null
+     * @param targetArns endpoint ARNs
+     * @param dueAtMillis time the payload is published, a time in the past publishes it right away
+     * @return future for the ID of the scheduled send, which completes once the send is on disk
+     * @throws IllegalArgumentException if the payload is too large even when chunked
+     */
+    public Future<Long> schedule(final PushPayload.Builder payload,
+                                 final String subject,
+                                 final Collection<String> targetArns,
+                                 final long dueAtMillis) {
+        return add(pushManager.pack(payload, subject), new ArrayList<>(targetArns), dueAtMillis);
+    }
+
+    /**
+     * Schedules a payload to be published to the whole endpoint directory, like
+     * {@link PushManager#sendToDirectory(PushPayload.Builder, String, PushManager.DirectorySendListener)}.
+     * @param payload payload to publish
+     * @param subject subject of the publish, may be null
+     * @param dueAtMillis time the payload is published
+     * @return future for the ID of the scheduled send
+     * @throws IllegalArgumentException if the payload is too large even when chunked
+     */
+    public Future<Long> scheduleToDirectory(final PushPayload.Builder payload,
+                                            final String subject,
+                                            final long dueAtMillis) {
+        return add(pushManager.pack(payload, subject), null, dueAtMillis);
+    }
+
+    /**
+     * @param id ID of a scheduled send
+     * @return future for true if the send was cancelled, false if it is unknown or already published
+     */
+    public Future<Boolean> cancel(final long id) {
+        final FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                final boolean cancelled = schedule.cancel(id);
+                arm();
+                return cancelled;
+            }
+        });
+        PushExecutors.shared().disk().execute(task);
+        return task;
+    }
+
+    /**
+     * Publishes the sends that are due in the background, e.g. when the alarm went off.
+     * @return future that completes once the first batch was handed to the publish path
+     */
+    public Future<?> fireDue() {
+        final FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, null);
+        PushExecutors.shared().disk().execute(task);
+        return task;
+    }
+
+    private Future<Long> add(final List<PushMessage> parts, final List<String> targetArns, final long dueAtMillis) {
+        final FutureTask<Long> task = new FutureTask<>(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                final long id = schedule.add(parts, targetArns, dueAtMillis);
+                arm();
+                return id;
+            }
+        });
+        PushExecutors.shared().disk().execute(task);
+        return task;
+    }
+
+    private void tick() {
+        if (inFlight > 0) {
+            // The batch in flight reads the next one once it completed.
+            return;
+        }
+        final List<SendSchedule.ScheduledSend> sends;
+        try {
+            sends = schedule.pollDue(System.currentTimeMillis(), batchSize);
+        } catch (final IOException ex) {
+            Log.e(LOG_TAG, "Unreadable send schedule : " + ex, ex);
+            return;
+        }
+        if (sends.isEmpty()) {
+            arm();
+            return;
+        }
+        Log.d(LOG_TAG, "Publishing " + sends.size() + " scheduled sends.");
+        inFlight = sends.size();
+        for (final SendSchedule.ScheduledSend send : sends) {
+            if (send.isDirectorySend()) {
+                pushManager.sendToDirectory(send.getParts(), new PushManager.DirectorySendListener() {
+                    @Override
+                    public void onBatchComplete(final DispatchResult result) {
+                    }
+
+                    @Override
+                    public void onSendComplete(final int successCount, final int failureCount, final Exception error) {
+                        onFired(send.getId());
+                    }
+                });
+            } else {
+                final PushDispatcher.Callback callback = new PushDispatcher.Callback() {
+                    @Override
+                    public void onDispatchComplete(final DispatchResult result) {
+                        onFired(send.getId());
+                    }
+                };
+                pushManager.send(send.getParts(), send.getTargetArns(), PushDispatcher.Lane.NORMAL, callback);
+            }
+        }
+    }
+
+    private void onFired(final long id) {
+        PushExecutors.shared().disk().execute(new Runnable() {
+            @Override
+            public void run() {
+                firedIds.add(id);
+                if (--inFlight > 0) {
+                    return;
+                }
+                try {
+                    // The outbound queue retries what failed, the sends are done here.
+                    schedule.remove(firedIds);
+                } catch (final IOException ex) {
+                    // Published again on the next start.
+                    Log.w(LOG_TAG, "Failed removing published sends from the schedule : " + ex);
+                }
+                firedIds.clear();
+                tick();
+            }
+        });
+    }
+
+    /** Schedules the next tick, and the alarm in case the process dies before it. */
+    private void arm() {
+        if (inFlight > 0) {
+            // Armed again once the batch in flight completed.
+            return;
+        }
+        final long nextAtMillis;
+        try {
+            nextAtMillis = schedule.getNextDueAtMillis();
+        } catch (final IOException ex) {
+            Log.e(LOG_TAG, "Unreadable send schedule : " + ex, ex);
+            return;
+        }
+        if (nextAtMillis == armedAtMillis && armedTick != null && !armedTick.isDone()) {
+            return;
+        }
+        if (armedTick != null) {
+            armedTick.cancel(false);
+            armedTick = null;
+        }
+        armedAtMillis = nextAtMillis;
+        final AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        final PendingIntent alarmIntent = PendingIntent.getBroadcast(context, ALARM_REQUEST_CODE,
+                new Intent(context, BootCompletedReceiver.class).setAction(BootCompletedReceiver.ACTION_SCHEDULED_SEND),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        if (nextAtMillis < 0) {
+            alarmManager.cancel(alarmIntent);
+            return;
+        }
+        alarmManager.set(AlarmManager.RTC_WAKEUP, nextAtMillis, alarmIntent);
+        armedTick = PushExecutors.shared().timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                fireDue();
+            }
+        }, Math.max(0, nextAtMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+}
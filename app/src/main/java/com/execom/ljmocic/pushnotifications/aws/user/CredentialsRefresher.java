@@ -0,0 +1,165 @@
+package com.execom.ljmocic.pushnotifications.aws.user;
+
+import android.util.Log;
+
+import com.amazonaws.SDKGlobalConfiguration;
+import com.amazonaws.auth.CognitoCachingCredentialsProvider;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.retry.CircuitBreaker;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+import com.execom.ljmocic.pushnotifications.utils.SingleFlight;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CredentialsRefresher renews the Cognito session credentials in the background a margin
+ * before they expire, so requests signed with the credentials provider never have to wait for
+ * the Cognito round trip.
+ */
+public class CredentialsRefresher {
+
+    private static final String LOG_TAG = CredentialsRefresher.class.getSimpleName();
+
+    // Jittered delays between failed refreshes, from 30 seconds to 5 minutes
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy.Builder()
+            .withBaseDelayMillis(TimeUnit.SECONDS.toMillis(30))
+            .withMaxDelayMillis(TimeUnit.MINUTES.toMillis(5))
+            .build();
+
+    private final CognitoCachingCredentialsProvider credentialsProvider;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final CircuitBreaker circuitBreaker;
+    private final long refreshMarginMillis;
+    private final PushMetrics.Operation refreshMetrics =
+            PushMetrics.shared().operation(PushMetrics.COGNITO_REFRESH_CREDENTIALS);
+
+    private final SingleFlight<Date> refresh = new SingleFlight<>(new Callable<Date>() {
+        @Override
+        public Date call() {
+            return refreshNow();
+        }
+    });
+
+    // Guarded by this.
+    private ScheduledFuture<?> scheduledRefresh;
+    private long retryDelayMillis = RETRY_POLICY.getBaseDelayMillis();
+    private boolean stopped;
+
+    /**
+     * @param credentialsProvider Cognito credentials provider
+     * @param scheduler executor triggering the refreshes
+     * @param executor executor running the Cognito calls
+     * @param circuitBreaker breaker of the Cognito circuit
+     * @param refreshMarginMillis how long before expiration the credentials are refreshed
+     */
+    public CredentialsRefresher(final CognitoCachingCredentialsProvider credentialsProvider,
+                                final ScheduledExecutorService scheduler,
+                                final Executor executor,
+                                final CircuitBreaker circuitBreaker,
+                                final long refreshMarginMillis) {
+        this.credentialsProvider = credentialsProvider;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.circuitBreaker = circuitBreaker;
+        this.refreshMarginMillis = refreshMarginMillis;
+    }
+
+    /** Schedules the first refresh, or refreshes right away if there are no usable credentials. */
+    public synchronized void start() {
+        stopped = false;
+        scheduleRefresh(credentialsProvider.getSessionCredentitalsExpiration());
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Refreshes the credentials in the background. Concurrent callers share a single refresh.
+     * @return future of the new expiration date, or null if the refresh failed
+     */
+    public Future<Date> refresh() {
+        return refresh.run(executor);
+    }
+
+    private Date refreshNow() {
+        Date expiration = null;
+        try {
+            // A single attempt, failures are rescheduled below instead of retried in place.
+            expiration = RetryPolicy.NONE.call(circuitBreaker, new RetryPolicy.Call<Date>() {
+                @Override
+                public Date call() {
+                    final long start = refreshMetrics.start();
+                    try {
+                        credentialsProvider.refresh();
+                        refreshMetrics.success(start);
+                    } catch (final RuntimeException ex) {
+                        refreshMetrics.failure(start);
+                        throw ex;
+                    }
+                    return credentialsProvider.getSessionCredentitalsExpiration();
+                }
+            });
+            Log.d(LOG_TAG, "Credentials refreshed, valid until " + expiration);
+        } catch (final Exception ex) {
+            Log.e(LOG_TAG, "Credentials refresh failed : " + ex.getMessage(), ex);
+        }
+        synchronized (this) {
+            if (expiration != null) {
+                retryDelayMillis = RETRY_POLICY.getBaseDelayMillis();
+                scheduleRefresh(expiration);
+            } else {
+                scheduleRetry();
+            }
+        }
+        return expiration;
+    }
+
+    private void scheduleRefresh(final Date expiration) {
+        if (stopped) {
+            return;
+        }
+        final long delayMillis;
+        if (expiration == null) {
+            delayMillis = 0;
+        } else {
+            // Same clock skew correction as IdentityManager.areCredentialsExpired().
+            final long currentTime = System.currentTimeMillis() -
+                (long) (SDKGlobalConfiguration.getGlobalTimeOffset() * 1000);
+            delayMillis = Math.max(0, expiration.getTime() - refreshMarginMillis - currentTime);
+        }
+        schedule(delayMillis);
+    }
+
+    private void scheduleRetry() {
+        if (stopped) {
+            return;
+        }
+        retryDelayMillis = RETRY_POLICY.nextDelayMillis(retryDelayMillis);
+        schedule(retryDelayMillis);
+    }
+
+    private void schedule(final long delayMillis) {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        Log.d(LOG_TAG, "Next credentials refresh in " + delayMillis + " ms");
+        scheduledRefresh = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
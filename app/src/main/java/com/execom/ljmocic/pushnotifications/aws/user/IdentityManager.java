@@ -7,11 +7,14 @@ import com.amazonaws.ClientConfiguration;
 import com.amazonaws.SDKGlobalConfiguration;
 import com.amazonaws.auth.CognitoCachingCredentialsProvider;
 import com.execom.ljmocic.pushnotifications.Configuration;
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.retry.CircuitBreaker;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
 import com.execom.ljmocic.pushnotifications.utils.ThreadUtils;
 
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class IdentityManager {
 
@@ -23,15 +26,29 @@ public class IdentityManager {
 
     private static final String LOG_TAG = IdentityManager.class.getSimpleName();
 
+    // Name of the circuit breaker guarding the Cognito calls
+    private static final String COGNITO_CIRCUIT = "cognito";
+
+    // Opens when Cognito is unreachable, shared with the credentials refresher
+    private final CircuitBreaker cognitoCircuitBreaker = new CircuitBreaker.Builder(COGNITO_CIRCUIT).build();
+
     private CognitoCachingCredentialsProvider credentialsProvider;
 
-    private final ExecutorService executorService = Executors.newFixedThreadPool(2);
+    private CredentialsRefresher credentialsRefresher;
 
     public IdentityManager(final Context appContext, final ClientConfiguration clientConfiguration) {
         Log.d(LOG_TAG, "IdentityManager init");
         initializeCognito(appContext, clientConfiguration);
         // Ensures that userID is cached.
         getUserID(null);
+        // Keeps the session credentials warm, so the first request after they expire doesn't
+        // have to wait for Cognito.
+        credentialsRefresher = new CredentialsRefresher(credentialsProvider,
+            PushExecutors.shared().timer(),
+            PushExecutors.shared().network(),
+            cognitoCircuitBreaker,
+            Configuration.AMAZON_COGNITO_CREDENTIALS_REFRESH_MARGIN_MILLIS);
+        credentialsRefresher.start();
     }
 
     private void initializeCognito(final Context context, final ClientConfiguration clientConfiguration) {
@@ -69,22 +86,44 @@ public class IdentityManager {
         return this.credentialsProvider;
     }
 
+    /**
+     * Refreshes the session credentials in the background, joining a refresh already in progress.
+     * @return future of the new expiration date, or null if the refresh failed
+     */
+    public Future<Date> refreshCredentials() {
+        return credentialsRefresher.refresh();
+    }
+
     public String getCachedUserID() {
         return getCredentialsProvider().getCachedIdentityId();
     }
 
     public void getUserID(final IdentityHandler handler) {
 
-        new Thread(new Runnable() {
+        PushExecutors.shared().network().execute(new Runnable() {
             Exception exception = null;
 
             @Override
             public void run() {
                 String identityId = null;
 
+                final PushMetrics.Operation metrics = PushMetrics.shared().operation(PushMetrics.COGNITO_GET_IDENTITY);
                 try {
                     // Retrieve the user identity on the background thread.
-                    identityId = getCredentialsProvider().getIdentityId();
+                    identityId = RetryPolicy.INTERACTIVE.call(cognitoCircuitBreaker, new RetryPolicy.Call<String>() {
+                        @Override
+                        public String call() {
+                            final long start = metrics.start();
+                            try {
+                                final String identityId = getCredentialsProvider().getIdentityId();
+                                metrics.success(start);
+                                return identityId;
+                            } catch (final RuntimeException ex) {
+                                metrics.failure(start);
+                                throw ex;
+                            }
+                        }
+                    });
                 } catch (final Exception exception) {
                     this.exception = exception;
                     Log.e(LOG_TAG, exception.getMessage(), exception);
@@ -110,6 +149,6 @@ public class IdentityManager {
                     });
                 }
             }
-        }).start();
+        });
     }
 }
@@ -3,21 +3,70 @@ package com.execom.ljmocic.pushnotifications.receivers;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.util.Log;
 
+import com.execom.ljmocic.pushnotifications.aws.AWSMobileClient;
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
 import com.execom.ljmocic.pushnotifications.services.PushListenerService;
 
+import java.util.concurrent.Callable;
+
 public class BootCompletedReceiver extends BroadcastReceiver {
 
+    private static final String LOG_TAG = BootCompletedReceiver.class.getSimpleName();
+
+    // Action of the alarm set by the push scheduler for the next scheduled send
+    public static final String ACTION_SCHEDULED_SEND =
+            "com.execom.ljmocic.pushnotifications.action.SCHEDULED_SEND";
+
     // Gets notified when device is booted, then starts service
     @Override
     public void onReceive(Context context, Intent intent) {
 
-        if (intent.getAction().equals("android.intent.action.BOOT_COMPLETED")) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             Intent pushIntent = new Intent(context, PushListenerService.class);
             context.startService(pushIntent);
+            // Re-arms the scheduled sends, and publishes those that came due while powered off.
+            AWSMobileClient.initializeMobileClientIfNecessary(context.getApplicationContext());
+            // Keeps the process up until the AWS components are initialized.
+            final PendingResult result = goAsync();
+            finishWhenDone(result, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    AWSMobileClient.defaultMobileClient().getPushManagerAsync().get();
+                    return null;
+                }
+            });
+        } else if (ACTION_SCHEDULED_SEND.equals(intent.getAction())) {
+            AWSMobileClient.initializeMobileClientIfNecessary(context.getApplicationContext());
+            // Keeps the process up until the due sends were handed to the publish path.
+            final PendingResult result = goAsync();
+            finishWhenDone(result, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    AWSMobileClient.defaultMobileClient().getPushScheduler().fireDue().get();
+                    return null;
+                }
+            });
         }
 
     }
 
-}
+    private static void finishWhenDone(final PendingResult result, final Callable<Void> work) {
+        PushExecutors.shared().callbacks().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.call();
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (final Exception ex) {
+                    Log.e(LOG_TAG, "Failed handling the broadcast.", ex);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
 
+}
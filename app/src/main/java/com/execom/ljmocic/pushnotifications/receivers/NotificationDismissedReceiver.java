@@ -0,0 +1,33 @@
+package com.execom.ljmocic.pushnotifications.receivers;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.execom.ljmocic.pushnotifications.services.NotificationCoalescer;
+
+/** Gets notified when the user dismisses a push notification, so its message count starts over. */
+public class NotificationDismissedReceiver extends BroadcastReceiver {
+
+    private static final String ACTION_DISMISSED =
+            "com.execom.ljmocic.pushnotifications.action.NOTIFICATION_DISMISSED";
+    private static final String EXTRA_GROUP_KEY = "groupKey";
+
+    /**
+     * @param context context
+     * @param groupKey group of the dismissed notification, null for the summary of all groups
+     * @return explicit intent delivered to this receiver
+     */
+    public static Intent newIntent(final Context context, final String groupKey) {
+        return new Intent(context, NotificationDismissedReceiver.class)
+                .setAction(ACTION_DISMISSED)
+                .putExtra(EXTRA_GROUP_KEY, groupKey);
+    }
+
+    @Override
+    public void onReceive(final Context context, final Intent intent) {
+        if (ACTION_DISMISSED.equals(intent.getAction())) {
+            NotificationCoalescer.getInstance(context).onDismissed(intent.getStringExtra(EXTRA_GROUP_KEY));
+        }
+    }
+}
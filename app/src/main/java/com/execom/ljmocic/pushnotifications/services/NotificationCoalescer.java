@@ -0,0 +1,234 @@
+package com.execom.ljmocic.pushnotifications.services;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+
+import com.execom.ljmocic.pushnotifications.MainActivity;
+import com.execom.ljmocic.pushnotifications.R;
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
+import com.execom.ljmocic.pushnotifications.receivers.NotificationDismissedReceiver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The NotificationCoalescer batches messages that arrive within a short window into a single
+ * notification per group (thread or topic), showing the message count and the latest lines.
+ * A burst of pushes results in a handful of notification updates instead of one per message.
+ *
+ * <p>The first message of a window is shown right away on the caller's thread, while the GCM
+ * listener still holds its wake lock; a wake lock of our own keeps the device awake until the
+ * messages that arrived later in the window are shown. Dismissing a notification resets the
+ * message count of its group.</p>
+ */
+public class NotificationCoalescer {
+
+    // Messages arriving within this window are shown with a single notification update.
+    private static final long COALESCING_WINDOW_MILLIS = 500;
+    // Number of latest messages shown in the expanded notification
+    private static final int MAX_LINES = 5;
+    // Android bundles all notifications of the app under this group
+    private static final String NOTIFICATION_GROUP = "push_messages";
+    // Upper bound of the wake lock held until the end of a window, in case the flush never runs
+    private static final long WAKE_LOCK_TIMEOUT_MILLIS = 10 * COALESCING_WINDOW_MILLIS;
+
+    private static NotificationCoalescer instance;
+
+    private static class Group {
+        final String key;
+        final Deque<String> latestMessages = new ArrayDeque<>(MAX_LINES);
+        int count;
+        boolean dirty;
+
+        Group(final String key) {
+            this.key = key;
+        }
+
+        int notificationId() {
+            return key.hashCode();
+        }
+    }
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final PowerManager.WakeLock wakeLock;
+
+    // Guarded by this.
+    private final Map<String, Group> groups = new HashMap<>();
+    private boolean flushScheduled;
+
+    private NotificationCoalescer(final Context context) {
+        this.context = context.getApplicationContext();
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        final PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, NotificationCoalescer.class.getName());
+        this.wakeLock.setReferenceCounted(false);
+    }
+
+    public static synchronized NotificationCoalescer getInstance(final Context context) {
+        if (instance == null) {
+            instance = new NotificationCoalescer(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a message to its group. The first message of a window is shown before this returns,
+     * later ones once the window ends, on a background thread.
+     * @param groupKey thread or topic the message belongs to
+     * @param message message text
+     */
+    public void offer(final String groupKey, final String message) {
+        synchronized (this) {
+            Group group = groups.get(groupKey);
+            if (group == null) {
+                group = new Group(groupKey);
+                groups.put(groupKey, group);
+            }
+            if (group.latestMessages.size() == MAX_LINES) {
+                group.latestMessages.removeFirst();
+            }
+            group.latestMessages.addLast(message);
+            group.count++;
+            group.dirty = true;
+
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        wakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+        flush(false);
+        PushExecutors.shared().timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                PushExecutors.shared().callbacks().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            flush(true);
+                        } finally {
+                            wakeLock.release();
+                        }
+                    }
+                });
+            }
+        }, COALESCING_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Removes all notifications and resets the message counts, e.g. when the user opened the app. */
+    public void clear() {
+        synchronized (this) {
+            groups.clear();
+        }
+        notificationManager.cancelAll();
+    }
+
+    /**
+     * Resets the message count of a group whose notification the user dismissed.
+     * @param groupKey group of the notification, null if the summary of all groups was dismissed
+     */
+    public void onDismissed(final String groupKey) {
+        synchronized (this) {
+            if (groupKey == null) {
+                groups.clear();
+            } else {
+                groups.remove(groupKey);
+            }
+        }
+    }
+
+    private void flush(final boolean endOfWindow) {
+        final List<Notification> notifications = new ArrayList<>();
+        final List<Integer> ids = new ArrayList<>();
+        final int groupCount;
+        int totalCount = 0;
+        synchronized (this) {
+            if (endOfWindow) {
+                flushScheduled = false;
+            }
+            for (Group group : groups.values()) {
+                totalCount += group.count;
+                if (group.dirty) {
+                    group.dirty = false;
+                    notifications.add(buildGroupNotification(group));
+                    ids.add(group.notificationId());
+                }
+            }
+            groupCount = groups.size();
+        }
+        for (int i = 0; i < notifications.size(); i++) {
+            notificationManager.notify(ids.get(i), notifications.get(i));
+        }
+        if (groupCount > 1 && !notifications.isEmpty()) {
+            notificationManager.notify(NOTIFICATION_GROUP.hashCode(), buildSummaryNotification(totalCount));
+        }
+    }
+
+    private Notification buildGroupNotification(final Group group) {
+        final String latest = group.latestMessages.peekLast();
+        final NotificationCompat.Builder builder = baseBuilder(group.notificationId(), group.key)
+                .setContentTitle(context.getString(R.string.message_received))
+                .setGroup(NOTIFICATION_GROUP);
+
+        if (group.count == 1) {
+            return builder.setContentText(latest).build();
+        }
+
+        final NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle()
+                .setBigContentTitle(context.getResources().getQuantityString(
+                        R.plurals.messages_received, group.count, group.count));
+        for (String message : group.latestMessages) {
+            style.addLine(message);
+        }
+        return builder
+                .setContentTitle(context.getResources().getQuantityString(
+                        R.plurals.messages_received, group.count, group.count))
+                .setContentText(latest)
+                .setNumber(group.count)
+                .setStyle(style)
+                .build();
+    }
+
+    private Notification buildSummaryNotification(final int totalCount) {
+        return baseBuilder(NOTIFICATION_GROUP.hashCode(), null)
+                .setContentTitle(context.getResources().getQuantityString(
+                        R.plurals.messages_received, totalCount, totalCount))
+                .setNumber(totalCount)
+                .setGroup(NOTIFICATION_GROUP)
+                .setGroupSummary(true)
+                .build();
+    }
+
+    private NotificationCompat.Builder baseBuilder(final int requestCode, final String groupKey) {
+        Intent notificationIntent = new Intent(context, MainActivity.class);
+
+        // retrieves the old activity if it running in background
+        notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+        // One pending intent per notification, updated in place instead of created per message
+        PendingIntent contentIntent = PendingIntent.getActivity(context, requestCode, notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        // Resets the group's message count when the user swipes the notification away
+        PendingIntent deleteIntent = PendingIntent.getBroadcast(context, requestCode,
+                NotificationDismissedReceiver.newIntent(context, groupKey), PendingIntent.FLAG_UPDATE_CURRENT);
+
+        return new NotificationCompat.Builder(context).setSmallIcon(
+                R.mipmap.ic_launcher)
+                .setDefaults(Notification.DEFAULT_SOUND)
+                .setAutoCancel(true)
+                .setContentIntent(contentIntent)
+                .setDeleteIntent(deleteIntent)
+                .setPriority(Notification.PRIORITY_HIGH);
+    }
+}
@@ -1,55 +1,201 @@
 package com.execom.ljmocic.pushnotifications.services;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
 import android.os.Bundle;
-import android.support.v4.app.NotificationCompat;
+import android.util.Log;
 
-import com.execom.ljmocic.pushnotifications.MainActivity;
-import com.execom.ljmocic.pushnotifications.R;
+import com.execom.ljmocic.pushnotifications.aws.PushExecutors;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.push.ChunkReassembler;
+import com.execom.ljmocic.pushnotifications.aws.push.MessageDeduplicator;
+import com.execom.ljmocic.pushnotifications.aws.push.PayloadPacker;
+import com.execom.ljmocic.pushnotifications.aws.push.PushPayloadReader;
+import com.execom.ljmocic.pushnotifications.aws.push.PushTrace;
 import com.google.android.gms.gcm.GcmListenerService;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 public class PushListenerService extends GcmListenerService {
 
     private static final String LOG_TAG = PushListenerService.class.getSimpleName();
 
-    // Gets data from received Bundle, and displays notification
+    // Keys in the push data naming the thread or topic a message belongs to
+    private static final String KEY_THREAD = "thread";
+    private static final String KEY_TOPIC = "topic";
+
+    // Key of the GCM message ID, used when the sender set no ID; SNS/GCM deliver at least once
+    private static final String KEY_GCM_MESSAGE_ID = "google.message_id";
+    // Key of the time GCM accepted the message from SNS
+    private static final String KEY_GCM_SENT_TIME = "google.sent_time";
+
+    // File holding the recently seen message IDs, relative to the app's files directory
+    private static final String DEDUPLICATION_FILE_NAME = "inbound-message-ids.bin";
+    // Changes are written at most once per this delay
+    private static final long DEDUPLICATION_SAVE_DELAY_MILLIS = 1000;
+
+    private static MessageDeduplicator deduplicator;
+    // Chunks of large messages, until all of them arrived
+    private static final ChunkReassembler reassembler = new ChunkReassembler(ChunkReassembler.DEFAULT_MAX_GROUPS,
+            ChunkReassembler.DEFAULT_MAX_CHARS, ChunkReassembler.DEFAULT_TIMEOUT_MILLIS);
+    private static final AtomicBoolean deduplicatorSaveScheduled = new AtomicBoolean();
+
+    // Messages may be delivered on several threads, each re-uses its own reader
+    private static final ThreadLocal<BundleReader> readers = new ThreadLocal<BundleReader>() {
+        @Override
+        protected BundleReader initialValue() {
+            return new BundleReader();
+        }
+    };
+
+    // Gets data from received Bundle, and queues it for the coalesced notification of its group
     @Override
     public void onMessageReceived(final String from, final Bundle data) {
-        String message = getMessage(data);
-        displayNotification(message);
+        final long receivedAtMillis = PushTrace.currentTimeMillis();
+        final String messageId = getMessageId(data);
+        if (messageId != null && getDeduplicator(this).isDuplicate(messageId)) {
+            Log.d(LOG_TAG, "Dropping redelivered message " + messageId + " (" +
+                    deduplicator.getHitCount() + " duplicates so far)");
+            return;
+        }
+        if (messageId != null) {
+            scheduleDeduplicatorSave(this);
+        }
+
+        final String message = unpackMessage(data, receivedAtMillis);
+        if (message == null) {
+            return;
+        }
+        // Recorded once per message, when its last chunk arrived.
+        recordDelivery(data, receivedAtMillis);
+        NotificationCoalescer.getInstance(this).offer(getGroupKey(from, data), message);
     }
 
-    // Checks if message is default or contains JSON packed with data
-    public static String getMessage(Bundle data) {
-        return data.containsKey("default") ? data.getString("default") : data.getString("message", "");
+    // Reads the message from the payload data, or from the default message for plain publishes
+    public static String getMessage(final Bundle data) {
+        return readers.get().reset(data).getMessage();
     }
 
-    // Sets up notification and handles intent
-    private void displayNotification(final String message) {
+    // Reassembles chunked messages and decompresses them, null while chunks are missing or if the message is corrupt
+    private static String unpackMessage(final Bundle data, final long receivedAtMillis) {
+        final PushPayloadReader reader = readers.get().reset(data);
+        String message = reader.getMessage();
+        final String chunkGroupId = reader.getChunkGroupId();
+        if (chunkGroupId != null) {
+            message = reassembler.offer(chunkGroupId, reader.getChunkIndex(), reader.getChunkCount(), message,
+                    receivedAtMillis);
+            if (message == null) {
+                Log.d(LOG_TAG, "Buffered chunk " + reader.getChunkIndex() + " of " + chunkGroupId);
+                return null;
+            }
+        }
+        try {
+            return PayloadPacker.unpack(reader.getEncoding(), message);
+        } catch (final IOException ex) {
+            Log.e(LOG_TAG, "Dropping undecodable message : " + ex, ex);
+            return null;
+        }
+    }
+
+    // Prefers the ID set by the sender, which survives SNS retries, over the GCM message ID
+    public static String getMessageId(final Bundle data) {
+        final String messageId = readers.get().reset(data).getMessageId();
+        return messageId != null ? messageId : data.getString(KEY_GCM_MESSAGE_ID);
+    }
 
-        Intent notificationIntent = new Intent(this, MainActivity.class);
+    // Records how long a traced message took from the sender, and how much of that was spent in GCM
+    private static void recordDelivery(final Bundle data, final long receivedAtMillis) {
+        final PushPayloadReader reader = readers.get().reset(data);
+        final long sentAtMillis = reader.getSentAtMillis();
+        if (sentAtMillis < 0) {
+            return;
+        }
+        final long gcmSentAtMillis = getGcmSentTime(data);
+        final long latencyMillis = PushTrace.recordDelivery(PushMetrics.shared(), sentAtMillis, gcmSentAtMillis, receivedAtMillis);
+        Log.d(LOG_TAG, "Trace " + reader.getTraceId() + " delivered in " + latencyMillis + " ms" +
+                (gcmSentAtMillis >= 0 ? " (" + (receivedAtMillis - gcmSentAtMillis) + " ms in GCM)" : ""));
+    }
+
+    private static long getGcmSentTime(final Bundle data) {
+        final Object sentTime = data.get(KEY_GCM_SENT_TIME);
+        if (sentTime instanceof Long) {
+            return (Long) sentTime;
+        }
+        if (sentTime instanceof String) {
+            try {
+                return Long.parseLong((String) sentTime);
+            } catch (final NumberFormatException ex) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the de-duplicator of inbound messages, loading the IDs seen before the process
+     * was restarted on first use. Its hit and miss counts show how many redeliveries arrive.
+     */
+    public static synchronized MessageDeduplicator getDeduplicator(final Context context) {
+        if (deduplicator == null) {
+            deduplicator = new MessageDeduplicator(MessageDeduplicator.DEFAULT_CAPACITY);
+            try {
+                deduplicator.load(new File(context.getFilesDir(), DEDUPLICATION_FILE_NAME));
+            } catch (final IOException ex) {
+                Log.w(LOG_TAG, "Unable to load seen message IDs : " + ex);
+            }
+        }
+        return deduplicator;
+    }
+
+    private static void scheduleDeduplicatorSave(final Context context) {
+        if (!deduplicatorSaveScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        final File file = new File(context.getFilesDir(), DEDUPLICATION_FILE_NAME);
+        PushExecutors.shared().disk().schedule(new Runnable() {
+            @Override
+            public void run() {
+                deduplicatorSaveScheduled.set(false);
+                try {
+                    deduplicator.save(file);
+                } catch (final IOException ex) {
+                    Log.w(LOG_TAG, "Unable to save seen message IDs : " + ex);
+                }
+            }
+        }, DEDUPLICATION_SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Messages are grouped by thread, then by topic, then by sender (which is the topic for topic messages)
+    public static String getGroupKey(final String from, final Bundle data) {
+        final PushPayloadReader reader = readers.get().reset(data);
+        final String thread = reader.getString(KEY_THREAD);
+        if (thread != null) {
+            return thread;
+        }
+        final String topic = reader.getString(KEY_TOPIC);
+        if (topic != null) {
+            return topic;
+        }
+        return from != null ? from : "";
+    }
 
-        // retrieves the old activity if it running in background
-        notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+    // Payload reader over a GCM data bundle
+    private static class BundleReader implements PushPayloadReader.Source {
 
-        int requestID = (int) System.currentTimeMillis();
-        PendingIntent contentIntent = PendingIntent.getActivity(this, requestID, notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        private final PushPayloadReader reader = new PushPayloadReader();
+        private Bundle data;
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this).setSmallIcon(
-                R.mipmap.ic_launcher)
-                .setContentTitle(getString(R.string.message_received))
-                .setContentText(message)
-                .setDefaults(Notification.DEFAULT_SOUND)
-                .setAutoCancel(true)
-                .setContentIntent(contentIntent)
-                .setPriority(Notification.PRIORITY_HIGH);
+        PushPayloadReader reset(final Bundle data) {
+            this.data = data;
+            return reader.reset(this);
+        }
 
-        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        notificationManager.notify(0, builder.build());
+        @Override
+        public String getString(final String key) {
+            return data.getString(key);
+        }
     }
 
 }
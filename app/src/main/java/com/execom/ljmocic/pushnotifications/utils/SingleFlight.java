@@ -0,0 +1,63 @@
+package com.execom.ljmocic.pushnotifications.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent executions of the same task: while a run is in flight, every caller
+ * gets the future of that run instead of starting another one.
+ * @param <T> result type
+ */
+public class SingleFlight<T> {
+
+    private final Object lock = new Object();
+    private final Callable<T> task;
+    private FutureTask<T> inFlight;
+
+    public SingleFlight(final Callable<T> task) {
+        this.task = task;
+    }
+
+    /**
+     * Starts the task on the executor, or joins the run that is already in flight.
+     * @param executor executor to start a new run on
+     * @return future of the shared run
+     */
+    public Future<T> run(final Executor executor) {
+        final FutureTask<T> created;
+        synchronized (lock) {
+            if (inFlight != null) {
+                return inFlight;
+            }
+            created = new FutureTask<T>(task) {
+                @Override
+                protected void done() {
+                    synchronized (lock) {
+                        if (inFlight == this) {
+                            inFlight = null;
+                        }
+                    }
+                }
+            };
+            inFlight = created;
+        }
+        try {
+            executor.execute(created);
+        } catch (final RuntimeException ex) {
+            synchronized (lock) {
+                inFlight = null;
+            }
+            throw ex;
+        }
+        return created;
+    }
+
+    /** @return true if a run is currently in flight */
+    public boolean isInFlight() {
+        synchronized (lock) {
+            return inFlight != null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Cost of checking a message ID, for redeliveries (hits) and new messages evicting old ones (misses). */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDeduplicatorBenchmark {
+
+    @Param({"1024", "16384"})
+    public int capacity;
+
+    private MessageDeduplicator hitDeduplicator;
+    private MessageDeduplicator missDeduplicator;
+    private String[] seenIds;
+    private String[] newIds;
+    private int hitIndex;
+    private int missIndex;
+
+    @Setup
+    public void setUp() {
+        hitDeduplicator = new MessageDeduplicator(capacity);
+        seenIds = new String[capacity];
+        for (int i = 0; i < capacity; i++) {
+            seenIds[i] = "0a1b2c3d-seen-" + i;
+            hitDeduplicator.isDuplicate(seenIds[i]);
+        }
+        missDeduplicator = new MessageDeduplicator(capacity);
+        // Cycling through more IDs than fit, so every check misses and evicts the oldest ID.
+        newIds = new String[capacity * 4];
+        for (int i = 0; i < newIds.length; i++) {
+            newIds[i] = "0a1b2c3d-new-" + i;
+        }
+    }
+
+    @Benchmark
+    public boolean duplicate() {
+        final String id = seenIds[hitIndex];
+        hitIndex = hitIndex + 1 == seenIds.length ? 0 : hitIndex + 1;
+        return hitDeduplicator.isDuplicate(id);
+    }
+
+    @Benchmark
+    public boolean newMessage() {
+        final String id = newIds[missIndex];
+        missIndex = missIndex + 1 == newIds.length ? 0 : missIndex + 1;
+        return missDeduplicator.isDuplicate(id);
+    }
+}
@@ -0,0 +1,81 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of compressing and chunking a payload on the sending side, and of reassembling and
+ * decompressing it on the receiving side. The size ratio of each message is printed on setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadPackerBenchmark {
+
+    private static final String[] WORDS = ("the a of to and in is for on with that your new order has been shipped "
+            + "delivery update account payment received meeting tomorrow reminder please check status").split(" ");
+
+    // Message lengths: a notification, a long notification, and an article that needs chunks
+    @Param({"1024", "4096", "32768"})
+    public int messageLength;
+
+    private PushPayload.Builder builder;
+    private String[] chunks;
+    private int chunkCount;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(messageLength);
+        final StringBuilder text = new StringBuilder(messageLength + 16);
+        while (text.length() < messageLength) {
+            text.append(WORDS[(int) (Math.abs(random.nextGaussian()) * WORDS.length / 3) % WORDS.length]);
+            text.append(random.nextInt(12) == 0 ? ". " : " ");
+        }
+        final String message = text.substring(0, messageLength);
+        builder = new PushPayload.Builder().withMessage(message).withTitle("Title").withMessageId("message-id");
+
+        final List<PushPayload> parts = PayloadPacker.DEFAULT.pack(builder);
+        chunkCount = parts.size();
+        chunks = new String[chunkCount];
+        int packedLength = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = parts.get(i).getMessage();
+            packedLength += chunks[i].length();
+        }
+        System.out.println(String.format("%n%d characters packed into %d in %d part(s), ratio %.2f",
+                messageLength, packedLength, chunkCount, (double) packedLength / messageLength));
+    }
+
+    @Benchmark
+    public List<PushPayload> pack() {
+        return PayloadPacker.DEFAULT.pack(builder);
+    }
+
+    @Benchmark
+    public String reassembleAndUnpack() throws IOException {
+        final ChunkReassembler reassembler = new ChunkReassembler(ChunkReassembler.DEFAULT_MAX_GROUPS,
+                ChunkReassembler.DEFAULT_MAX_CHARS, ChunkReassembler.DEFAULT_TIMEOUT_MILLIS);
+        String message = null;
+        for (int i = 0; i < chunkCount; i++) {
+            message = reassembler.offer("message-id", i, chunkCount, chunks[i], 0);
+        }
+        return PayloadPacker.unpack(PayloadPacker.ENCODING_GZIP, message);
+    }
+}
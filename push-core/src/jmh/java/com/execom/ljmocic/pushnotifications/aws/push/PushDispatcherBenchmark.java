@@ -0,0 +1,85 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.AmazonSNS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Fan-out of one message to many endpoints against a fake SNS; one operation is one fan-out. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushDispatcherBenchmark {
+
+    private static final String PLATFORM_APPLICATION_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/benchmark";
+
+    @Param({"10", "100", "1000"})
+    public int targets;
+
+    @Param({"1", "4", "16"})
+    public int concurrency;
+
+    // Simulated SNS round trip; 0 measures the dispatcher's own overhead
+    @Param({"0", "1000"})
+    public long latencyMicros;
+
+    private ExecutorService executor;
+    private PushDispatcher dispatcher;
+    private PushMessage message;
+    private List<String> targetArns;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder()
+                .withLatency(FakeAmazonSNS.fixedLatency(latencyMicros))
+                .withSeed(42)
+                .build();
+        executor = Executors.newFixedThreadPool(concurrency);
+        dispatcher = new PushDispatcher(new SnsClientProvider() {
+            @Override
+            public AmazonSNS getSns() {
+                return sns;
+            }
+        }, executor, executor, concurrency);
+        message = new PushPayload.Builder()
+                .withMessage("Benchmark message")
+                .withTitle("Benchmark")
+                .withMessageId("message-id")
+                .build()
+                .toPushMessage("Benchmark");
+        targetArns = new ArrayList<>(targets);
+        for (int i = 0; i < targets; i++) {
+            targetArns.add(sns.addEndpoint(PLATFORM_APPLICATION_ARN, "token-" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public DispatchResult fanOut() throws InterruptedException {
+        return dispatcher.dispatchAndWait(message, targetArns);
+    }
+}
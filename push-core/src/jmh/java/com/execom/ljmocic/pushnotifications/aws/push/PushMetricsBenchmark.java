@@ -0,0 +1,40 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Cost of recording one publish, as done by every fan-out worker. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushMetricsBenchmark {
+
+    private final PushMetrics.Operation operation = new PushMetrics().operation(PushMetrics.SNS_PUBLISH);
+
+    @Benchmark
+    @Threads(1)
+    public void recordSingleThread() {
+        operation.record(1234, true);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordFourThreads() {
+        operation.record(1234, true);
+    }
+}
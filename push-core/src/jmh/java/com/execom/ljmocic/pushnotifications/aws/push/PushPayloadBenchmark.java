@@ -0,0 +1,107 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding a payload and of reading it back on the receiving side. Run with
+ * {@code -prof gc} to see the bytes allocated per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushPayloadBenchmark {
+
+    @Param({"32", "1024"})
+    public int messageLength;
+
+    private String message;
+    private PushPayload.Template template;
+    private PushPayloadReader reader;
+    private PushPayloadReader.Source dataSource;
+    private PushPayloadReader.Source defaultJsonSource;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder text = new StringBuilder(messageLength);
+        for (int i = 0; i < messageLength; i++) {
+            // Every 16th character needs escaping.
+            text.append(i % 16 == 15 ? '"' : (char) ('a' + i % 26));
+        }
+        message = text.toString();
+        template = newBuilder().toTemplate();
+        reader = new PushPayloadReader();
+
+        final Map<String, String> data = new HashMap<>();
+        data.put(PushPayload.KEY_MESSAGE, message);
+        data.put(PushPayload.KEY_TITLE, "Title");
+        data.put(PushPayload.KEY_MESSAGE_ID, "message-id");
+        data.put("sentAt", "1476000000000");
+        dataSource = mapSource(data);
+
+        final Map<String, String> defaultJson = new HashMap<>();
+        defaultJson.put(PushPayload.KEY_DEFAULT, "{\"thread\":\"t1\",\"nested\":{\"a\":[1,2,3]},\"messageId\":\"message-id\","
+                + "\"sentAt\":1476000000000,\"message\":\"" + Json.escape(message) + "\"}");
+        defaultJsonSource = mapSource(defaultJson);
+    }
+
+    @Benchmark
+    public String encodeWithBuilder() {
+        return newBuilder().withMessage(message).withMessageId("message-id").build().toJson();
+    }
+
+    @Benchmark
+    public String encodeWithTemplate() {
+        return template.render(message, "message-id").toJson();
+    }
+
+    @Benchmark
+    public void readBundleFields(final Blackhole blackhole) {
+        reader.reset(dataSource);
+        blackhole.consume(reader.getMessage());
+        blackhole.consume(reader.getMessageId());
+        blackhole.consume(reader.getLong("sentAt", 0));
+    }
+
+    @Benchmark
+    public void readDefaultJsonFields(final Blackhole blackhole) {
+        reader.reset(defaultJsonSource);
+        blackhole.consume(reader.getString(PushPayload.KEY_MESSAGE));
+        blackhole.consume(reader.getMessageId());
+        blackhole.consume(reader.getLong("sentAt", 0));
+    }
+
+    private static PushPayload.Builder newBuilder() {
+        return new PushPayload.Builder()
+                .withTitle("Title")
+                .withData("thread", "t1")
+                .withData("topic", "news")
+                .withApns(true);
+    }
+
+    private static PushPayloadReader.Source mapSource(final Map<String, String> data) {
+        return new PushPayloadReader.Source() {
+            @Override
+            public String getString(final String key) {
+                return data.get(key);
+            }
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of scheduling and cancelling a send with a backlog of pending sends, which should not
+ * grow with the backlog.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerWheelBenchmark {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Pending sends already in the wheel
+    @Param({"1000", "1000000"})
+    public int backlog;
+
+    private TimerWheel<Long> wheel;
+    private Random random;
+
+    @Setup
+    public void setUp() {
+        wheel = new TimerWheel<>(SendSchedule.DEFAULT_TICK_MILLIS, TimerWheel.DEFAULT_LEVELS, 0);
+        random = new Random(11);
+        for (int i = 0; i < backlog; i++) {
+            final long dueAt = (long) (random.nextDouble() * 30 * DAY_MILLIS);
+            wheel.schedule(dueAt, dueAt);
+        }
+    }
+
+    @Benchmark
+    public boolean scheduleAndCancel() {
+        final long dueAt = (long) (random.nextDouble() * 30 * DAY_MILLIS);
+        return wheel.cancel(wheel.schedule(dueAt, dueAt));
+    }
+}
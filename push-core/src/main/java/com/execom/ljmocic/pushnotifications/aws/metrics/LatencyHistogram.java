@@ -0,0 +1,139 @@
+package com.execom.ljmocic.pushnotifications.aws.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in microseconds with log-linear buckets: values below 16 µs are
+ * exact, above that every power of two is split into 8 buckets, so percentiles are within
+ * 12.5% of the recorded value. Recording is a few atomic increments and allocates nothing.
+ */
+public class LatencyHistogram {
+
+    // Sub-buckets per power of two, as a power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this get a bucket each
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    // Largest value told apart, about 19 hours; larger values land in the last bucket
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /** Immutable copy of a histogram's state. */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sumMicros;
+        private final long maxMicros;
+
+        Snapshot(final long[] counts, final long count, final long sumMicros, final long maxMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double) sumMicros / count;
+        }
+
+        /**
+         * @param percentile percentile between 0 and 100
+         * @return upper bound of the bucket holding the percentile, at most the maximum
+         */
+        public long getPercentileMicros(final double percentile) {
+            long total = 0;
+            for (long bucketCount : counts) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "count=%d mean=%.0fus p50=%dus p90=%dus p99=%dus max=%dus",
+                    count, getMeanMicros(), getPercentileMicros(50), getPercentileMicros(90),
+                    getPercentileMicros(99), maxMicros);
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records the time elapsed since the start.
+     * @param startNanos {@link System#nanoTime()} at the start of the operation
+     */
+    public void recordSince(final long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records one latency.
+     * @param micros latency in microseconds, negative values count as 0
+     */
+    public void record(final long micros) {
+        final long value = Math.max(0, micros);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sumMicros.addAndGet(value);
+        long max = maxMicros.get();
+        while (value > max && !maxMicros.compareAndSet(max, value)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /** @return copy of the state; concurrent recordings may be partially included */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, count.get(), sumMicros.get(), maxMicros.get());
+    }
+
+    static int bucketOf(final long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(final int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,268 @@
+package com.execom.ljmocic.pushnotifications.aws.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the calls made by the push client. Metrics are created on
+ * first use; callers on hot paths keep the returned instances, after which recording is lock-free.
+ */
+public class PushMetrics {
+
+    // SNS calls
+    public static final String SNS_CREATE_PLATFORM_ENDPOINT = "sns.createPlatformEndpoint";
+    public static final String SNS_GET_ENDPOINT_ATTRIBUTES = "sns.getEndpointAttributes";
+    public static final String SNS_SET_ENDPOINT_ATTRIBUTES = "sns.setEndpointAttributes";
+    public static final String SNS_SUBSCRIBE = "sns.subscribe";
+    public static final String SNS_PUBLISH = "sns.publish";
+    // Time publishes waited for the rate limiter, and publishes rejected by SNS for their rate
+    public static final String SNS_PUBLISH_RATE_LIMIT_WAIT = "sns.publish.rateLimitWait";
+    public static final String SNS_PUBLISH_THROTTLED = "sns.publish.throttled";
+    // Time publishes waited for a dispatcher worker, per lane
+    public static final String DISPATCH_QUEUE_WAIT_INTERACTIVE = "dispatch.interactive.queueWait";
+    public static final String DISPATCH_QUEUE_WAIT_NORMAL = "dispatch.normal.queueWait";
+    public static final String DISPATCH_QUEUE_WAIT_BULK = "dispatch.bulk.queueWait";
+    // Endpoints quarantined after SNS reported them dead, and failed writes of the quarantine
+    public static final String ENDPOINTS_QUARANTINED = "endpoints.quarantined";
+    public static final String ENDPOINTS_QUARANTINE_WRITE_FAILURE = "endpoints.quarantine.writeFailure";
+    // Quarantined endpoints deleted from SNS
+    public static final String SNS_DELETE_ENDPOINT = "sns.deleteEndpoint";
+    // Journaled publishes given up on after too many attempts or too long in the outbound queue
+    public static final String OUTBOUND_EXPIRED = "outbound.expired";
+    // Payloads compressed or split into chunks by the sender, and chunk groups the receiver dropped
+    public static final String PAYLOAD_COMPRESSED = "payload.compressed";
+    public static final String PAYLOAD_CHUNKED = "payload.chunked";
+    public static final String PAYLOAD_CHUNKS_EXPIRED = "payload.chunks.expired";
+    public static final String PAYLOAD_CHUNKS_EVICTED = "payload.chunks.evicted";
+    // Scheduled sends handed to the publish path, their delay past the due time, and sends
+    // dropped because their schedule record was corrupt
+    public static final String SCHEDULED_SENDS_FIRED = "schedule.fired";
+    public static final String SCHEDULED_SENDS_LATENESS = "schedule.lateness";
+    public static final String SCHEDULED_SENDS_DROPPED = "schedule.dropped";
+    // GCM and Cognito calls
+    public static final String GCM_GET_TOKEN = "gcm.getToken";
+    // Prefix of the timings of each GCM token observer, suffixed with the observer's class name
+    public static final String GCM_TOKEN_OBSERVER = "gcm.tokenObserver";
+    public static final String COGNITO_GET_IDENTITY = "cognito.getIdentityId";
+    public static final String COGNITO_REFRESH_CREDENTIALS = "cognito.refreshCredentials";
+
+    // Suffixes of the counters kept by Operation
+    private static final String SUFFIX_SUCCESS = ".success";
+    private static final String SUFFIX_FAILURE = ".failure";
+
+    private static final PushMetrics SHARED = new PushMetrics();
+
+    /** Latency plus success and failure counts of one remote call. */
+    public static class Operation {
+
+        private final LatencyHistogram latency;
+        private final AtomicLong successes;
+        private final AtomicLong failures;
+
+        private Operation(final LatencyHistogram latency, final AtomicLong successes, final AtomicLong failures) {
+            this.latency = latency;
+            this.successes = successes;
+            this.failures = failures;
+        }
+
+        /** @return start time to pass to {@link #success(long)} or {@link #failure(long)} */
+        public long start() {
+            return System.nanoTime();
+        }
+
+        public void success(final long startNanos) {
+            latency.recordSince(startNanos);
+            successes.incrementAndGet();
+        }
+
+        public void failure(final long startNanos) {
+            latency.recordSince(startNanos);
+            failures.incrementAndGet();
+        }
+
+        /**
+         * Records a call timed by the caller.
+         * @param latencyMicros latency in microseconds
+         * @param success true if the call succeeded
+         */
+        public void record(final long latencyMicros, final boolean success) {
+            latency.record(latencyMicros);
+            (success ? successes : failures).incrementAndGet();
+        }
+    }
+
+    /** Values of all metrics at one point in time. */
+    public static class Snapshot {
+
+        private final long timestamp;
+        private final Map<String, Long> counters;
+        private final Map<String, LatencyHistogram.Snapshot> histograms;
+
+        Snapshot(final long timestamp,
+                 final Map<String, Long> counters,
+                 final Map<String, LatencyHistogram.Snapshot> histograms) {
+            this.timestamp = timestamp;
+            this.counters = counters;
+            this.histograms = histograms;
+        }
+
+        /** @return wall clock time of the snapshot */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** @return counter values, sorted by name */
+        public Map<String, Long> getCounters() {
+            return counters;
+        }
+
+        /** @return histograms, sorted by name */
+        public Map<String, LatencyHistogram.Snapshot> getHistograms() {
+            return histograms;
+        }
+
+        /**
+         * @param name counter name
+         * @return counter value, 0 if it was never incremented
+         */
+        public long getCounter(final String name) {
+            final Long value = counters.get(name);
+            return value == null ? 0 : value;
+        }
+
+        /** Writes one line per metric. */
+        public void writeTo(final Writer writer) throws IOException {
+            writer.write("# " + timestamp + "\n");
+            for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                writer.write(counter.getKey() + " " + counter.getValue() + "\n");
+            }
+            for (Map.Entry<String, LatencyHistogram.Snapshot> histogram : histograms.entrySet()) {
+                writer.write(histogram.getKey() + " " + histogram.getValue() + "\n");
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Operation> operations = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> periodicDump;
+
+    public static PushMetrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param name counter name
+     * @return counter, created on first use
+     */
+    public AtomicLong counter(final String name) {
+        final AtomicLong counter = counters.get(name);
+        if (counter != null) {
+            return counter;
+        }
+        final AtomicLong created = new AtomicLong();
+        final AtomicLong existing = counters.putIfAbsent(name, created);
+        return existing != null ? existing : created;
+    }
+
+    /**
+     * @param name histogram name
+     * @return histogram, created on first use
+     */
+    public LatencyHistogram histogram(final String name) {
+        final LatencyHistogram histogram = histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        final LatencyHistogram created = new LatencyHistogram();
+        final LatencyHistogram existing = histograms.putIfAbsent(name, created);
+        return existing != null ? existing : created;
+    }
+
+    /**
+     * @param name operation name, one of the constants of this class
+     * @return latency histogram and success/failure counters of the operation
+     */
+    public Operation operation(final String name) {
+        final Operation operation = operations.get(name);
+        if (operation != null) {
+            return operation;
+        }
+        final Operation created = new Operation(histogram(name),
+                counter(name + SUFFIX_SUCCESS), counter(name + SUFFIX_FAILURE));
+        final Operation existing = operations.putIfAbsent(name, created);
+        return existing != null ? existing : created;
+    }
+
+    public Snapshot snapshot() {
+        final Map<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            counterValues.put(counter.getKey(), counter.getValue().get());
+        }
+        final Map<String, LatencyHistogram.Snapshot> histogramValues = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            histogramValues.put(histogram.getKey(), histogram.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), counterValues, histogramValues);
+    }
+
+    /**
+     * Writes a snapshot to a temporary file and renames it over the target, so readers never
+     * see a partial dump.
+     * @param file target file
+     * @throws IOException if writing failed
+     */
+    public void dump(final File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            snapshot().writeTo(writer);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Dumps a snapshot periodically, replacing any dump started before.
+     * @param file target file
+     * @param scheduler scheduler running the dumps, should do disk I/O
+     * @param periodMillis time between dumps
+     */
+    public synchronized void startPeriodicDump(final File file,
+                                               final ScheduledExecutorService scheduler,
+                                               final long periodMillis) {
+        stopPeriodicDump();
+        periodicDump = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(file);
+                } catch (final IOException ex) {
+                    // Metrics are best effort, try again next period.
+                    counter("metrics.dumpFailure").incrementAndGet();
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopPeriodicDump() {
+        if (periodicDump != null) {
+            periodicDump.cancel(false);
+            periodicDump = null;
+        }
+    }
+}
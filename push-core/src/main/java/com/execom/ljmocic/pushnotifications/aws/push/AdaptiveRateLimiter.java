@@ -0,0 +1,119 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of SNS publishes, adapting the rate to what SNS accepts:
+ * every throttled call cuts the rate multiplicatively, every successful call raises it
+ * additively (AIMD). The rate settles just below the account's publish limit instead of
+ * alternating between bursts and rejections.
+ *
+ * <p>Callers reserve a permit and sleep until it is due, so publishes must never run on the
+ * main thread. A burst of up to {@link #BURST_SECONDS} worth of permits can be spent after
+ * an idle period.</p>
+ */
+public class AdaptiveRateLimiter {
+
+    public static final double DEFAULT_INITIAL_RATE = 10;
+    public static final double DEFAULT_MIN_RATE = 1;
+    public static final double DEFAULT_MAX_RATE = 300;
+
+    // Permits per second added after a second of successful publishes at the current rate
+    private static final double ADDITIVE_INCREASE = 5;
+    // Factor applied to the rate on throttling
+    private static final double MULTIPLICATIVE_DECREASE = 0.5;
+    // Throttles within this time after a cut were caused by the old rate, and don't cut again
+    private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Seconds of permits saved up while idle
+    private static final double BURST_SECONDS = 0.5;
+
+    private final double minRate;
+    private final double maxRate;
+
+    // Guarded by this
+    private double rate;
+    private double storedPermits;
+    private long nextFreeNanos;
+    private long lastDecreaseNanos;
+    private boolean decreased;
+
+    public AdaptiveRateLimiter() {
+        this(DEFAULT_INITIAL_RATE, DEFAULT_MIN_RATE, DEFAULT_MAX_RATE);
+    }
+
+    /**
+     * @param initialRate permits per second to start with
+     * @param minRate rate never cut below
+     * @param maxRate rate never raised above
+     */
+    public AdaptiveRateLimiter(final double initialRate, final double minRate, final double maxRate) {
+        if (minRate <= 0 || minRate > initialRate || initialRate > maxRate) {
+            throw new IllegalArgumentException("Rates must satisfy 0 < min <= initial <= max.");
+        }
+        this.rate = initialRate;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.nextFreeNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits until a permit is available.
+     * @return time waited in nanoseconds
+     * @throws InterruptedException if interrupted while waiting, the permit is lost
+     */
+    public long acquire() throws InterruptedException {
+        final long waitNanos = reserve(System.nanoTime());
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    /** Raises the rate after a call that went through. */
+    public void onSuccess() {
+        synchronized (this) {
+            rate = Math.min(maxRate, rate + ADDITIVE_INCREASE / rate);
+        }
+    }
+
+    /** Cuts the rate after a throttled call. */
+    public void onThrottled() {
+        onThrottled(System.nanoTime());
+    }
+
+    /** @return current rate in permits per second */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Reserves the next permit.
+     * @param nowNanos current {@link System#nanoTime()}
+     * @return nanoseconds until the permit is due
+     */
+    synchronized long reserve(final long nowNanos) {
+        if (nowNanos > nextFreeNanos) {
+            final double maxStored = Math.max(1, rate * BURST_SECONDS);
+            storedPermits = Math.min(maxStored, storedPermits + (nowNanos - nextFreeNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+            nextFreeNanos = nowNanos;
+        }
+        final long waitNanos = nextFreeNanos - nowNanos;
+        if (storedPermits >= 1) {
+            storedPermits -= 1;
+        } else {
+            nextFreeNanos += (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+        return waitNanos;
+    }
+
+    synchronized void onThrottled(final long nowNanos) {
+        if (decreased && nowNanos - lastDecreaseNanos < DECREASE_COOLDOWN_NANOS) {
+            return;
+        }
+        rate = Math.max(minRate, rate * MULTIPLICATIVE_DECREASE);
+        // Saved up permits were earned at the old rate.
+        storedPermits = 0;
+        lastDecreaseNanos = nowNanos;
+        decreased = true;
+    }
+}
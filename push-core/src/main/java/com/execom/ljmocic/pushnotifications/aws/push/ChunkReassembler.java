@@ -0,0 +1,145 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts the chunks of a message split by the {@link PayloadPacker} back together. GCM delivers
+ * chunks in any order; a group is complete once all of its chunks arrived.
+ *
+ * <p>Buffering is bounded: groups not completed within the timeout are dropped, and the oldest
+ * groups are dropped when too many groups or characters are buffered. Thread safe.</p>
+ */
+public class ChunkReassembler {
+
+    public static final int DEFAULT_MAX_GROUPS = 8;
+    // Characters buffered across all groups, twice a message of the packer's maximum size
+    public static final int DEFAULT_MAX_CHARS =
+            2 * PayloadPacker.DEFAULT_MAX_CHUNKS * PayloadPacker.DEFAULT_MAX_MESSAGE_BYTES;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+    private static class Group {
+        final String[] chunks;
+        final long firstSeenMillis;
+        int received;
+        int chars;
+
+        Group(final int count, final long firstSeenMillis) {
+            this.chunks = new String[count];
+            this.firstSeenMillis = firstSeenMillis;
+        }
+    }
+
+    private final int maxGroups;
+    private final int maxChars;
+    private final long timeoutMillis;
+    // Group ID to group, oldest first
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<>();
+    private final AtomicLong expiredCount = PushMetrics.shared().counter(PushMetrics.PAYLOAD_CHUNKS_EXPIRED);
+    private final AtomicLong evictedCount = PushMetrics.shared().counter(PushMetrics.PAYLOAD_CHUNKS_EVICTED);
+    private int bufferedChars;
+
+    /**
+     * @param maxGroups maximum number of incomplete groups
+     * @param maxChars maximum number of characters buffered across all groups
+     * @param timeoutMillis time after the first chunk of a group within which it must complete
+     */
+    public ChunkReassembler(final int maxGroups, final int maxChars, final long timeoutMillis) {
+        this.maxGroups = maxGroups;
+        this.maxChars = maxChars;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param groupId group of the chunk
+     * @param index index of the chunk in its group
+     * @param count number of chunks in the group
+     * @param chunk the chunk
+     * @param nowMillis current time
+     * @return the whole message if this chunk completed its group, otherwise null
+     */
+    public synchronized String offer(final String groupId,
+                                     final int index,
+                                     final int count,
+                                     final String chunk,
+                                     final long nowMillis) {
+        expire(nowMillis);
+        if (count == 1 && index == 0) {
+            return chunk;
+        }
+        Group group = groups.get(groupId);
+        if (group != null && group.chunks.length != count) {
+            // Not chunks of the same message, start over with this one.
+            remove(groupId);
+            group = null;
+        }
+        // A group with more chunks than characters fit in the buffer can never complete.
+        if (index < 0 || index >= count || count > maxChars || chunk.length() > maxChars) {
+            return null;
+        }
+        if (group == null) {
+            group = new Group(count, nowMillis);
+            groups.put(groupId, group);
+        }
+        if (group.chunks[index] == null) {
+            group.chunks[index] = chunk;
+            group.received++;
+            group.chars += chunk.length();
+            bufferedChars += chunk.length();
+        }
+        if (group.received < count) {
+            evictOldest(groupId);
+            return null;
+        }
+
+        remove(groupId);
+        final StringBuilder message = new StringBuilder(group.chars);
+        for (String part : group.chunks) {
+            message.append(part);
+        }
+        return message.toString();
+    }
+
+    /** @return number of groups waiting for chunks */
+    public synchronized int getPendingCount() {
+        return groups.size();
+    }
+
+    private void expire(final long nowMillis) {
+        final Iterator<Map.Entry<String, Group>> iterator = groups.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Group group = iterator.next().getValue();
+            if (nowMillis - group.firstSeenMillis < timeoutMillis) {
+                // Groups are ordered by their first chunk.
+                break;
+            }
+            iterator.remove();
+            bufferedChars -= group.chars;
+            expiredCount.incrementAndGet();
+        }
+    }
+
+    private void evictOldest(final String keepGroupId) {
+        final Iterator<Map.Entry<String, Group>> iterator = groups.entrySet().iterator();
+        while ((groups.size() > maxGroups || bufferedChars > maxChars) && iterator.hasNext()) {
+            final Map.Entry<String, Group> entry = iterator.next();
+            if (entry.getKey().equals(keepGroupId)) {
+                continue;
+            }
+            iterator.remove();
+            bufferedChars -= entry.getValue().chars;
+            evictedCount.incrementAndGet();
+        }
+    }
+
+    private void remove(final String groupId) {
+        final Group group = groups.remove(groupId);
+        if (group != null) {
+            bufferedChars -= group.chars;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.ClientConfiguration;
+
+import java.util.Collection;
+
+/**
+ * Named HTTP settings for an SNS client. Each profile gets its own client, so latency sensitive
+ * calls (registration, subscriptions, sends from the UI) don't queue behind bulk fan-outs.
+ */
+public class ConnectionProfile {
+
+    public static final String INTERACTIVE_NAME = "interactive";
+    public static final String BULK_NAME = "bulk";
+
+    /**
+     * Short timeouts. The SDK does not retry on its own for either default profile: calls are
+     * retried by {@link com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy}, so the
+     * delays are jittered and the circuit breaker sees every failure.
+     */
+    public static final ConnectionProfile INTERACTIVE = new Builder(INTERACTIVE_NAME)
+            .withMaxConnections(4)
+            .withConnectionTimeoutMillis(5000)
+            .withSocketTimeoutMillis(10000)
+            .withMaxErrorRetry(0)
+            .withKeepAlive(true)
+            .build();
+
+    /** Enough connections for concurrent fan-out workers and patient timeouts. */
+    public static final ConnectionProfile BULK = new Builder(BULK_NAME)
+            .withMaxConnections(16)
+            .withConnectionTimeoutMillis(10000)
+            .withSocketTimeoutMillis(30000)
+            .withMaxErrorRetry(0)
+            .withKeepAlive(true)
+            .build();
+
+    // System properties sizing the connection pool of HttpURLConnection
+    private static final String PROPERTY_KEEP_ALIVE = "http.keepAlive";
+    private static final String PROPERTY_MAX_CONNECTIONS = "http.maxConnections";
+
+    public static class Builder {
+
+        private final String name;
+        private int maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+        private int connectionTimeoutMillis = ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT;
+        private int socketTimeoutMillis = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+        private int maxErrorRetry = -1;
+        private boolean keepAlive = true;
+
+        /**
+         * Constructor.
+         * @param name profile name
+         */
+        public Builder(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * Provides the maximum number of open connections.
+         * @param maxConnections maximum number of connections
+         * @return builder
+         */
+        public Builder withMaxConnections(final int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Provides the timeout for establishing a connection.
+         * @param connectionTimeoutMillis timeout in milliseconds
+         * @return builder
+         */
+        public Builder withConnectionTimeoutMillis(final int connectionTimeoutMillis) {
+            this.connectionTimeoutMillis = connectionTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Provides the timeout for reading from an established connection.
+         * @param socketTimeoutMillis timeout in milliseconds
+         * @return builder
+         */
+        public Builder withSocketTimeoutMillis(final int socketTimeoutMillis) {
+            this.socketTimeoutMillis = socketTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Provides the number of retries done by the SDK, -1 keeps the SDK's retry policy.
+         * @param maxErrorRetry number of retries
+         * @return builder
+         */
+        public Builder withMaxErrorRetry(final int maxErrorRetry) {
+            this.maxErrorRetry = maxErrorRetry;
+            return this;
+        }
+
+        /**
+         * Provides whether connections are kept open and re-used between requests.
+         * @param keepAlive true to re-use connections
+         * @return builder
+         */
+        public Builder withKeepAlive(final boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        public ConnectionProfile build() {
+            if (name == null) {
+                throw new IllegalArgumentException("Missing profile name.");
+            }
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("Max connections must be at least 1.");
+            }
+            return new ConnectionProfile(this);
+        }
+    }
+
+    private final String name;
+    private final int maxConnections;
+    private final int connectionTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final int maxErrorRetry;
+    private final boolean keepAlive;
+
+    private ConnectionProfile(final Builder builder) {
+        this.name = builder.name;
+        this.maxConnections = builder.maxConnections;
+        this.connectionTimeoutMillis = builder.connectionTimeoutMillis;
+        this.socketTimeoutMillis = builder.socketTimeoutMillis;
+        this.maxErrorRetry = builder.maxErrorRetry;
+        this.keepAlive = builder.keepAlive;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getConnectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public int getMaxErrorRetry() {
+        return maxErrorRetry;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @param base configuration holding the settings shared by all clients, e.g. the user agent
+     * @return copy of the base configuration with this profile's settings
+     */
+    public ClientConfiguration applyTo(final ClientConfiguration base) {
+        final ClientConfiguration configuration = base == null ? new ClientConfiguration() : new ClientConfiguration(base);
+        configuration.setMaxConnections(maxConnections);
+        configuration.setConnectionTimeout(connectionTimeoutMillis);
+        configuration.setSocketTimeout(socketTimeoutMillis);
+        if (maxErrorRetry >= 0) {
+            configuration.setMaxErrorRetry(maxErrorRetry);
+        }
+        return configuration;
+    }
+
+    /**
+     * Sizes the process-wide connection pool for the given profiles. On Android the SDK uses
+     * HttpURLConnection, whose pool is configured through system properties read when the
+     * first connection is opened, so this must run before any AWS call.
+     * @param profiles profiles in use
+     */
+    public static void configureConnectionReuse(final Collection<ConnectionProfile> profiles) {
+        boolean keepAlive = false;
+        int maxIdleConnections = 0;
+        for (ConnectionProfile profile : profiles) {
+            if (profile.keepAlive) {
+                keepAlive = true;
+                maxIdleConnections += profile.maxConnections;
+            }
+        }
+        System.setProperty(PROPERTY_KEEP_ALIVE, String.valueOf(keepAlive));
+        if (keepAlive) {
+            System.setProperty(PROPERTY_MAX_CONNECTIONS, String.valueOf(maxIdleConnections));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (connections " + maxConnections + ", connect " + connectionTimeoutMillis
+                + " ms, socket " + socketTimeoutMillis + " ms, retries " + maxErrorRetry
+                + ", keep-alive " + keepAlive + ")";
+    }
+}
@@ -0,0 +1,137 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Aggregate result of a fan-out publish performed by the {@link PushDispatcher}. */
+public class DispatchResult {
+
+    /** Result of publishing to a single target. */
+    public static class Outcome {
+
+        private final String targetArn;
+        private final String messageId;
+        private final Exception error;
+        private final long latencyMillis;
+
+        Outcome(final String targetArn, final String messageId, final Exception error, final long latencyMillis) {
+            this.targetArn = targetArn;
+            this.messageId = messageId;
+            this.error = error;
+            this.latencyMillis = latencyMillis;
+        }
+
+        public String getTargetArn() {
+            return targetArn;
+        }
+
+        /** @return SNS message ID, or null if the publish failed */
+        public String getMessageId() {
+            return messageId;
+        }
+
+        /** @return the failure, or null if the publish succeeded */
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+    }
+
+    private final List<Outcome> outcomes;
+    private final long wallTimeMillis;
+    private final List<String> skippedTargetArns;
+
+    DispatchResult(final List<Outcome> outcomes, final long wallTimeMillis) {
+        this(outcomes, wallTimeMillis, Collections.<String>emptyList());
+    }
+
+    private DispatchResult(final List<Outcome> outcomes, final long wallTimeMillis, final List<String> skippedTargetArns) {
+        this.outcomes = Collections.unmodifiableList(outcomes);
+        this.wallTimeMillis = wallTimeMillis;
+        this.skippedTargetArns = Collections.unmodifiableList(skippedTargetArns);
+    }
+
+    /**
+     * @param skippedTargetArns targets that were not published to, e.g. because they are quarantined
+     * @return this result, reporting the skipped targets
+     */
+    public DispatchResult withSkippedTargetArns(final List<String> skippedTargetArns) {
+        if (skippedTargetArns.isEmpty()) {
+            return this;
+        }
+        return new DispatchResult(outcomes, wallTimeMillis, new ArrayList<>(skippedTargetArns));
+    }
+
+    /**
+     * Combines the results of publishing several parts of one message, e.g. its chunks, to the
+     * same targets. A target succeeded if every part reached it.
+     * @param parts results with the outcomes of the same targets in the same order
+     * @return combined result, timed by the slowest part
+     */
+    public static DispatchResult merge(final List<DispatchResult> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        final List<Outcome> merged = new ArrayList<>(parts.get(0).outcomes);
+        long wallTimeMillis = 0;
+        for (DispatchResult part : parts) {
+            for (int i = 0; i < merged.size(); i++) {
+                if (merged.get(i).isSuccess()) {
+                    merged.set(i, part.outcomes.get(i));
+                }
+            }
+            wallTimeMillis = Math.max(wallTimeMillis, part.wallTimeMillis);
+        }
+        return new DispatchResult(merged, wallTimeMillis, parts.get(0).skippedTargetArns);
+    }
+
+    public List<Outcome> getOutcomes() {
+        return outcomes;
+    }
+
+    /** @return targets that were not published to and have no outcome, e.g. quarantined endpoints */
+    public List<String> getSkippedTargetArns() {
+        return skippedTargetArns;
+    }
+
+    public List<Outcome> getFailures() {
+        final List<Outcome> failures = new ArrayList<>();
+        for (Outcome outcome : outcomes) {
+            if (!outcome.isSuccess()) {
+                failures.add(outcome);
+            }
+        }
+        return failures;
+    }
+
+    public int getSuccessCount() {
+        int count = 0;
+        for (Outcome outcome : outcomes) {
+            if (outcome.isSuccess()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getFailureCount() {
+        return outcomes.size() - getSuccessCount();
+    }
+
+    public boolean isSuccess() {
+        return getFailureCount() == 0;
+    }
+
+    /** @return time from the start of the fan-out until the last target completed */
+    public long getWallTimeMillis() {
+        return wallTimeMillis;
+    }
+}
@@ -0,0 +1,372 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.model.Endpoint;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationRequest;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationResult;
+import com.execom.ljmocic.pushnotifications.aws.retry.CircuitBreaker;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Local index of the endpoints of a platform application, filled by paging through
+ * {@code ListEndpointsByPlatformApplication}.
+ *
+ * <p>A sync pass streams every page into a new index file and replaces the current index once
+ * the last page was written, dropping endpoints SNS no longer lists. Only one page is held in
+ * memory. After every page the pass is checkpointed with its {@code NextToken}, so a pass can
+ * be spread over several {@link #sync(int)} calls and survives process death.</p>
+ *
+ * <p>Entries are stored as {@code [shared prefix length][ARN suffix][flags][last seen]}, the
+ * ARN front-coded against the previous entry. Endpoint ARNs of one application only differ in
+ * their last path segment, so an entry takes about 50 bytes.</p>
+ */
+public class EndpointDirectory {
+
+    /** Streams the entries of the index. Reuses itself, values are only valid until {@link #next()}. */
+    public static class Cursor implements Closeable {
+
+        private final DataInputStream in;
+        private final int count;
+        private final StringBuilder arn = new StringBuilder();
+        private int position;
+        private String endpointArn;
+        private boolean enabled;
+        private long lastSeenMillis;
+
+        private Cursor(final DataInputStream in, final int count) {
+            this.in = in;
+            this.count = count;
+        }
+
+        /**
+         * @return true if moved to the next entry, false at the end of the index
+         * @throws IOException if the index could not be read
+         */
+        public boolean next() throws IOException {
+            if (position >= count) {
+                return false;
+            }
+            final int shared = in.readUnsignedShort();
+            final String suffix = in.readUTF();
+            if (shared > arn.length()) {
+                throw new IOException("Corrupt endpoint index entry " + position);
+            }
+            arn.setLength(shared);
+            arn.append(suffix);
+            endpointArn = arn.toString();
+            enabled = (in.readByte() & FLAG_ENABLED) != 0;
+            lastSeenMillis = in.readLong();
+            position++;
+            return true;
+        }
+
+        public String getEndpointArn() {
+            return endpointArn;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /** @return time the entry was last listed by SNS */
+        public long getLastSeenMillis() {
+            return lastSeenMillis;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private static final String INDEX_FILE = "endpoints.idx";
+    private static final String NEXT_INDEX_FILE = "endpoints.idx.next";
+    private static final String CHECKPOINT_FILE = "endpoints.sync";
+    private static final String CHECKPOINT_TEMP_FILE = "endpoints.sync.tmp";
+
+    private static final int INDEX_MAGIC = 0x45504458;
+    private static final int CHECKPOINT_MAGIC = 0x45505343;
+    private static final byte VERSION = 1;
+    // Magic, version, entry count, time the pass started
+    private static final int HEADER_BYTES = 4 + 1 + 4 + 8;
+    private static final int FLAG_ENABLED = 1;
+    private static final int MAX_SHARED_PREFIX = 0xFFFF;
+
+    private static final String ATTRIBUTE_ENABLED = "Enabled";
+
+    /** Header of a completed index. */
+    private static class Header {
+        int count;
+        long syncedAtMillis;
+    }
+
+    /** Progress of an unfinished sync pass. */
+    private static class Pass {
+        String nextToken;
+        long startedAtMillis;
+        int count;
+        long length;
+        String previousArn = "";
+    }
+
+    private final File directory;
+    private final SnsClientProvider snsClientProvider;
+    private final String platformApplicationArn;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * @param directory directory of the index files
+     * @param snsClientProvider supplies the SNS client
+     * @param platformApplicationArn application whose endpoints are listed
+     * @param retryPolicy retries of failed list calls
+     * @param circuitBreaker breaker of the SNS circuit, null for none
+     */
+    public EndpointDirectory(final File directory,
+                             final SnsClientProvider snsClientProvider,
+                             final String platformApplicationArn,
+                             final RetryPolicy retryPolicy,
+                             final CircuitBreaker circuitBreaker) {
+        this.directory = directory;
+        this.snsClientProvider = snsClientProvider;
+        this.platformApplicationArn = platformApplicationArn;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Continues the current sync pass, or starts a new one. Must be called from a background thread.
+     * @param maxPages maximum number of pages to list in this call
+     * @return true if the pass completed and the index was replaced
+     * @throws IOException if the index could not be written
+     */
+    public synchronized boolean sync(final int maxPages) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        final File nextFile = new File(directory, NEXT_INDEX_FILE);
+        Pass pass = readCheckpoint();
+        if (pass == null || nextFile.length() < pass.length) {
+            // No pass in progress, or its pages did not make it to disk.
+            pass = new Pass();
+            pass.startedAtMillis = System.currentTimeMillis();
+            pass.length = HEADER_BYTES;
+        }
+        final RandomAccessFile truncate = new RandomAccessFile(nextFile, "rw");
+        try {
+            // Drops a page written after the last checkpoint, it is listed again.
+            truncate.setLength(pass.length);
+        } finally {
+            truncate.close();
+        }
+
+        final FileOutputStream stream = new FileOutputStream(nextFile, true);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        final long resumedAtLength = pass.length;
+        boolean completed = false;
+        try {
+            for (int page = 0; page < maxPages && !completed; page++) {
+                final ListEndpointsByPlatformApplicationResult result = listPage(pass.nextToken);
+                final long seenAtMillis = System.currentTimeMillis();
+                for (Endpoint endpoint : result.getEndpoints()) {
+                    final String arn = endpoint.getEndpointArn();
+                    final boolean enabled = endpoint.getAttributes() == null
+                            || !"false".equalsIgnoreCase(endpoint.getAttributes().get(ATTRIBUTE_ENABLED));
+                    writeEntry(out, pass.previousArn, arn, enabled, seenAtMillis);
+                    pass.previousArn = arn;
+                    pass.count++;
+                }
+                out.flush();
+                pass.length = resumedAtLength + out.size();
+                pass.nextToken = result.getNextToken();
+                if (pass.nextToken == null) {
+                    completed = true;
+                } else {
+                    stream.getFD().sync();
+                    writeCheckpoint(pass);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (completed) {
+            writeHeader(nextFile, pass);
+            if (!nextFile.renameTo(new File(directory, INDEX_FILE))) {
+                throw new IOException("Unable to replace the endpoint index");
+            }
+            deleteCheckpoint();
+        }
+        return completed;
+    }
+
+    /**
+     * Opens a cursor over the last completed index. A sync completing meanwhile doesn't affect it.
+     * @return cursor, empty if no pass completed yet
+     * @throws IOException if the index could not be read
+     */
+    public Cursor open() throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, INDEX_FILE))));
+        } catch (final FileNotFoundException ex) {
+            return new Cursor(null, 0);
+        }
+        try {
+            return new Cursor(in, readHeader(in).count);
+        } catch (final IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /** @return number of endpoints in the index */
+    public int size() throws IOException {
+        final Header header = readIndexHeader();
+        return header == null ? 0 : header.count;
+    }
+
+    /** @return time the last completed sync pass started, 0 if none completed */
+    public long getSyncedAtMillis() throws IOException {
+        final Header header = readIndexHeader();
+        return header == null ? 0 : header.syncedAtMillis;
+    }
+
+    /** @return true if a sync pass was started and not completed yet */
+    public synchronized boolean isSyncInProgress() {
+        return new File(directory, CHECKPOINT_FILE).exists();
+    }
+
+    private ListEndpointsByPlatformApplicationResult listPage(final String nextToken) {
+        return retryPolicy.call(circuitBreaker, new RetryPolicy.Call<ListEndpointsByPlatformApplicationResult>() {
+            @Override
+            public ListEndpointsByPlatformApplicationResult call() {
+                return snsClientProvider.getSns().listEndpointsByPlatformApplication(
+                        new ListEndpointsByPlatformApplicationRequest()
+                                .withPlatformApplicationArn(platformApplicationArn)
+                                .withNextToken(nextToken));
+            }
+        });
+    }
+
+    private static void writeEntry(final DataOutputStream out,
+                                   final String previousArn,
+                                   final String arn,
+                                   final boolean enabled,
+                                   final long seenAtMillis) throws IOException {
+        final int limit = Math.min(MAX_SHARED_PREFIX, Math.min(previousArn.length(), arn.length()));
+        int shared = 0;
+        while (shared < limit && previousArn.charAt(shared) == arn.charAt(shared)) {
+            shared++;
+        }
+        out.writeShort(shared);
+        out.writeUTF(arn.substring(shared));
+        out.writeByte(enabled ? FLAG_ENABLED : 0);
+        out.writeLong(seenAtMillis);
+    }
+
+    private static void writeHeader(final File file, final Pass pass) throws IOException {
+        final RandomAccessFile header = new RandomAccessFile(file, "rw");
+        try {
+            header.writeInt(INDEX_MAGIC);
+            header.writeByte(VERSION);
+            header.writeInt(pass.count);
+            header.writeLong(pass.startedAtMillis);
+            header.getFD().sync();
+        } finally {
+            header.close();
+        }
+    }
+
+    private static Header readHeader(final DataInputStream in) throws IOException {
+        if (in.readInt() != INDEX_MAGIC || in.readByte() != VERSION) {
+            throw new IOException("Not an endpoint index");
+        }
+        final Header header = new Header();
+        header.count = in.readInt();
+        header.syncedAtMillis = in.readLong();
+        return header;
+    }
+
+    private Header readIndexHeader() throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(directory, INDEX_FILE)));
+        } catch (final FileNotFoundException ex) {
+            return null;
+        }
+        try {
+            return readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Pass readCheckpoint() {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(directory, CHECKPOINT_FILE)));
+        } catch (final FileNotFoundException ex) {
+            return null;
+        }
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readByte() != VERSION) {
+                return null;
+            }
+            final Pass pass = new Pass();
+            pass.nextToken = in.readUTF();
+            pass.startedAtMillis = in.readLong();
+            pass.count = in.readInt();
+            pass.length = in.readLong();
+            pass.previousArn = in.readUTF();
+            return pass;
+        } catch (final IOException ex) {
+            // Torn or unreadable checkpoint, the pass starts over.
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (final IOException ignored) {
+                // Nothing was written.
+            }
+        }
+    }
+
+    private void writeCheckpoint(final Pass pass) throws IOException {
+        final File temp = new File(directory, CHECKPOINT_TEMP_FILE);
+        final FileOutputStream stream = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(pass.nextToken);
+            out.writeLong(pass.startedAtMillis);
+            out.writeInt(pass.count);
+            out.writeLong(pass.length);
+            out.writeUTF(pass.previousArn);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(directory, CHECKPOINT_FILE))) {
+            throw new IOException("Unable to write the endpoint sync checkpoint");
+        }
+    }
+
+    private void deleteCheckpoint() {
+        new File(directory, CHECKPOINT_FILE).delete();
+    }
+}
@@ -0,0 +1,293 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persisted deny set of endpoints SNS reported as dead (see
+ * {@link com.execom.ljmocic.pushnotifications.aws.retry.ErrorClassifier#isDeadEndpoint(Exception)}),
+ * so fan-outs skip them instead of paying a failing round trip each time.
+ *
+ * <p>The set is kept in memory and changes are appended to a log file on the disk executor, as
+ * {@code [op][ARN][time]} records replayed when the quarantine is loaded. The log is rewritten
+ * once most of its records are obsolete.</p>
+ *
+ * <p>Quarantined endpoints that were not deleted from SNS are released once the quarantine
+ * expires, so an endpoint whose token recovered is targeted again; if it is still dead, the next
+ * publish quarantines it again.</p>
+ */
+public class EndpointQuarantine {
+
+    private static final byte OP_QUARANTINE = 1;
+    private static final byte OP_DELETED = 2;
+    private static final byte OP_RELEASE = 3;
+    // Log records before compaction is considered
+    private static final int MIN_COMPACT_RECORDS = 64;
+    // Time after which an endpoint that was not deleted from SNS is tried again
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static class Entry {
+        final long quarantinedAtMillis;
+        volatile boolean deleted;
+
+        Entry(final long quarantinedAtMillis) {
+            this.quarantinedAtMillis = quarantinedAtMillis;
+        }
+    }
+
+    private final File file;
+    private final Executor diskExecutor;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong quarantinedCount = PushMetrics.shared().counter(PushMetrics.ENDPOINTS_QUARANTINED);
+
+    // Only accessed on the disk executor.
+    private int records;
+
+    /**
+     * Loads the quarantine on the disk executor. Until it is loaded, endpoints quarantined by a
+     * previous run are not skipped yet.
+     * @param file log file
+     * @param diskExecutor single-threaded executor doing the file I/O
+     */
+    public EndpointQuarantine(final File file, final Executor diskExecutor) {
+        this(file, diskExecutor, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param file log file
+     * @param diskExecutor single-threaded executor doing the file I/O
+     * @param ttlMillis time after which an endpoint that was not deleted from SNS is released
+     */
+    public EndpointQuarantine(final File file, final Executor diskExecutor, final long ttlMillis) {
+        this.file = file;
+        this.diskExecutor = diskExecutor;
+        this.ttlMillis = ttlMillis;
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @param endpointArn endpoint that can't receive messages
+     * @return true if the endpoint was not quarantined before
+     */
+    public boolean quarantine(final String endpointArn) {
+        final long now = System.currentTimeMillis();
+        if (entries.putIfAbsent(endpointArn, new Entry(now)) != null) {
+            return false;
+        }
+        quarantinedCount.incrementAndGet();
+        append(OP_QUARANTINE, endpointArn, now);
+        return true;
+    }
+
+    /**
+     * Lets an endpoint receive messages again, e.g. after it was re-enabled.
+     * @param endpointArn endpoint ARN
+     */
+    public void release(final String endpointArn) {
+        if (entries.remove(endpointArn) != null) {
+            append(OP_RELEASE, endpointArn, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Records that the endpoint was deleted from SNS. It stays quarantined, since stale
+     * copies of its ARN may still be targeted.
+     * @param endpointArn endpoint ARN
+     */
+    public void markDeleted(final String endpointArn) {
+        final Entry entry = entries.get(endpointArn);
+        if (entry != null && !entry.deleted) {
+            entry.deleted = true;
+            append(OP_DELETED, endpointArn, System.currentTimeMillis());
+        }
+    }
+
+    public boolean isQuarantined(final String endpointArn) {
+        return current(endpointArn, System.currentTimeMillis()) != null;
+    }
+
+    /**
+     * @param endpointArn endpoint ARN
+     * @return time the endpoint was quarantined, or -1 if it is not
+     */
+    public long getQuarantinedAtMillis(final String endpointArn) {
+        final Entry entry = current(endpointArn, System.currentTimeMillis());
+        return entry == null ? -1 : entry.quarantinedAtMillis;
+    }
+
+    /**
+     * @param targetArns endpoint ARNs
+     * @return the targets that are not quarantined, in order
+     */
+    public List<String> filter(final Collection<String> targetArns) {
+        return filter(targetArns, null);
+    }
+
+    /**
+     * @param targetArns endpoint ARNs
+     * @param skipped receives the quarantined targets, in order; may be null
+     * @return the targets that are not quarantined, in order
+     */
+    public List<String> filter(final Collection<String> targetArns, final List<String> skipped) {
+        final List<String> allowed = new ArrayList<>(targetArns.size());
+        final long now = System.currentTimeMillis();
+        for (String targetArn : targetArns) {
+            if (current(targetArn, now) == null) {
+                allowed.add(targetArn);
+            } else if (skipped != null) {
+                skipped.add(targetArn);
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * @param maxCount maximum number of endpoints returned
+     * @return quarantined endpoints that were not deleted yet
+     */
+    public List<String> getUndeleted(final int maxCount) {
+        final List<String> undeleted = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (undeleted.size() >= maxCount) {
+                break;
+            }
+            if (!entry.getValue().deleted) {
+                undeleted.add(entry.getKey());
+            }
+        }
+        return undeleted;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** @return the entry of the endpoint, null if it is not quarantined or its quarantine expired */
+    private Entry current(final String endpointArn, final long nowMillis) {
+        final Entry entry = entries.get(endpointArn);
+        if (entry == null || entry.deleted || nowMillis - entry.quarantinedAtMillis < ttlMillis) {
+            return entry;
+        }
+        // Deleted endpoints stay quarantined, they can't come back.
+        if (entries.remove(endpointArn, entry)) {
+            append(OP_RELEASE, endpointArn, nowMillis);
+        }
+        return null;
+    }
+
+    private void append(final byte op, final String endpointArn, final long timeMillis) {
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(new FileOutputStream(file, true)));
+                    try {
+                        writeRecord(out, op, endpointArn, timeMillis);
+                    } finally {
+                        out.close();
+                    }
+                    records++;
+                    if (records >= MIN_COMPACT_RECORDS && records > 2 * entries.size()) {
+                        compact();
+                    }
+                } catch (final IOException ex) {
+                    // The entry is still quarantined for this run.
+                    PushMetrics.shared().counter(PushMetrics.ENDPOINTS_QUARANTINE_WRITE_FAILURE).incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void load() {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (final FileNotFoundException ex) {
+            return;
+        }
+        try {
+            while (true) {
+                final byte op = in.readByte();
+                final String endpointArn = in.readUTF();
+                final long timeMillis = in.readLong();
+                records++;
+                if (op == OP_QUARANTINE) {
+                    entries.putIfAbsent(endpointArn, new Entry(timeMillis));
+                } else if (op == OP_DELETED) {
+                    final Entry entry = entries.get(endpointArn);
+                    if (entry != null) {
+                        entry.deleted = true;
+                    }
+                } else if (op == OP_RELEASE) {
+                    entries.remove(endpointArn);
+                }
+            }
+        } catch (final EOFException ex) {
+            // End of the log, or a record torn by a crash.
+        } catch (final IOException ex) {
+            PushMetrics.shared().counter(PushMetrics.ENDPOINTS_QUARANTINE_WRITE_FAILURE).incrementAndGet();
+        } finally {
+            try {
+                in.close();
+            } catch (final IOException ignored) {
+                // Only read.
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        int written = 0;
+        try {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(out, OP_QUARANTINE, entry.getKey(), entry.getValue().quarantinedAtMillis);
+                written++;
+                if (entry.getValue().deleted) {
+                    writeRecord(out, OP_DELETED, entry.getKey(), entry.getValue().quarantinedAtMillis);
+                    written++;
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        records = written;
+    }
+
+    private static void writeRecord(final DataOutputStream out,
+                                    final byte op,
+                                    final String endpointArn,
+                                    final long timeMillis) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(endpointArn);
+        out.writeLong(timeMillis);
+    }
+}
@@ -0,0 +1,55 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+/**
+ * Snapshot of the attributes last known to be set on the SNS platform endpoint, used to
+ * skip control-plane calls that would not change anything.
+ */
+public class EndpointState {
+
+    private final String token;
+    private final boolean enabled;
+    private final long verifiedAt;
+
+    public EndpointState(final String token, final boolean enabled, final long verifiedAt) {
+        this.token = token;
+        this.enabled = enabled;
+        this.verifiedAt = verifiedAt;
+    }
+
+    /** @return device token registered with the endpoint */
+    public String getToken() {
+        return token;
+    }
+
+    /** @return value of the endpoint's Enabled attribute */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return time the attributes were last read from or written to SNS */
+    public long getVerifiedAt() {
+        return verifiedAt;
+    }
+
+    /**
+     * @param token device token
+     * @param enabled desired Enabled attribute
+     * @return true if the endpoint already has the given attributes
+     */
+    public boolean matches(final String token, final boolean enabled) {
+        return this.enabled == enabled && this.token != null && this.token.equals(token);
+    }
+
+    /**
+     * @param now current time
+     * @param ttlMillis how long a snapshot is trusted without asking SNS
+     * @return true if the snapshot should be revalidated against SNS
+     */
+    public boolean isStale(final long now, final long ttlMillis) {
+        return now - verifiedAt >= ttlMillis || now < verifiedAt;
+    }
+
+    public EndpointState withEnabled(final boolean enabled) {
+        return new EndpointState(token, enabled, verifiedAt);
+    }
+}
@@ -0,0 +1,489 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.CreatePlatformEndpointRequest;
+import com.amazonaws.services.sns.model.CreatePlatformEndpointResult;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.CreateTopicResult;
+import com.amazonaws.services.sns.model.DeleteEndpointRequest;
+import com.amazonaws.services.sns.model.Endpoint;
+import com.amazonaws.services.sns.model.EndpointDisabledException;
+import com.amazonaws.services.sns.model.GetEndpointAttributesRequest;
+import com.amazonaws.services.sns.model.GetEndpointAttributesResult;
+import com.amazonaws.services.sns.model.InvalidParameterException;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationRequest;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationResult;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.sns.model.SetEndpointAttributesRequest;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.UnsubscribeRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process SNS for load tests. Platform endpoints, topics and subscriptions are kept in
+ * memory; every call waits for a latency drawn from the configured model and may fail with
+ * {@code Throttling} or {@code EndpointDisabled} like the real service.
+ *
+ * <p>Modeled calls: create/get/set/delete/list platform endpoints, create topic, subscribe,
+ * unsubscribe and publish to an endpoint or topic. Any other call goes to an unreachable local
+ * address and fails, it never reaches AWS.</p>
+ */
+public class FakeAmazonSNS extends AmazonSNSClient {
+
+    /** Distribution of the simulated service time of a call. */
+    public interface Latency {
+        long nextMicros(Random random);
+    }
+
+    public static final Latency NO_LATENCY = fixedLatency(0);
+
+    private static final String ERROR_THROTTLING = "Throttling";
+    private static final String ERROR_ENDPOINT_DISABLED = "EndpointDisabled";
+    private static final String ERROR_NOT_FOUND = "NotFound";
+    private static final String ERROR_INVALID_PARAMETER = "InvalidParameter";
+
+    private static final String ATTRIBUTE_TOKEN = "Token";
+    private static final String ATTRIBUTE_ENABLED = "Enabled";
+    private static final String ATTRIBUTE_CUSTOM_USER_DATA = "CustomUserData";
+
+    private static final String ARN_PREFIX = "arn:aws:sns:us-east-1:000000000000:";
+    private static final int LIST_PAGE_SIZE = 100;
+
+    public static class Builder {
+
+        private Latency latency = NO_LATENCY;
+        private double throttlingProbability;
+        private int maxRequestsPerSecond;
+        private double endpointDisabledProbability;
+        private long seed = System.nanoTime();
+
+        /**
+         * Provides the latency of every call.
+         * @param latency latency model
+         * @return builder
+         */
+        public Builder withLatency(final Latency latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * Provides the probability that a call fails with {@code Throttling}.
+         * @param throttlingProbability probability between 0 and 1
+         * @return builder
+         */
+        public Builder withThrottlingProbability(final double throttlingProbability) {
+            this.throttlingProbability = throttlingProbability;
+            return this;
+        }
+
+        /**
+         * Provides the request rate above which calls fail with {@code Throttling}.
+         * @param maxRequestsPerSecond allowed requests per second, 0 for no limit
+         * @return builder
+         */
+        public Builder withMaxRequestsPerSecond(final int maxRequestsPerSecond) {
+            this.maxRequestsPerSecond = maxRequestsPerSecond;
+            return this;
+        }
+
+        /**
+         * Provides the probability that publishing finds the endpoint disabled by the push
+         * service, e.g. because the app was uninstalled. The endpoint stays disabled.
+         * @param endpointDisabledProbability probability between 0 and 1
+         * @return builder
+         */
+        public Builder withEndpointDisabledProbability(final double endpointDisabledProbability) {
+            this.endpointDisabledProbability = endpointDisabledProbability;
+            return this;
+        }
+
+        /**
+         * Provides the seed of the random source, for reproducible runs.
+         * @param seed seed
+         * @return builder
+         */
+        public Builder withSeed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public FakeAmazonSNS build() {
+            return new FakeAmazonSNS(this);
+        }
+    }
+
+    private static class PlatformEndpoint {
+        final String arn;
+        final String platformApplicationArn;
+        volatile String token;
+        volatile boolean enabled = true;
+        volatile String customUserData;
+
+        PlatformEndpoint(final String arn, final String platformApplicationArn, final String token) {
+            this.arn = arn;
+            this.platformApplicationArn = platformApplicationArn;
+            this.token = token;
+        }
+
+        Map<String, String> getAttributes() {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(ATTRIBUTE_TOKEN, token);
+            attributes.put(ATTRIBUTE_ENABLED, String.valueOf(enabled));
+            if (customUserData != null) {
+                attributes.put(ATTRIBUTE_CUSTOM_USER_DATA, customUserData);
+            }
+            return attributes;
+        }
+    }
+
+    private static class Subscription {
+        final String topicArn;
+        final String endpointArn;
+
+        Subscription(final String topicArn, final String endpointArn) {
+            this.topicArn = topicArn;
+            this.endpointArn = endpointArn;
+        }
+    }
+
+    private final Latency latency;
+    private final double throttlingProbability;
+    private final int maxRequestsPerSecond;
+    private final double endpointDisabledProbability;
+    private final Random random;
+
+    // Sorted by ARN, so listing pages through them in a stable order
+    private final ConcurrentSkipListMap<String, PlatformEndpoint> endpoints = new ConcurrentSkipListMap<>();
+    // Platform application ARN + token to endpoint ARN, for idempotent creation
+    private final Map<String, String> endpointsByToken = new ConcurrentHashMap<>();
+    // Topic ARN to its subscription ARNs
+    private final ConcurrentHashMap<String, Set<String>> topics = new ConcurrentHashMap<>();
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    // Guarded by this; second of the rate limit window and calls in it
+    private long rateWindowSecond;
+    private int rateWindowRequests;
+
+    private final AtomicLong messageIds = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong publishCount = new AtomicLong();
+    private final AtomicLong deliveryCount = new AtomicLong();
+
+    private FakeAmazonSNS(final Builder builder) {
+        super(new BasicAWSCredentials("fake", "fake"));
+        // Calls that are not modeled fail fast instead of reaching AWS.
+        setEndpoint("http://127.0.0.1:1");
+        this.latency = builder.latency;
+        this.throttlingProbability = builder.throttlingProbability;
+        this.maxRequestsPerSecond = builder.maxRequestsPerSecond;
+        this.endpointDisabledProbability = builder.endpointDisabledProbability;
+        this.random = new Random(builder.seed);
+    }
+
+    /** @return latency of a fixed duration */
+    public static Latency fixedLatency(final long micros) {
+        return new Latency() {
+            @Override
+            public long nextMicros(final Random random) {
+                return micros;
+            }
+        };
+    }
+
+    /** @return latency uniformly distributed between the bounds */
+    public static Latency uniformLatency(final long minMicros, final long maxMicros) {
+        return new Latency() {
+            @Override
+            public long nextMicros(final Random random) {
+                return minMicros + (long) (random.nextDouble() * (maxMicros - minMicros));
+            }
+        };
+    }
+
+    /**
+     * @param medianMicros median latency
+     * @param sigma spread, e.g. 0.5 gives a p99 about 3x the median
+     * @return log-normal latency with a long tail, as typically seen over mobile networks
+     */
+    public static Latency logNormalLatency(final long medianMicros, final double sigma) {
+        return new Latency() {
+            @Override
+            public long nextMicros(final Random random) {
+                return (long) (medianMicros * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    /** @return factory handing out this instance for every connection profile */
+    public SnsClientFactory toFactory() {
+        return new SnsClientFactory() {
+            @Override
+            public AmazonSNS createSns(final AWSCredentialsProvider credentialsProvider,
+                                       final ClientConfiguration clientConfiguration,
+                                       final Regions region) {
+                return FakeAmazonSNS.this;
+            }
+        };
+    }
+
+    @Override
+    public CreatePlatformEndpointResult createPlatformEndpoint(final CreatePlatformEndpointRequest request) {
+        beginRequest();
+        final String key = request.getPlatformApplicationArn() + "\n" + request.getToken();
+        synchronized (endpointsByToken) {
+            String arn = endpointsByToken.get(key);
+            if (arn == null || !endpoints.containsKey(arn)) {
+                arn = ARN_PREFIX + "endpoint/GCM/fake/" + UUID.randomUUID();
+                final PlatformEndpoint endpoint =
+                        new PlatformEndpoint(arn, request.getPlatformApplicationArn(), request.getToken());
+                endpoint.customUserData = request.getCustomUserData();
+                endpoints.put(arn, endpoint);
+                endpointsByToken.put(key, arn);
+            }
+            return new CreatePlatformEndpointResult().withEndpointArn(arn);
+        }
+    }
+
+    @Override
+    public GetEndpointAttributesResult getEndpointAttributes(final GetEndpointAttributesRequest request) {
+        beginRequest();
+        return new GetEndpointAttributesResult().withAttributes(getEndpoint(request.getEndpointArn()).getAttributes());
+    }
+
+    @Override
+    public void setEndpointAttributes(final SetEndpointAttributesRequest request) {
+        beginRequest();
+        final PlatformEndpoint endpoint = getEndpoint(request.getEndpointArn());
+        final Map<String, String> attributes = request.getAttributes();
+        if (attributes.containsKey(ATTRIBUTE_TOKEN)) {
+            synchronized (endpointsByToken) {
+                endpointsByToken.remove(endpoint.platformApplicationArn + "\n" + endpoint.token);
+                endpoint.token = attributes.get(ATTRIBUTE_TOKEN);
+                endpointsByToken.put(endpoint.platformApplicationArn + "\n" + endpoint.token, endpoint.arn);
+            }
+        }
+        if (attributes.containsKey(ATTRIBUTE_ENABLED)) {
+            endpoint.enabled = Boolean.parseBoolean(attributes.get(ATTRIBUTE_ENABLED));
+        }
+        if (attributes.containsKey(ATTRIBUTE_CUSTOM_USER_DATA)) {
+            endpoint.customUserData = attributes.get(ATTRIBUTE_CUSTOM_USER_DATA);
+        }
+    }
+
+    @Override
+    public void deleteEndpoint(final DeleteEndpointRequest request) {
+        beginRequest();
+        // Deleting a missing endpoint succeeds, like in SNS.
+        final PlatformEndpoint endpoint = endpoints.remove(request.getEndpointArn());
+        if (endpoint != null) {
+            endpointsByToken.remove(endpoint.platformApplicationArn + "\n" + endpoint.token);
+        }
+    }
+
+    @Override
+    public ListEndpointsByPlatformApplicationResult listEndpointsByPlatformApplication(
+            final ListEndpointsByPlatformApplicationRequest request) {
+        beginRequest();
+        final Map<String, PlatformEndpoint> remaining = request.getNextToken() == null
+                ? endpoints : endpoints.tailMap(request.getNextToken(), false);
+        final List<Endpoint> page = new ArrayList<>();
+        String lastArn = null;
+        for (PlatformEndpoint endpoint : remaining.values()) {
+            if (!endpoint.platformApplicationArn.equals(request.getPlatformApplicationArn())) {
+                continue;
+            }
+            if (page.size() == LIST_PAGE_SIZE) {
+                return new ListEndpointsByPlatformApplicationResult().withEndpoints(page).withNextToken(lastArn);
+            }
+            page.add(new Endpoint().withEndpointArn(endpoint.arn).withAttributes(endpoint.getAttributes()));
+            lastArn = endpoint.arn;
+        }
+        return new ListEndpointsByPlatformApplicationResult().withEndpoints(page);
+    }
+
+    @Override
+    public CreateTopicResult createTopic(final CreateTopicRequest request) {
+        beginRequest();
+        final String topicArn = ARN_PREFIX + request.getName();
+        topics.putIfAbsent(topicArn, newConcurrentSet());
+        return new CreateTopicResult().withTopicArn(topicArn);
+    }
+
+    @Override
+    public SubscribeResult subscribe(final SubscribeRequest request) {
+        beginRequest();
+        final Set<String> topicSubscriptions = getTopic(request.getTopicArn());
+        getEndpoint(request.getEndpoint());
+        final String subscriptionArn = request.getTopicArn() + ":" + UUID.randomUUID();
+        subscriptions.put(subscriptionArn, new Subscription(request.getTopicArn(), request.getEndpoint()));
+        topicSubscriptions.add(subscriptionArn);
+        return new SubscribeResult().withSubscriptionArn(subscriptionArn);
+    }
+
+    @Override
+    public void unsubscribe(final UnsubscribeRequest request) {
+        beginRequest();
+        final Subscription subscription = subscriptions.remove(request.getSubscriptionArn());
+        if (subscription == null) {
+            throw serviceException(new NotFoundException("Subscription does not exist"), ERROR_NOT_FOUND, 404);
+        }
+        final Set<String> topicSubscriptions = topics.get(subscription.topicArn);
+        if (topicSubscriptions != null) {
+            topicSubscriptions.remove(request.getSubscriptionArn());
+        }
+    }
+
+    @Override
+    public PublishResult publish(final PublishRequest request) {
+        beginRequest();
+        publishCount.incrementAndGet();
+        if (request.getTopicArn() != null) {
+            // Delivery to disabled endpoints is skipped, not reported to the publisher.
+            for (String subscriptionArn : getTopic(request.getTopicArn())) {
+                final Subscription subscription = subscriptions.get(subscriptionArn);
+                final PlatformEndpoint endpoint = subscription == null ? null : endpoints.get(subscription.endpointArn);
+                if (endpoint != null && endpoint.enabled) {
+                    deliveryCount.incrementAndGet();
+                }
+            }
+        } else {
+            final PlatformEndpoint endpoint = endpoints.get(request.getTargetArn());
+            if (endpoint == null) {
+                throw serviceException(new InvalidParameterException(
+                        "Invalid parameter: TargetArn Reason: No endpoint found for the target arn specified"),
+                        ERROR_INVALID_PARAMETER, 400);
+            }
+            if (endpoint.enabled && endpointDisabledProbability > 0
+                    && random.nextDouble() < endpointDisabledProbability) {
+                endpoint.enabled = false;
+            }
+            if (!endpoint.enabled) {
+                throw serviceException(new EndpointDisabledException("Endpoint is disabled"),
+                        ERROR_ENDPOINT_DISABLED, 400);
+            }
+            deliveryCount.incrementAndGet();
+        }
+        // Sequential IDs; UUIDs would make the fake's own SecureRandom the bottleneck.
+        return new PublishResult().withMessageId(Long.toHexString(messageIds.incrementAndGet()));
+    }
+
+    /**
+     * Creates an endpoint directly, without counting as a request; for seeding load tests.
+     * @param platformApplicationArn platform application ARN
+     * @param token device token
+     * @return endpoint ARN
+     */
+    public String addEndpoint(final String platformApplicationArn, final String token) {
+        final String arn = ARN_PREFIX + "endpoint/GCM/fake/" + UUID.randomUUID();
+        endpoints.put(arn, new PlatformEndpoint(arn, platformApplicationArn, token));
+        endpointsByToken.put(platformApplicationArn + "\n" + token, arn);
+        return arn;
+    }
+
+    /**
+     * Disables an endpoint, as the push service does when the token becomes invalid.
+     * @param endpointArn endpoint ARN
+     */
+    public void disableEndpoint(final String endpointArn) {
+        final PlatformEndpoint endpoint = endpoints.get(endpointArn);
+        if (endpoint != null) {
+            endpoint.enabled = false;
+        }
+    }
+
+    public int getEndpointCount() {
+        return endpoints.size();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public long getPublishCount() {
+        return publishCount.get();
+    }
+
+    /** @return number of notifications that reached an enabled endpoint */
+    public long getDeliveryCount() {
+        return deliveryCount.get();
+    }
+
+    private void beginRequest() {
+        requestCount.incrementAndGet();
+        final long micros = latency.nextMicros(random);
+        if (micros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        if ((throttlingProbability > 0 && random.nextDouble() < throttlingProbability) || (maxRequestsPerSecond > 0 && isOverRateLimit())) {
+            throttledCount.incrementAndGet();
+            throw serviceException(new AmazonServiceException("Rate exceeded"), ERROR_THROTTLING, 400);
+        }
+    }
+
+    private synchronized boolean isOverRateLimit() {
+        final long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        if (second != rateWindowSecond) {
+            rateWindowSecond = second;
+            rateWindowRequests = 0;
+        }
+        return ++rateWindowRequests > maxRequestsPerSecond;
+    }
+
+    private PlatformEndpoint getEndpoint(final String endpointArn) {
+        final PlatformEndpoint endpoint = endpointArn == null ? null : endpoints.get(endpointArn);
+        if (endpoint == null) {
+            throw serviceException(new NotFoundException("Endpoint does not exist"), ERROR_NOT_FOUND, 404);
+        }
+        return endpoint;
+    }
+
+    private Set<String> getTopic(final String topicArn) {
+        final Set<String> topicSubscriptions = topicArn == null ? null : topics.get(topicArn);
+        if (topicSubscriptions == null) {
+            throw serviceException(new NotFoundException("Topic does not exist"), ERROR_NOT_FOUND, 404);
+        }
+        return topicSubscriptions;
+    }
+
+    private static Set<String> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    private static AmazonServiceException serviceException(final AmazonServiceException ex,
+                                                           final String errorCode,
+                                                           final int statusCode) {
+        ex.setErrorCode(errorCode);
+        ex.setStatusCode(statusCode);
+        ex.setErrorType(AmazonServiceException.ErrorType.Client);
+        ex.setServiceName("AmazonSNS");
+        return ex;
+    }
+}
@@ -0,0 +1,117 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+/** Minimal JSON string escaping, enough to write the SNS message structures. */
+final class Json {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Json() {
+    }
+
+    /**
+     * Appends the value as a quoted JSON string.
+     * @param builder target
+     * @param value value to quote
+     */
+    static void appendQuoted(final StringBuilder builder, final CharSequence value) {
+        builder.append('"');
+        appendEscaped(builder, value);
+        builder.append('"');
+    }
+
+    /**
+     * Appends the value escaped for use inside a JSON string, without quotes.
+     * @param builder target
+     * @param value value to escape
+     */
+    static void appendEscaped(final StringBuilder builder, final CharSequence value) {
+        final int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+                continue;
+            }
+            builder.append(value, start, i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    builder.append("\\u")
+                            .append(HEX[(c >> 12) & 0xf])
+                            .append(HEX[(c >> 8) & 0xf])
+                            .append(HEX[(c >> 4) & 0xf])
+                            .append(HEX[c & 0xf]);
+                    break;
+            }
+            start = i + 1;
+        }
+        builder.append(value, start, length);
+    }
+
+    /**
+     * Appends the value escaped twice, for a JSON string nested inside another JSON string,
+     * without creating the intermediate once-escaped string.
+     * @param builder target
+     * @param value value to escape
+     */
+    static void appendDoubleEscaped(final StringBuilder builder, final CharSequence value) {
+        final int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+                continue;
+            }
+            builder.append(value, start, i);
+            switch (c) {
+                case '"':
+                    // \" escaped again
+                    builder.append("\\\\\\\"");
+                    break;
+                case '\\':
+                    // \\ escaped again
+                    builder.append("\\\\\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\\\n");
+                    break;
+                case '\r':
+                    builder.append("\\\\r");
+                    break;
+                case '\t':
+                    builder.append("\\\\t");
+                    break;
+                default:
+                    builder.append("\\\\u")
+                            .append(HEX[(c >> 12) & 0xf])
+                            .append(HEX[(c >> 8) & 0xf])
+                            .append(HEX[(c >> 4) & 0xf])
+                            .append(HEX[c & 0xf]);
+                    break;
+            }
+            start = i + 1;
+        }
+        builder.append(value, start, length);
+    }
+
+    /** @return the value escaped for use inside a JSON string, without quotes */
+    static String escape(final CharSequence value) {
+        final StringBuilder builder = new StringBuilder(value.length() + 16);
+        appendEscaped(builder, value);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,231 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+/**
+ * Streaming reader over the top-level fields of a JSON object. Values are only decoded when
+ * asked for, nested objects and arrays are skipped without being parsed into anything.
+ * Malformed input ends the iteration instead of throwing.
+ */
+public class JsonFieldReader {
+
+    private CharSequence json;
+    private int position;
+    private boolean valuePending;
+
+    /**
+     * Starts reading a new document; the reader can be re-used.
+     * @param json JSON object
+     * @return this reader
+     */
+    public JsonFieldReader reset(final CharSequence json) {
+        this.json = json;
+        this.position = 0;
+        this.valuePending = false;
+        skipWhitespace();
+        if (position < json.length() && json.charAt(position) == '{') {
+            position++;
+        } else {
+            position = json.length();
+        }
+        return this;
+    }
+
+    /** @return name of the next field, or null at the end of the object */
+    public String nextField() {
+        if (valuePending) {
+            skipValue();
+        }
+        skipWhitespace();
+        if (position < json.length() && json.charAt(position) == ',') {
+            position++;
+            skipWhitespace();
+        }
+        if (position >= json.length() || json.charAt(position) != '"') {
+            position = json.length();
+            return null;
+        }
+        final String name = readStringToken();
+        skipWhitespace();
+        if (name == null || position >= json.length() || json.charAt(position) != ':') {
+            position = json.length();
+            return null;
+        }
+        position++;
+        skipWhitespace();
+        valuePending = true;
+        return name;
+    }
+
+    /** @return value of the current field as a string, numbers and booleans as their literal, null otherwise */
+    public String stringValue() {
+        if (!valuePending || position >= json.length()) {
+            return null;
+        }
+        valuePending = false;
+        final char c = json.charAt(position);
+        if (c == '"') {
+            return readStringToken();
+        }
+        if (c == '{' || c == '[') {
+            skipNested();
+            return null;
+        }
+        final int start = position;
+        skipLiteral();
+        final String literal = json.subSequence(start, position).toString();
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * @param defaultValue value if the field is missing or not a number
+     * @return value of the current field as a long, parsed without boxing
+     */
+    public long longValue(final long defaultValue) {
+        if (!valuePending || position >= json.length()) {
+            return defaultValue;
+        }
+        valuePending = false;
+        final char first = json.charAt(position);
+        if (first == '"' || first == '{' || first == '[') {
+            skipValue(first);
+            return defaultValue;
+        }
+        final int start = position;
+        skipLiteral();
+        return PushPayloadReader.parseLong(json, start, position, defaultValue);
+    }
+
+    private void skipValue() {
+        valuePending = false;
+        if (position < json.length()) {
+            skipValue(json.charAt(position));
+        }
+    }
+
+    private void skipValue(final char first) {
+        if (first == '"') {
+            skipStringToken();
+        } else if (first == '{' || first == '[') {
+            skipNested();
+        } else {
+            skipLiteral();
+        }
+    }
+
+    private void skipLiteral() {
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            position++;
+        }
+    }
+
+    private void skipNested() {
+        int depth = 0;
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c == '"') {
+                skipStringToken();
+                continue;
+            }
+            position++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void skipStringToken() {
+        position++;
+        while (position < json.length()) {
+            final char c = json.charAt(position++);
+            if (c == '\\') {
+                position++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    private String readStringToken() {
+        position++;
+        final int start = position;
+        // Fast path, no escapes: a single substring.
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c == '"') {
+                final String value = json.subSequence(start, position).toString();
+                position++;
+                return value;
+            }
+            if (c == '\\') {
+                break;
+            }
+            position++;
+        }
+        final StringBuilder value = new StringBuilder(position - start + 16);
+        value.append(json, start, position);
+        while (position < json.length()) {
+            final char c = json.charAt(position++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (position >= json.length()) {
+                break;
+            }
+            final char escaped = json.charAt(position++);
+            switch (escaped) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'u':
+                    if (position + 4 > json.length()) {
+                        position = json.length();
+                        return null;
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        final int digit = Character.digit(json.charAt(position++), 16);
+                        if (digit < 0) {
+                            return null;
+                        }
+                        code = code * 16 + digit;
+                    }
+                    value.append((char) code);
+                    break;
+                default:
+                    value.append(escaped);
+                    break;
+            }
+        }
+        position = json.length();
+        return null;
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.sns.AmazonSNS;
+
+/** Creates the SNS client the first time it is needed, instead of on app startup. */
+public class LazySnsClient implements SnsClientProvider {
+
+    private final AWSCredentialsProvider credentialsProvider;
+    private final ClientConfiguration clientConfiguration;
+    private final Regions region;
+    private final SnsClientFactory factory;
+
+    private volatile AmazonSNS sns;
+
+    public LazySnsClient(final AWSCredentialsProvider credentialsProvider,
+                         final ClientConfiguration clientConfiguration,
+                         final Regions region) {
+        this(credentialsProvider, clientConfiguration, region, SnsClientFactory.AWS);
+    }
+
+    public LazySnsClient(final AWSCredentialsProvider credentialsProvider,
+                         final ClientConfiguration clientConfiguration,
+                         final Regions region,
+                         final SnsClientFactory factory) {
+        this.credentialsProvider = credentialsProvider;
+        this.clientConfiguration = clientConfiguration;
+        this.region = region;
+        this.factory = factory;
+    }
+
+    @Override
+    public AmazonSNS getSns() {
+        AmazonSNS client = sns;
+        if (client == null) {
+            synchronized (this) {
+                client = sns;
+                if (client == null) {
+                    client = factory.createSns(credentialsProvider, clientConfiguration, region);
+                    sns = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    /** @return true if the client was created already */
+    public boolean isCreated() {
+        return sns != null;
+    }
+}
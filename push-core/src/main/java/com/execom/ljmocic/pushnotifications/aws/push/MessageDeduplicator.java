@@ -0,0 +1,206 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the IDs of the most recently seen messages, so redelivered pushes can be dropped.
+ *
+ * <p>IDs are reduced to 64-bit hashes held in a ring buffer (eviction order) and an open
+ * addressing hash table (lookup), both plain {@code long[]}s allocated once; checking an ID
+ * allocates nothing. The ring is persisted as 8 bytes per ID.</p>
+ */
+public class MessageDeduplicator {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int FILE_VERSION = 1;
+    // Hash value marking an empty table slot
+    private static final long EMPTY = 0;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int capacity;
+    private final long[] ring;
+    private final long[] table;
+    private final int tableMask;
+
+    // Guarded by this.
+    private int ringStart;
+    private int size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public MessageDeduplicator(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        this.capacity = capacity;
+        this.ring = new long[capacity];
+        // At most half full, so probe sequences stay short.
+        this.table = new long[Integer.highestOneBit(capacity * 2 - 1) * 2];
+        this.tableMask = table.length - 1;
+    }
+
+    /**
+     * Checks whether the message was seen before and remembers it if not.
+     * @param messageId message ID
+     * @return true if the message is a duplicate
+     */
+    public synchronized boolean isDuplicate(final String messageId) {
+        final long hash = hash(messageId);
+        if (indexOf(hash) >= 0) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        add(hash);
+        return false;
+    }
+
+    /** @return number of duplicates detected */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return number of new messages seen */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes the remembered IDs, oldest first, to a temporary file and renames it over the target.
+     * @param file target file
+     * @throws IOException if writing failed, the previous file is left untouched
+     */
+    public void save(final File file) throws IOException {
+        final long[] hashes;
+        synchronized (this) {
+            hashes = new long[size];
+            for (int i = 0; i < size; i++) {
+                hashes[i] = ring[(ringStart + i) % capacity];
+            }
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileOutputStream fileStream = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        try {
+            out.writeByte(FILE_VERSION);
+            out.writeInt(hashes.length);
+            for (long hash : hashes) {
+                out.writeLong(hash);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Restores IDs saved with {@link #save(File)}. A missing or unreadable file is ignored.
+     * @param file file to read
+     * @throws IOException if the file exists but could not be read
+     */
+    public void load(final File file) throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (final FileNotFoundException ex) {
+            return;
+        }
+        try {
+            if (in.readUnsignedByte() != FILE_VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    final long hash = in.readLong();
+                    if (indexOf(hash) < 0) {
+                        add(hash);
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void add(final long hash) {
+        if (size == capacity) {
+            remove(ring[ringStart]);
+            ring[ringStart] = hash;
+            ringStart = (ringStart + 1) % capacity;
+        } else {
+            ring[(ringStart + size) % capacity] = hash;
+            size++;
+        }
+        int slot = (int) hash & tableMask;
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = hash;
+    }
+
+    private int indexOf(final long hash) {
+        int slot = (int) hash & tableMask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    private void remove(final long hash) {
+        int slot = indexOf(hash);
+        if (slot < 0) {
+            return;
+        }
+        // Backward shift deletion keeps every probe sequence intact without tombstones.
+        int next = (slot + 1) & tableMask;
+        while (table[next] != EMPTY) {
+            final int home = (int) table[next] & tableMask;
+            final boolean canMove = slot <= next
+                    ? home <= slot || home > next
+                    : home <= slot && home > next;
+            if (canMove) {
+                table[slot] = table[next];
+                slot = next;
+            }
+            next = (next + 1) & tableMask;
+        }
+        table[slot] = EMPTY;
+    }
+
+    private static long hash(final String value) {
+        // 64-bit FNV-1a over the UTF-16 code units
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+}
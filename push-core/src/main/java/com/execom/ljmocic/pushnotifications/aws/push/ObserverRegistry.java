@@ -0,0 +1,197 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Observers notified in the background. The registry is copy-on-write: adding and removing
+ * observers copies the array, dispatching reads the current array without locking, so observers
+ * can be removed while a notification is being dispatched to them.
+ *
+ * <p>Every observer is notified in a task of its own on the executor, so a slow observer doesn't
+ * delay the others. Each observer is timed as the operation {@code <metric prefix>.<class name>},
+ * failing when it throws, and notifications slower than the threshold are counted separately.</p>
+ *
+ * @param <T> observer type
+ */
+public class ObserverRegistry<T> {
+
+    /** Call made on every observer. */
+    public interface Notification<T> {
+        void notify(T observer);
+    }
+
+    /** Told about observers that threw, e.g. to log them. */
+    public interface FailureListener<T> {
+        void onObserverFailed(T observer, RuntimeException ex);
+    }
+
+    // Suffix of the counter of notifications slower than the threshold
+    static final String SUFFIX_SLOW = ".slow";
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Object lock = new Object();
+    private final String metricPrefix;
+    private final Executor executor;
+    private final long slowThresholdMicros;
+    private final FailureListener<T> failureListener;
+
+    // Replaced, never modified, under the lock.
+    private volatile Object[] observers = EMPTY;
+
+    /**
+     * @param metricPrefix name prefix of the observers' metrics
+     * @param executor executor notifying the observers
+     * @param slowThresholdMillis notification time above which an observer is counted as slow
+     */
+    public ObserverRegistry(final String metricPrefix, final Executor executor, final long slowThresholdMillis) {
+        this(metricPrefix, executor, slowThresholdMillis, null);
+    }
+
+    /**
+     * @param metricPrefix name prefix of the observers' metrics
+     * @param executor executor notifying the observers
+     * @param slowThresholdMillis notification time above which an observer is counted as slow
+     * @param failureListener told about observers that threw; may be null
+     */
+    public ObserverRegistry(final String metricPrefix,
+                            final Executor executor,
+                            final long slowThresholdMillis,
+                            final FailureListener<T> failureListener) {
+        this.metricPrefix = metricPrefix;
+        this.executor = executor;
+        this.slowThresholdMicros = TimeUnit.MILLISECONDS.toMicros(slowThresholdMillis);
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * @param observer observer to add
+     * @return false if the observer was already registered
+     */
+    public boolean add(final T observer) {
+        if (observer == null) {
+            throw new IllegalArgumentException("Missing observer.");
+        }
+        synchronized (lock) {
+            final Object[] current = observers;
+            if (indexOf(current, observer) >= 0) {
+                return false;
+            }
+            final Object[] updated = new Object[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = observer;
+            observers = updated;
+            return true;
+        }
+    }
+
+    /**
+     * Removes an observer; a notification already dispatched to it may still run.
+     * @param observer observer to remove
+     * @return false if the observer was not registered
+     */
+    public boolean remove(final T observer) {
+        synchronized (lock) {
+            final Object[] current = observers;
+            final int index = indexOf(current, observer);
+            if (index < 0) {
+                return false;
+            }
+            if (current.length == 1) {
+                observers = EMPTY;
+                return true;
+            }
+            final Object[] updated = new Object[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, updated.length - index);
+            observers = updated;
+            return true;
+        }
+    }
+
+    public int size() {
+        return observers.length;
+    }
+
+    /**
+     * Notifies the observers registered now, each in a task of its own. Observers that throw are
+     * counted as failed and reported to the failure listener, the others are still notified.
+     * @param notification call made on every observer
+     * @return future that completes once every observer returned
+     */
+    public Future<Void> dispatch(final Notification<T> notification) {
+        final Object[] snapshot = observers;
+        final FutureTask<Void> done = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        if (snapshot.length == 0) {
+            done.run();
+            return done;
+        }
+        final AtomicInteger remaining = new AtomicInteger(snapshot.length);
+        for (final Object observer : snapshot) {
+            final Runnable task = new Runnable() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    try {
+                        notifyObserver((T) observer, notification);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            done.run();
+                        }
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (final RejectedExecutionException ex) {
+                // The future must still complete, the caller notifies the observer itself.
+                task.run();
+            }
+        }
+        return done;
+    }
+
+    private void notifyObserver(final T observer, final Notification<T> notification) {
+        final String name = metricPrefix + "." + observer.getClass().getName();
+        final PushMetrics.Operation metrics = PushMetrics.shared().operation(name);
+        final long start = metrics.start();
+        try {
+            notification.notify(observer);
+        } catch (final RuntimeException ex) {
+            metrics.failure(start);
+            countIfSlow(name, start);
+            if (failureListener != null) {
+                failureListener.onObserverFailed(observer, ex);
+            }
+            return;
+        }
+        metrics.success(start);
+        countIfSlow(name, start);
+    }
+
+    private void countIfSlow(final String name, final long startNanos) {
+        if (TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos) > slowThresholdMicros) {
+            PushMetrics.shared().counter(name + SUFFIX_SLOW).incrementAndGet();
+        }
+    }
+
+    private static int indexOf(final Object[] observers, final Object observer) {
+        for (int i = 0; i < observers.length; i++) {
+            if (observers[i].equals(observer)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
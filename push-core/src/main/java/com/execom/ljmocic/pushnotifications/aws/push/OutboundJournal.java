@@ -0,0 +1,547 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, crash-safe journal of outbound publishes.
+ *
+ * <p>Entries are appended to segment files ({@code <firstSeq>.log}), each record framed as
+ * {@code [length][crc32][body]} so a torn write at the tail is detected and truncated when the
+ * journal is opened. Acknowledged sequence numbers are appended to a sibling {@code .ack} file.
+ * Only a bit per record is kept in memory; entries are streamed from disk when read, and a
+ * segment is deleted as soon as all of its records are acknowledged. Segments holding only a few
+ * pending entries are {@link #compact}ed, and a failed append is rolled back so the tail never
+ * holds torn bytes that later records would be written behind.</p>
+ */
+public class OutboundJournal {
+
+    /** A journaled publish of one message to one target. */
+    public static class Entry {
+
+        private final long seq;
+        private final long createdAt;
+        private final String targetArn;
+        private final PushMessage message;
+
+        Entry(final long seq, final long createdAt, final String targetArn, final PushMessage message) {
+            this.seq = seq;
+            this.createdAt = createdAt;
+            this.targetArn = targetArn;
+            this.message = message;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public String getTargetArn() {
+            return targetArn;
+        }
+
+        public PushMessage getMessage() {
+            return message;
+        }
+    }
+
+    public static final long DEFAULT_SEGMENT_BYTES = 256 * 1024;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String ACK_SUFFIX = ".ack";
+    // Version 2 added the message structure
+    private static final int RECORD_VERSION = 2;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 4 * 1024 * 1024;
+    private static final String CHARSET = "UTF-8";
+    // Segments are compacted once no more than a quarter of at least this many records is pending
+    private static final int COMPACTION_MIN_RECORDS = 16;
+    private static final int COMPACTION_LIVE_RATIO = 4;
+
+    private static class Segment {
+        final long firstSeq;
+        final File logFile;
+        final File ackFile;
+        final BitSet acked = new BitSet();
+        int count;
+        int ackedCount;
+        long size;
+
+        Segment(final File directory, final long firstSeq) {
+            this.firstSeq = firstSeq;
+            final String name = String.format(Locale.US, "%020d", firstSeq);
+            this.logFile = new File(directory, name + LOG_SUFFIX);
+            this.ackFile = new File(directory, name + ACK_SUFFIX);
+        }
+
+        boolean contains(final long seq) {
+            return seq >= firstSeq && seq < firstSeq + count;
+        }
+
+        boolean isFullyAcked() {
+            return count > 0 && ackedCount == count;
+        }
+    }
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+
+    private boolean opened;
+    private long nextSeq;
+    private Segment tail;
+    private FileOutputStream tailStream;
+
+    public OutboundJournal(final File directory, final long maxSegmentBytes) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Appends one entry per target and syncs them to disk.
+     * @param message message to publish
+     * @param targetArns endpoint ARNs
+     * @return the journaled entries, in target order
+     * @throws IOException if the entries could not be made durable
+     */
+    public synchronized List<Entry> append(final PushMessage message,
+                                           final Collection<String> targetArns) throws IOException {
+        ensureOpen();
+        final List<Entry> entries = new ArrayList<>(targetArns.size());
+        final long now = System.currentTimeMillis();
+        final Checkpoint checkpoint = new Checkpoint();
+        try {
+            for (String targetArn : targetArns) {
+                entries.add(write(now, targetArn, message));
+            }
+            sync();
+        } catch (final IOException ex) {
+            checkpoint.rollBack();
+            throw ex;
+        }
+        return entries;
+    }
+
+    /**
+     * Moves the pending entries of segments that are mostly acknowledged to the tail, so the
+     * segments can be deleted instead of being kept around for a few entries. Moved entries get
+     * new sequence numbers and keep their creation time. A crash while compacting may leave an
+     * entry journaled twice, which at-least-once delivery allows.
+     * @param exclude sequence numbers that must keep theirs, e.g. entries currently being published
+     * @return number of entries moved
+     * @throws IOException if a segment could not be read or the moved entries could not be written
+     */
+    public synchronized int compact(final Set<Long> exclude) throws IOException {
+        ensureOpen();
+        int moved = 0;
+        for (Segment segment : new ArrayList<>(segments)) {
+            final int live = segment.count - segment.ackedCount;
+            if (segment == tail || segment.count < COMPACTION_MIN_RECORDS
+                    || live * COMPACTION_LIVE_RATIO > segment.count || containsPending(segment, exclude)) {
+                continue;
+            }
+            final List<Entry> entries = readPending(segment, Integer.MAX_VALUE, exclude);
+            final List<Long> oldSeqs = new ArrayList<>(entries.size());
+            final Checkpoint checkpoint = new Checkpoint();
+            try {
+                for (Entry entry : entries) {
+                    write(entry.createdAt, entry.targetArn, entry.message);
+                    oldSeqs.add(entry.seq);
+                }
+                sync();
+            } catch (final IOException ex) {
+                checkpoint.rollBack();
+                throw ex;
+            }
+            acknowledge(oldSeqs);
+            moved += entries.size();
+        }
+        return moved;
+    }
+
+    /**
+     * Marks entries as done, so they are never returned again. Segments that become fully
+     * acknowledged are deleted.
+     * @param seqs sequence numbers of the entries
+     * @throws IOException if the acknowledgements could not be written
+     */
+    public synchronized void acknowledge(final Collection<Long> seqs) throws IOException {
+        ensureOpen();
+        for (Segment segment : new ArrayList<>(segments)) {
+            long[] pending = new long[seqs.size()];
+            int pendingCount = 0;
+            for (Long seq : seqs) {
+                if (segment.contains(seq) && !segment.acked.get((int) (seq - segment.firstSeq))) {
+                    pending[pendingCount++] = seq;
+                }
+            }
+            if (pendingCount == 0) {
+                continue;
+            }
+            pending = Arrays.copyOf(pending, pendingCount);
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(segment.ackFile, true)));
+            try {
+                for (long seq : pending) {
+                    out.writeLong(seq);
+                }
+            } finally {
+                out.close();
+            }
+            for (long seq : pending) {
+                segment.acked.set((int) (seq - segment.firstSeq));
+                segment.ackedCount++;
+            }
+            if (segment.isFullyAcked()) {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Reads the oldest unacknowledged entries, streaming them from disk.
+     * @param max maximum number of entries to return
+     * @param exclude sequence numbers to skip, e.g. entries currently being published
+     * @return entries in journal order
+     * @throws IOException if a segment could not be read
+     */
+    public synchronized List<Entry> readPending(final int max, final Set<Long> exclude) throws IOException {
+        ensureOpen();
+        final List<Entry> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (entries.size() >= max) {
+                break;
+            }
+            if (segment.ackedCount == segment.count) {
+                continue;
+            }
+            entries.addAll(readPending(segment, max - entries.size(), exclude));
+        }
+        return entries;
+    }
+
+    /** @return number of entries that have not been acknowledged */
+    public synchronized int pendingCount() throws IOException {
+        ensureOpen();
+        int pending = 0;
+        for (Segment segment : segments) {
+            pending += segment.count - segment.ackedCount;
+        }
+        return pending;
+    }
+
+    public synchronized void close() throws IOException {
+        if (tailStream != null) {
+            tailStream.close();
+            tailStream = null;
+        }
+        tail = null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (opened) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+        final File[] files = directory.listFiles();
+        final List<Long> firstSeqs = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(ACK_SUFFIX)
+                        && !new File(directory, name.replace(ACK_SUFFIX, LOG_SUFFIX)).exists()) {
+                    // Left behind by a crash while deleting a segment.
+                    file.delete();
+                } else if (name.endsWith(LOG_SUFFIX)) {
+                    try {
+                        firstSeqs.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                    } catch (final NumberFormatException ex) {
+                        // Not a segment.
+                    }
+                }
+            }
+        }
+        Collections.sort(firstSeqs);
+        for (Long firstSeq : firstSeqs) {
+            final Segment segment = new Segment(directory, firstSeq);
+            recover(segment);
+            if (segment.count == 0 || segment.isFullyAcked()) {
+                deleteSegment(segment);
+                nextSeq = Math.max(nextSeq, segment.firstSeq + segment.count);
+                continue;
+            }
+            segments.add(segment);
+            nextSeq = Math.max(nextSeq, segment.firstSeq + segment.count);
+        }
+        opened = true;
+    }
+
+    private void recover(final Segment segment) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.logFile)));
+        long validBytes = 0;
+        try {
+            byte[] body;
+            while ((body = readRecord(in)) != null) {
+                segment.count++;
+                validBytes += RECORD_HEADER_BYTES + body.length;
+            }
+        } finally {
+            in.close();
+        }
+        if (validBytes < segment.logFile.length()) {
+            // Torn or corrupt tail, e.g. the process died in the middle of a write.
+            final RandomAccessFile file = new RandomAccessFile(segment.logFile, "rw");
+            try {
+                file.setLength(validBytes);
+            } finally {
+                file.close();
+            }
+        }
+        segment.size = validBytes;
+
+        if (segment.ackFile.exists()) {
+            final DataInputStream acks = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(segment.ackFile)));
+            try {
+                while (true) {
+                    final long seq = acks.readLong();
+                    if (segment.contains(seq) && !segment.acked.get((int) (seq - segment.firstSeq))) {
+                        segment.acked.set((int) (seq - segment.firstSeq));
+                        segment.ackedCount++;
+                    }
+                }
+            } catch (final EOFException ex) {
+                // End of the acknowledgements, a partial trailing value is ignored.
+            } finally {
+                acks.close();
+            }
+        }
+    }
+
+    private List<Entry> readPending(final Segment segment, final int max, final Set<Long> exclude) throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.logFile)));
+        try {
+            for (int i = 0; i < segment.count && entries.size() < max; i++) {
+                final byte[] body = readRecord(in);
+                if (body == null) {
+                    break;
+                }
+                final long seq = segment.firstSeq + i;
+                if (!segment.acked.get(i) && !exclude.contains(seq)) {
+                    entries.add(decode(body));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    private static boolean containsPending(final Segment segment, final Set<Long> seqs) {
+        for (Long seq : seqs) {
+            if (segment.contains(seq) && !segment.acked.get((int) (seq - segment.firstSeq))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Entry write(final long createdAt, final String targetArn, final PushMessage message) throws IOException {
+        if (tail == null || tail.size >= maxSegmentBytes) {
+            rollSegment();
+        }
+        final Entry entry = new Entry(nextSeq, createdAt, targetArn, message);
+        final byte[] record = encode(entry);
+        tailStream.write(record);
+        nextSeq++;
+        tail.count++;
+        tail.size += record.length;
+        return entry;
+    }
+
+    private void sync() throws IOException {
+        if (tailStream != null) {
+            tailStream.flush();
+            tailStream.getFD().sync();
+        }
+    }
+
+    /**
+     * State of the tail before a write, restored if the write fails. Otherwise later records would
+     * land behind the torn bytes, and recovery, which stops at the first torn record, would drop them.
+     */
+    private class Checkpoint {
+
+        private final Segment segment = tail;
+        private final int count = tail != null ? tail.count : 0;
+        private final long size = tail != null ? tail.size : 0;
+        private final long seq = nextSeq;
+
+        void rollBack() {
+            try {
+                close();
+            } catch (final IOException ex) {
+                // The stream is dropped either way.
+            }
+            // Segments rolled during the write only hold the failed records.
+            for (Segment rolled : new ArrayList<>(segments)) {
+                if (rolled.firstSeq >= seq && rolled != segment) {
+                    segments.remove(rolled);
+                    rolled.logFile.delete();
+                    rolled.ackFile.delete();
+                }
+            }
+            if (segment != null) {
+                segment.count = count;
+                segment.size = size;
+                try {
+                    final RandomAccessFile file = new RandomAccessFile(segment.logFile, "rw");
+                    try {
+                        file.setLength(size);
+                    } finally {
+                        file.close();
+                    }
+                } catch (final IOException ex) {
+                    // Torn bytes may remain, the next append rolls a new segment instead of writing behind them.
+                }
+            }
+            // The tail was closed, the next append starts a new segment; sequence numbers are not reused
+            // since the failed records may still be on disk.
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if (tailStream != null) {
+            tailStream.flush();
+            tailStream.getFD().sync();
+            tailStream.close();
+        }
+        tail = new Segment(directory, nextSeq);
+        segments.add(tail);
+        tailStream = new FileOutputStream(tail.logFile, true);
+    }
+
+    private void deleteSegment(final Segment segment) throws IOException {
+        if (segment == tail) {
+            close();
+        }
+        segments.remove(segment);
+        // The log goes first, so a crash in between never resurrects acknowledged entries.
+        if (!segment.logFile.delete() && segment.logFile.exists()) {
+            throw new IOException("Unable to delete journal segment " + segment.logFile);
+        }
+        if (!segment.ackFile.delete() && segment.ackFile.exists()) {
+            throw new IOException("Unable to delete journal acknowledgements " + segment.ackFile);
+        }
+    }
+
+    private static byte[] readRecord(final DataInputStream in) throws IOException {
+        final int length;
+        final int checksum;
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+        } catch (final EOFException ex) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+            return null;
+        }
+        final byte[] body = new byte[length];
+        try {
+            in.readFully(body);
+        } catch (final EOFException ex) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue() == checksum ? body : null;
+    }
+
+    private static byte[] encode(final Entry entry) throws IOException {
+        final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(256);
+        final DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeByte(RECORD_VERSION);
+        body.writeLong(entry.seq);
+        body.writeLong(entry.createdAt);
+        writeString(body, entry.targetArn);
+        writeString(body, entry.message.getSubject());
+        writeString(body, entry.message.getMessage());
+        writeString(body, entry.message.getMessageStructure());
+        body.flush();
+
+        final byte[] bodyArray = bodyBytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bodyArray, 0, bodyArray.length);
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_BYTES + bodyArray.length);
+        final DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(bodyArray.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bodyArray);
+        out.flush();
+        return record.toByteArray();
+    }
+
+    private static Entry decode(final byte[] body) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        final int version = in.readUnsignedByte();
+        if (version < 1 || version > RECORD_VERSION) {
+            throw new IOException("Unsupported journal record version " + version);
+        }
+        final long seq = in.readLong();
+        final long createdAt = in.readLong();
+        final String targetArn = readString(in);
+        final String subject = readString(in);
+        final String message = readString(in);
+        final String messageStructure = version >= 2 ? readString(in) : null;
+        return new Entry(seq, createdAt, targetArn, new PushMessage(subject, message, messageStructure));
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
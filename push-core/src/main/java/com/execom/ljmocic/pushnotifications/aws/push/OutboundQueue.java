@@ -0,0 +1,340 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.retry.ErrorClassifier;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The OutboundQueue journals every publish before it is attempted, and replays publishes
+ * that failed with a transient error in batches until they go through.
+ *
+ * <p>All journal I/O happens on the given single-threaded executor, so callers never touch
+ * the disk. Publishes are at-least-once: an entry is acknowledged in the journal only after
+ * it was delivered to SNS or failed permanently. Interactive sends are the exception: they are
+ * published right away, without waiting behind the executor's other work, and only targets that
+ * failed with a transient error are journaled, so they are lost if the process dies during the
+ * first attempt. Entries that keep failing with transient errors are given up on after a number
+ * of attempts or once they are too old, and counted as {@link PushMetrics#OUTBOUND_EXPIRED}.</p>
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    // Attempts per entry, and how long an entry is retried, before it is given up on
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    // Jittered delays between drains of entries that failed, from 5 seconds to 5 minutes
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy.Builder()
+            .withBaseDelayMillis(TimeUnit.SECONDS.toMillis(5))
+            .withMaxDelayMillis(TimeUnit.MINUTES.toMillis(5))
+            .build();
+
+    private final OutboundJournal journal;
+    private final PushDispatcher dispatcher;
+    private final ScheduledExecutorService executor;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long maxAgeMillis;
+
+    // Entries currently being published, the drainer must not pick them up again.
+    private final Set<Long> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    // Only accessed on the executor.
+    private ScheduledFuture<?> retry;
+    private long retryDelayMillis = RETRY_POLICY.getBaseDelayMillis();
+    // Failed attempts per sequence number since the process started
+    private final Map<Long, Integer> attempts = new HashMap<>();
+
+    public OutboundQueue(final OutboundJournal journal,
+                         final PushDispatcher dispatcher,
+                         final ScheduledExecutorService executor,
+                         final int batchSize) {
+        this(journal, dispatcher, executor, batchSize, DEFAULT_MAX_ATTEMPTS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param journal journal of the publishes
+     * @param dispatcher dispatcher publishing the entries
+     * @param executor single-threaded executor doing the journal I/O
+     * @param batchSize entries replayed at once
+     * @param maxAttempts attempts after which an entry failing with transient errors is given up on
+     * @param maxAgeMillis time after which an entry that was not delivered yet is given up on
+     */
+    public OutboundQueue(final OutboundJournal journal,
+                         final PushDispatcher dispatcher,
+                         final ScheduledExecutorService executor,
+                         final int batchSize,
+                         final int maxAttempts,
+                         final long maxAgeMillis) {
+        this.journal = journal;
+        this.dispatcher = dispatcher;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Journals the message for every target and publishes it right away. Targets that fail
+     * with a transient error stay in the journal and are retried in the background.
+     * @param message message to publish
+     * @param targetArns endpoint ARNs
+     * @param callback notified with the result of the first attempt; may be null
+     */
+    public void send(final PushMessage message,
+                     final Collection<String> targetArns,
+                     final PushDispatcher.Callback callback) {
+        send(message, targetArns, PushDispatcher.Lane.NORMAL, callback);
+    }
+
+    /**
+     * Journals the message for every target and publishes it right away in the given lane.
+     * Retries of targets that failed are published in the normal lane. Interactive sends are
+     * published first and only their failed targets are journaled.
+     * @param message message to publish
+     * @param targetArns endpoint ARNs
+     * @param lane dispatcher lane of the first attempt
+     * @param callback notified with the result of the first attempt; may be null
+     */
+    public void send(final PushMessage message,
+                     final Collection<String> targetArns,
+                     final PushDispatcher.Lane lane,
+                     final PushDispatcher.Callback callback) {
+        final List<String> targets = new ArrayList<>(targetArns);
+        if (lane == PushDispatcher.Lane.INTERACTIVE) {
+            // The executor may be busy with drains and fan-outs, a user must not wait for them.
+            sendWithoutJournal(message, targets, lane, callback);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<OutboundJournal.Entry> entries;
+                try {
+                    entries = journal.append(message, targets);
+                } catch (final IOException ex) {
+                    // Without the journal the publish can't be retried, but it can still be tried once.
+                    dispatcher.dispatch(message, targets, lane, callback);
+                    return;
+                }
+                publish(entries, lane, callback, false);
+            }
+        });
+    }
+
+    /** Replays pending entries in the background; does nothing if a drain is already scheduled. */
+    public void drain() {
+        if (!drainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drainScheduled.set(false);
+                final List<OutboundJournal.Entry> batch;
+                final List<Long> expired = new ArrayList<>();
+                try {
+                    batch = journal.readPending(batchSize, inFlight);
+                    final long now = System.currentTimeMillis();
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        // Entries may have aged out while the process was not running.
+                        if (now - batch.get(i).getCreatedAt() >= maxAgeMillis) {
+                            expired.add(batch.remove(i).getSeq());
+                        }
+                    }
+                    if (!expired.isEmpty()) {
+                        journal.acknowledge(expired);
+                        attempts.keySet().removeAll(expired);
+                        PushMetrics.shared().counter(PushMetrics.OUTBOUND_EXPIRED).addAndGet(expired.size());
+                    }
+                } catch (final IOException ex) {
+                    scheduleRetry();
+                    return;
+                }
+                if (!batch.isEmpty()) {
+                    publish(batch, PushDispatcher.Lane.NORMAL, null, true);
+                } else if (!expired.isEmpty()) {
+                    drain();
+                }
+            }
+        });
+    }
+
+    /** Retries pending entries immediately, e.g. when the network came back. */
+    public void onNetworkAvailable() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (retry != null) {
+                    retry.cancel(false);
+                    retry = null;
+                }
+                retryDelayMillis = RETRY_POLICY.getBaseDelayMillis();
+                drain();
+            }
+        });
+    }
+
+    /** @return number of journaled entries that were not delivered yet */
+    public int getPendingCount() throws IOException {
+        return journal.pendingCount();
+    }
+
+    private void sendWithoutJournal(final PushMessage message,
+                                    final List<String> targets,
+                                    final PushDispatcher.Lane lane,
+                                    final PushDispatcher.Callback callback) {
+        dispatcher.dispatch(message, targets, lane, new PushDispatcher.Callback() {
+            @Override
+            public void onDispatchComplete(final DispatchResult result) {
+                final List<String> failed = new ArrayList<>();
+                for (int i = 0; i < targets.size(); i++) {
+                    final DispatchResult.Outcome outcome = result.getOutcomes().get(i);
+                    if (!outcome.isSuccess() && ErrorClassifier.isRetryable(outcome.getError())) {
+                        failed.add(targets.get(i));
+                    }
+                }
+                if (!failed.isEmpty()) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            journalFailed(message, failed);
+                        }
+                    });
+                }
+                if (callback != null) {
+                    callback.onDispatchComplete(result);
+                }
+            }
+        });
+    }
+
+    private void journalFailed(final PushMessage message, final List<String> targets) {
+        final List<OutboundJournal.Entry> entries;
+        try {
+            entries = journal.append(message, targets);
+        } catch (final IOException ex) {
+            // Not retried, like a send whose journal append failed.
+            return;
+        }
+        for (OutboundJournal.Entry entry : entries) {
+            attempts.put(entry.getSeq(), 1);
+        }
+        scheduleRetry();
+    }
+
+    private void publish(final List<OutboundJournal.Entry> entries,
+                         final PushDispatcher.Lane lane,
+                         final PushDispatcher.Callback callback,
+                         final boolean continueDraining) {
+        final List<String> targets = new ArrayList<>(entries.size());
+        final List<PushMessage> messages = new ArrayList<>(entries.size());
+        for (OutboundJournal.Entry entry : entries) {
+            inFlight.add(entry.getSeq());
+            targets.add(entry.getTargetArn());
+            messages.add(entry.getMessage());
+        }
+        dispatcher.dispatch(targets, messages, lane, new PushDispatcher.Callback() {
+            @Override
+            public void onDispatchComplete(final DispatchResult result) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final boolean allSettled = settle(entries, result);
+                        if (allSettled && continueDraining) {
+                            drain();
+                        }
+                    }
+                });
+                if (callback != null) {
+                    callback.onDispatchComplete(result);
+                }
+            }
+        });
+    }
+
+    private boolean settle(final List<OutboundJournal.Entry> entries, final DispatchResult result) {
+        final List<Long> done = new ArrayList<>(entries.size());
+        boolean retryNeeded = false;
+        int expired = 0;
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < entries.size(); i++) {
+            final OutboundJournal.Entry entry = entries.get(i);
+            final DispatchResult.Outcome outcome = result.getOutcomes().get(i);
+            if (outcome.isSuccess() || !ErrorClassifier.isRetryable(outcome.getError())) {
+                done.add(entry.getSeq());
+                continue;
+            }
+            final Integer previous = attempts.get(entry.getSeq());
+            final int attempt = previous == null ? 1 : previous + 1;
+            if (attempt >= maxAttempts || now - entry.getCreatedAt() >= maxAgeMillis) {
+                // A target that keeps failing would otherwise pin its journal segment forever.
+                done.add(entry.getSeq());
+                expired++;
+            } else {
+                attempts.put(entry.getSeq(), attempt);
+                retryNeeded = true;
+            }
+        }
+        try {
+            journal.acknowledge(done);
+            for (Long seq : done) {
+                attempts.remove(seq);
+            }
+            if (expired > 0) {
+                PushMetrics.shared().counter(PushMetrics.OUTBOUND_EXPIRED).addAndGet(expired);
+            }
+        } catch (final IOException ex) {
+            // Entries stay pending and will be published again.
+            retryNeeded = true;
+        }
+        for (OutboundJournal.Entry entry : entries) {
+            inFlight.remove(entry.getSeq());
+        }
+        try {
+            if (journal.compact(inFlight) > 0) {
+                // Moved entries have new sequence numbers, so the counts start over; the age
+                // limit still bounds how long they are retried.
+                attempts.clear();
+            }
+        } catch (final IOException ex) {
+            // Compacted on a later settle.
+        }
+        if (retryNeeded) {
+            scheduleRetry();
+            return false;
+        }
+        retryDelayMillis = RETRY_POLICY.getBaseDelayMillis();
+        return true;
+    }
+
+    private void scheduleRetry() {
+        if (retry != null && !retry.isDone()) {
+            return;
+        }
+        // While SNS is unreachable the circuit breaker fails the drains right away, the
+        // growing delay keeps the queue from spinning on them.
+        retryDelayMillis = RETRY_POLICY.nextDelayMillis(retryDelayMillis);
+        retry = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, retryDelayMillis, TimeUnit.MILLISECONDS);
+    }
+}
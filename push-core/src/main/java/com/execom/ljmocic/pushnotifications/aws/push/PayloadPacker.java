@@ -0,0 +1,250 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Fits payloads into the 4096 bytes of data GCM accepts. Messages above a threshold are gzipped
+ * and Base64 encoded, messages still too large are split into chunks sharing a group ID, which
+ * the receiver puts back together with a {@link ChunkReassembler} before {@link #unpack}ing them.
+ *
+ * <p>Compressed payloads carry no APNS alert, since iOS would show the encoded text.</p>
+ */
+public class PayloadPacker {
+
+    public static final String ENCODING_GZIP = "gzip";
+
+    // Message bytes, after JSON escaping, above which the message is compressed
+    public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 512;
+    // Message bytes per payload, leaving room for the title, fields and chunk headers
+    public static final int DEFAULT_MAX_MESSAGE_BYTES = 3072;
+    // Chunks per message, bounding what receivers buffer
+    public static final int DEFAULT_MAX_CHUNKS = 32;
+    // Largest message unpacked, so a corrupt or hostile payload can't exhaust memory
+    private static final int MAX_UNPACKED_BYTES = 1024 * 1024;
+
+    public static final PayloadPacker DEFAULT = new PayloadPacker(DEFAULT_COMPRESSION_THRESHOLD_BYTES,
+            DEFAULT_MAX_MESSAGE_BYTES, DEFAULT_MAX_CHUNKS);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_VALUES[BASE64[i]] = i;
+        }
+    }
+
+    private final int compressionThresholdBytes;
+    private final int maxMessageBytes;
+    private final int maxChunks;
+
+    /**
+     * @param compressionThresholdBytes message bytes above which the message is compressed
+     * @param maxMessageBytes message bytes per payload
+     * @param maxChunks maximum number of chunks per message
+     */
+    public PayloadPacker(final int compressionThresholdBytes, final int maxMessageBytes, final int maxChunks) {
+        if (maxMessageBytes < 4 || maxChunks < 1) {
+            throw new IllegalArgumentException("Payloads must fit at least one chunk of 4 bytes.");
+        }
+        this.compressionThresholdBytes = compressionThresholdBytes;
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxChunks = maxChunks;
+    }
+
+    /**
+     * Builds the payloads to publish, one unless the message had to be chunked. Every target
+     * must receive all of them.
+     * @param builder payload; its message ID, if any, becomes the group ID of the chunks
+     * @return payloads in chunk order
+     * @throws IllegalArgumentException if the compressed message needs more than the maximum number of chunks
+     */
+    public List<PushPayload> pack(final PushPayload.Builder builder) {
+        final String message = builder.getMessage();
+        if (message == null) {
+            throw new IllegalArgumentException("Missing message.");
+        }
+        final int messageBytes = escapedUtf8Length(message);
+        if (messageBytes <= compressionThresholdBytes) {
+            return Collections.singletonList(builder.build());
+        }
+
+        final String compressed = base64(gzip(message.getBytes(UTF_8)));
+        if (compressed.length() >= messageBytes && messageBytes <= maxMessageBytes) {
+            // Incompressible and fits as it is.
+            return Collections.singletonList(builder.build());
+        }
+        PushMetrics.shared().counter(PushMetrics.PAYLOAD_COMPRESSED).incrementAndGet();
+        if (compressed.length() <= maxMessageBytes) {
+            return Collections.singletonList(builder.copy()
+                    .withMessage(compressed)
+                    .withData(PushPayload.KEY_ENCODING, ENCODING_GZIP)
+                    .withApns(false)
+                    .build());
+        }
+
+        final int count = (compressed.length() + maxMessageBytes - 1) / maxMessageBytes;
+        if (count > maxChunks) {
+            throw new IllegalArgumentException("Message of " + messageBytes + " bytes needs " + count
+                    + " chunks when compressed, at most " + maxChunks + " are sent.");
+        }
+        PushMetrics.shared().counter(PushMetrics.PAYLOAD_CHUNKED).incrementAndGet();
+        final String groupId = builder.getMessageId() != null ? builder.getMessageId() : UUID.randomUUID().toString();
+        final List<PushPayload> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(builder.copy()
+                    .withMessage(compressed.substring(i * maxMessageBytes,
+                            Math.min(compressed.length(), (i + 1) * maxMessageBytes)))
+                    // Each chunk is a message of its own to the receiver's de-duplication.
+                    .withMessageId(groupId + ":" + i)
+                    .withData(PushPayload.KEY_ENCODING, ENCODING_GZIP)
+                    .withData(PushPayload.KEY_CHUNK, i + "/" + count)
+                    .withData(PushPayload.KEY_CHUNK_GROUP, groupId)
+                    .withApns(false)
+                    .build());
+        }
+        return chunks;
+    }
+
+    /**
+     * Decodes a received message, after its chunks were reassembled.
+     * @param encoding value of {@link PushPayload#KEY_ENCODING}, null if the message is plain text
+     * @param message received message
+     * @return message text
+     * @throws IOException if the encoding is unknown or the message is corrupt
+     */
+    public static String unpack(final String encoding, final String message) throws IOException {
+        if (encoding == null) {
+            return message;
+        }
+        if (!ENCODING_GZIP.equals(encoding)) {
+            throw new IOException("Unknown payload encoding " + encoding);
+        }
+        return new String(gunzip(unbase64(message)), UTF_8);
+    }
+
+    /** @return UTF-8 length of the value once escaped as a JSON string, without encoding it */
+    static int escapedUtf8Length(final String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\t') {
+                length += 2;
+            } else if (c < 0x20) {
+                length += 6;
+            } else if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                // A surrogate pair takes 4 bytes.
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static byte[] gzip(final byte[] bytes) {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2 + 32);
+        try {
+            final GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(bytes);
+            out.close();
+        } catch (final IOException ex) {
+            // Not thrown by in-memory streams.
+            throw new IllegalStateException(ex);
+        }
+        return compressed.toByteArray();
+    }
+
+    static byte[] gunzip(final byte[] bytes) throws IOException {
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(bytes.length * 4, MAX_UNPACKED_BYTES));
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_UNPACKED_BYTES) {
+                    throw new IOException("Unpacked message exceeds " + MAX_UNPACKED_BYTES + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static String base64(final byte[] bytes) {
+        final StringBuilder text = new StringBuilder((bytes.length + 2) / 3 * 4);
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            final int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            text.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f])
+                    .append(BASE64[(bits >>> 6) & 0x3f]).append(BASE64[bits & 0x3f]);
+        }
+        final int remaining = bytes.length - i;
+        if (remaining > 0) {
+            final int bits = (bytes[i] & 0xff) << 16 | (remaining == 2 ? (bytes[i + 1] & 0xff) << 8 : 0);
+            text.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f])
+                    .append(remaining == 2 ? BASE64[(bits >>> 6) & 0x3f] : '=')
+                    .append('=');
+        }
+        return text.toString();
+    }
+
+    static byte[] unbase64(final String text) throws IOException {
+        if (text.length() % 4 != 0) {
+            throw new IOException("Truncated Base64 of " + text.length() + " characters");
+        }
+        int padding = 0;
+        if (text.endsWith("==")) {
+            padding = 2;
+        } else if (text.endsWith("=")) {
+            padding = 1;
+        }
+        final byte[] bytes = new byte[text.length() / 4 * 3 - padding];
+        int out = 0;
+        for (int i = 0; i < text.length(); i += 4) {
+            int bits = 0;
+            for (int j = 0; j < 4; j++) {
+                final char c = text.charAt(i + j);
+                int value = 0;
+                if (c != '=' || i + j < text.length() - padding) {
+                    value = c < 128 ? BASE64_VALUES[c] : -1;
+                    if (value < 0) {
+                        throw new IOException("Invalid Base64 character at " + (i + j));
+                    }
+                }
+                bits = bits << 6 | value;
+            }
+            bytes[out++] = (byte) (bits >>> 16);
+            if (out < bytes.length) {
+                bytes[out++] = (byte) (bits >>> 8);
+            }
+            if (out < bytes.length) {
+                bytes[out++] = (byte) bits;
+            }
+        }
+        return bytes;
+    }
+}
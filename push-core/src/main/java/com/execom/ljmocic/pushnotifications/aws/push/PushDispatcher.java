@@ -0,0 +1,445 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.model.PublishResult;
+import com.execom.ljmocic.pushnotifications.aws.metrics.LatencyHistogram;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.retry.ErrorClassifier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The PushDispatcher publishes one message to many targets in parallel and reports a single
+ * aggregate result once every target has completed. All fan-outs share at most
+ * {@code concurrency} workers on the shared network executor. Publishes go through a
+ * {@link SnsPublisher}, so workers wait for its rate limiter before each target.
+ *
+ * <p>Every fan-out is queued in a {@link Lane}. Whenever a worker is free it takes the next
+ * target from the lane that received the smallest share of publishes relative to its weight, so
+ * interactive sends overtake bulk traffic already queued while bulk traffic still progresses.
+ * Interactive publishes may use every worker, the other lanes together leave one free for them.</p>
+ */
+public class PushDispatcher {
+
+    public interface Callback {
+        void onDispatchComplete(DispatchResult result);
+    }
+
+    /** Priority of a fan-out, in descending order. */
+    public enum Lane {
+        /** Sends a user is waiting for. */
+        INTERACTIVE(8, PushMetrics.DISPATCH_QUEUE_WAIT_INTERACTIVE),
+        /** Retries and scheduled sends. */
+        NORMAL(3, PushMetrics.DISPATCH_QUEUE_WAIT_NORMAL),
+        /** Fan-outs to the whole endpoint directory. */
+        BULK(1, PushMetrics.DISPATCH_QUEUE_WAIT_BULK);
+
+        private final int weight;
+        private final String queueWaitMetric;
+
+        Lane(final int weight, final String queueWaitMetric) {
+            this.weight = weight;
+            this.queueWaitMetric = queueWaitMetric;
+        }
+
+        /** @return share of the publishes the lane gets while other lanes have targets queued */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    // Pass added for each publish of a lane of weight 1
+    private static final long STRIDE = 1 << 20;
+
+    /** Fan-outs of one lane waiting for workers. */
+    private static class LaneQueue {
+        final Lane lane;
+        final long stride;
+        final ArrayDeque<FanOut> fanOuts = new ArrayDeque<>();
+        final LatencyHistogram queueWait;
+        // Publishes of the lane so far, scaled by its weight
+        long pass;
+        int inFlight;
+
+        LaneQueue(final Lane lane) {
+            this.lane = lane;
+            this.stride = STRIDE / lane.weight;
+            this.queueWait = PushMetrics.shared().histogram(lane.queueWaitMetric);
+        }
+    }
+
+    private final SnsPublisher publisher;
+    private final Executor executor;
+    private final Executor callbackExecutor;
+    private final int concurrency;
+    private final EndpointQuarantine quarantine;
+    // Workers kept free for interactive publishes
+    private final int reservedWorkers;
+
+    // Guarded by the lanes array.
+    private final LaneQueue[] lanes;
+    private int workers;
+    private int nonInteractiveInFlight;
+    // Pass of the last publish, where a lane starts again once it had nothing queued
+    private long virtualPass;
+
+    /**
+     * Creates a dispatcher publishing without a rate limit.
+     * @param snsClientProvider supplies the SNS client
+     * @param executor executor running the publishes
+     * @param callbackExecutor executor running completion callbacks
+     * @param concurrency maximum number of parallel publishes
+     */
+    public PushDispatcher(final SnsClientProvider snsClientProvider,
+                          final Executor executor,
+                          final Executor callbackExecutor,
+                          final int concurrency) {
+        this(new SnsPublisher(snsClientProvider, null), executor, callbackExecutor, concurrency);
+    }
+
+    /**
+     * @param publisher publishes to SNS
+     * @param executor executor running the publishes
+     * @param callbackExecutor executor running completion callbacks
+     * @param concurrency maximum number of parallel publishes
+     */
+    public PushDispatcher(final SnsPublisher publisher,
+                          final Executor executor,
+                          final Executor callbackExecutor,
+                          final int concurrency) {
+        this(publisher, executor, callbackExecutor, concurrency, null);
+    }
+
+    /**
+     * @param publisher publishes to SNS
+     * @param executor executor running the publishes
+     * @param callbackExecutor executor running completion callbacks
+     * @param concurrency maximum number of parallel publishes
+     * @param quarantine receives targets SNS reports as dead; may be null
+     */
+    public PushDispatcher(final SnsPublisher publisher,
+                          final Executor executor,
+                          final Executor callbackExecutor,
+                          final int concurrency,
+                          final EndpointQuarantine quarantine) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1.");
+        }
+        this.publisher = publisher;
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+        this.concurrency = concurrency;
+        this.quarantine = quarantine;
+        this.reservedWorkers = concurrency > 1 ? 1 : 0;
+        final Lane[] values = Lane.values();
+        this.lanes = new LaneQueue[values.length];
+        for (int i = 0; i < values.length; i++) {
+            lanes[i] = new LaneQueue(values[i]);
+        }
+    }
+
+    /**
+     * Publishes the message to all targets without blocking the caller.
+     * @param message message to publish
+     * @param targetArns endpoint ARNs
+     * @param callback notified once, on the callback executor, after the last target completed; may be null
+     * @return future for the aggregate result
+     */
+    public Future<DispatchResult> dispatch(final PushMessage message,
+                                           final Collection<String> targetArns,
+                                           final Callback callback) {
+        return dispatch(message, targetArns, Lane.NORMAL, callback);
+    }
+
+    /**
+     * Publishes the message to all targets in the given lane without blocking the caller.
+     * @param message message to publish
+     * @param targetArns endpoint ARNs
+     * @param lane lane of the fan-out
+     * @param callback notified once, on the callback executor, after the last target completed; may be null
+     * @return future for the aggregate result
+     */
+    public Future<DispatchResult> dispatch(final PushMessage message,
+                                           final Collection<String> targetArns,
+                                           final Lane lane,
+                                           final Callback callback) {
+        final List<String> targets = new ArrayList<>(targetArns);
+        final FanOut fanOut = new FanOut(targets, Collections.nCopies(targets.size(), message), callback);
+        fanOut.start(lane);
+        return fanOut.result;
+    }
+
+    /**
+     * Publishes a different message to each target without blocking the caller.
+     * @param targetArns endpoint ARNs
+     * @param messages message for the target at the same index
+     * @param callback notified once, on the callback executor, after the last target completed; may be null
+     * @return future for the aggregate result, outcomes are in target order
+     */
+    public Future<DispatchResult> dispatch(final List<String> targetArns,
+                                           final List<PushMessage> messages,
+                                           final Callback callback) {
+        return dispatch(targetArns, messages, Lane.NORMAL, callback);
+    }
+
+    /**
+     * Publishes a different message to each target in the given lane without blocking the caller.
+     * @param targetArns endpoint ARNs
+     * @param messages message for the target at the same index
+     * @param lane lane of the fan-out
+     * @param callback notified once, on the callback executor, after the last target completed; may be null
+     * @return future for the aggregate result, outcomes are in target order
+     */
+    public Future<DispatchResult> dispatch(final List<String> targetArns,
+                                           final List<PushMessage> messages,
+                                           final Lane lane,
+                                           final Callback callback) {
+        if (targetArns.size() != messages.size()) {
+            throw new IllegalArgumentException("Every target needs exactly one message.");
+        }
+        final FanOut fanOut = new FanOut(new ArrayList<>(targetArns), new ArrayList<>(messages), callback);
+        fanOut.start(lane);
+        return fanOut.result;
+    }
+
+    /**
+     * Publishes the message to all targets and waits for the aggregate result. Must not be
+     * called from a thread of the executor running the publishes.
+     * @param message message to publish
+     * @param targetArns endpoint ARNs
+     * @return aggregate result
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public DispatchResult dispatchAndWait(final PushMessage message,
+                                          final Collection<String> targetArns) throws InterruptedException {
+        try {
+            return dispatch(message, targetArns, null).get();
+        } catch (final ExecutionException ex) {
+            // FanOut never completes exceptionally, failures are reported per target.
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private void enqueue(final FanOut fanOut, final Lane lane) {
+        final int newWorkers;
+        synchronized (lanes) {
+            final LaneQueue queue = lanes[lane.ordinal()];
+            if (queue.fanOuts.isEmpty() && queue.inFlight == 0) {
+                // An idle lane doesn't save up publishes for later.
+                queue.pass = Math.max(queue.pass, virtualPass);
+            }
+            queue.fanOuts.add(fanOut);
+            newWorkers = Math.min(concurrency - workers, fanOut.targets.size());
+            workers += newWorkers;
+        }
+        // A few workers pull targets until none is left, instead of one task per target.
+        for (int i = 0; i < newWorkers; i++) {
+            startWorker();
+        }
+    }
+
+    private void startWorker() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        });
+    }
+
+    private void work() {
+        LaneQueue queue = null;
+        while (true) {
+            final FanOut fanOut;
+            final int index;
+            synchronized (lanes) {
+                if (queue != null) {
+                    release(queue);
+                }
+                queue = next();
+                if (queue == null) {
+                    workers--;
+                    return;
+                }
+                fanOut = queue.fanOuts.peek();
+                index = fanOut.next++;
+                if (fanOut.next == fanOut.targets.size()) {
+                    queue.fanOuts.poll();
+                }
+                queue.queueWait.recordSince(fanOut.startNanos);
+            }
+            try {
+                fanOut.publish(index);
+            } catch (final Error err) {
+                // This worker dies with the error, another one takes over the targets left.
+                final boolean replace;
+                synchronized (lanes) {
+                    release(queue);
+                    replace = hasQueuedFanOuts();
+                    if (!replace) {
+                        workers--;
+                    }
+                }
+                if (replace) {
+                    startWorker();
+                }
+                throw err;
+            }
+        }
+    }
+
+    private boolean hasQueuedFanOuts() {
+        for (LaneQueue queue : lanes) {
+            if (!queue.fanOuts.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return lane the next target is taken from, with a worker counted for it; null if none may publish */
+    private LaneQueue next() {
+        LaneQueue selected = null;
+        for (LaneQueue queue : lanes) {
+            if (queue.fanOuts.isEmpty()) {
+                continue;
+            }
+            if (queue.lane != Lane.INTERACTIVE && nonInteractiveInFlight >= concurrency - reservedWorkers) {
+                continue;
+            }
+            // Ties go to the higher priority lane.
+            if (selected == null || queue.pass < selected.pass) {
+                selected = queue;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        virtualPass = selected.pass;
+        selected.pass += selected.stride;
+        selected.inFlight++;
+        if (selected.lane != Lane.INTERACTIVE) {
+            nonInteractiveInFlight++;
+        }
+        return selected;
+    }
+
+    private void release(final LaneQueue queue) {
+        queue.inFlight--;
+        if (queue.lane != Lane.INTERACTIVE) {
+            nonInteractiveInFlight--;
+        }
+    }
+
+    /** @return number of targets of the lane not yet taken by a worker */
+    public int getQueuedCount(final Lane lane) {
+        synchronized (lanes) {
+            int queued = 0;
+            for (FanOut fanOut : lanes[lane.ordinal()].fanOuts) {
+                queued += fanOut.targets.size() - fanOut.next;
+            }
+            return queued;
+        }
+    }
+
+    private class FanOut {
+
+        private final List<String> targets;
+        private final List<PushMessage> messages;
+        private final Callback callback;
+        private final AtomicReferenceArray<DispatchResult.Outcome> outcomes;
+        // Index of the next target taken by a worker, guarded by the lanes array
+        private int next;
+        private final AtomicInteger remaining;
+        private final FutureTask<DispatchResult> result;
+        private long startNanos;
+
+        FanOut(final List<String> targets, final List<PushMessage> messages, final Callback callback) {
+            this.targets = targets;
+            this.messages = messages;
+            this.callback = callback;
+            this.outcomes = new AtomicReferenceArray<>(targets.size());
+            this.remaining = new AtomicInteger(targets.size());
+            // Run by whichever worker completes the last target.
+            this.result = new FutureTask<>(new Callable<DispatchResult>() {
+                @Override
+                public DispatchResult call() {
+                    final DispatchResult.Outcome[] collected = new DispatchResult.Outcome[outcomes.length()];
+                    for (int i = 0; i < collected.length; i++) {
+                        collected[i] = outcomes.get(i);
+                    }
+                    return new DispatchResult(Arrays.asList(collected),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                }
+            });
+        }
+
+        void start(final Lane lane) {
+            startNanos = System.nanoTime();
+            if (targets.isEmpty()) {
+                complete();
+                return;
+            }
+            enqueue(this, lane);
+        }
+
+        void publish(final int index) {
+            final String targetArn = targets.get(index);
+            final long publishStart = System.nanoTime();
+            String messageId = null;
+            Exception error = null;
+            try {
+                final PublishResult publishResult = publisher.publish(messages.get(index).toPublishRequest(targetArn));
+                messageId = publishResult.getMessageId();
+            } catch (final Exception ex) {
+                error = ex;
+                if (quarantine != null && ErrorClassifier.isDeadEndpoint(ex)) {
+                    quarantine.quarantine(targetArn);
+                }
+            } catch (final Error err) {
+                // Still counted as done below, or the fan-out would never complete.
+                error = new IllegalStateException("Publishing failed", err);
+                throw err;
+            } finally {
+                // Includes the time spent waiting for the rate limiter.
+                final long latencyNanos = System.nanoTime() - publishStart;
+                outcomes.set(index, new DispatchResult.Outcome(targetArn, messageId, error,
+                        TimeUnit.NANOSECONDS.toMillis(latencyNanos)));
+                if (remaining.decrementAndGet() == 0) {
+                    complete();
+                }
+            }
+        }
+
+        private void complete() {
+            result.run();
+            if (callback == null) {
+                return;
+            }
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callback.onDispatchComplete(result.get());
+                    } catch (final InterruptedException | ExecutionException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.model.PublishRequest;
+
+/**
+ * Immutable description of a message to be published. A single instance is shared by all
+ * targets of a fan-out, a fresh {@link PublishRequest} is created for every target.
+ */
+public class PushMessage {
+
+    private final String subject;
+    private final String message;
+    private final String messageStructure;
+
+    public PushMessage(final String subject, final String message) {
+        this(subject, message, null);
+    }
+
+    /**
+     * @param subject subject, may be null
+     * @param message message
+     * @param messageStructure "json" if the message is a per-platform structure, otherwise null
+     */
+    public PushMessage(final String subject, final String message, final String messageStructure) {
+        if (message == null) {
+            throw new IllegalArgumentException("Missing message.");
+        }
+        this.subject = subject;
+        this.message = message;
+        this.messageStructure = messageStructure;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getMessageStructure() {
+        return messageStructure;
+    }
+
+    /**
+     * Creates the publish request for a single target.
+     * @param targetArn endpoint or topic ARN
+     * @return publish request
+     */
+    public PublishRequest toPublishRequest(final String targetArn) {
+        return new PublishRequest()
+                .withTargetArn(targetArn)
+                .withSubject(subject)
+                .withMessage(message)
+                .withMessageStructure(messageStructure);
+    }
+
+    /**
+     * Creates the publish request for a topic.
+     * @param topicArn topic ARN
+     * @return publish request
+     */
+    public PublishRequest toTopicPublishRequest(final String topicArn) {
+        return new PublishRequest()
+                .withTopicArn(topicArn)
+                .withSubject(subject)
+                .withMessage(message)
+                .withMessageStructure(messageStructure);
+    }
+}
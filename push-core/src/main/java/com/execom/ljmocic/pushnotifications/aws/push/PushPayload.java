@@ -0,0 +1,276 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A push payload encoded as an SNS per-platform message structure
+ * ({@code MessageStructure=json}), with the message and typed fields delivered as GCM data and,
+ * optionally, an APNS alert.
+ *
+ * <p>Payloads are rendered from a {@link Template} holding the pre-serialized fixed fields, so
+ * repeated sends only escape the message and message ID. The encoded JSON is computed once and
+ * shared by every target of a fan-out.</p>
+ */
+public class PushPayload {
+
+    public static final String MESSAGE_STRUCTURE_JSON = "json";
+
+    // Keys of the fields in the GCM data, read back by PushPayloadReader
+    public static final String KEY_DEFAULT = "default";
+    public static final String KEY_MESSAGE = "message";
+    public static final String KEY_TITLE = "title";
+    public static final String KEY_MESSAGE_ID = "messageId";
+    public static final String KEY_TRACE_ID = "traceId";
+    public static final String KEY_SENT_AT = "sentAt";
+    // Set by the PayloadPacker on compressed and chunked payloads
+    public static final String KEY_ENCODING = "encoding";
+    public static final String KEY_CHUNK = "chunk";
+    public static final String KEY_CHUNK_GROUP = "chunkGroup";
+
+    public static class Builder {
+
+        private String message;
+        private String title;
+        private String messageId;
+        private String traceId;
+        private long sentAtMillis = -1;
+        private boolean apns;
+        private final Map<String, String> data = new LinkedHashMap<>();
+
+        /**
+         * Provides the message, shown as notification text and sent as the default message.
+         * @param message message
+         * @return builder
+         */
+        public Builder withMessage(final String message) {
+            this.message = message;
+            return this;
+        }
+
+        /**
+         * Provides the notification title.
+         * @param title title
+         * @return builder
+         */
+        public Builder withTitle(final String title) {
+            this.title = title;
+            return this;
+        }
+
+        /**
+         * Provides an ID that stays the same across redeliveries, used to drop duplicates.
+         * @param messageId message ID
+         * @return builder
+         */
+        public Builder withMessageId(final String messageId) {
+            this.messageId = messageId;
+            return this;
+        }
+
+        /**
+         * Stamps the payload for delivery latency tracing, see {@link PushTrace}.
+         * @param traceId trace ID
+         * @param sentAtMillis send time, corrected for the clock offset to AWS
+         * @return builder
+         */
+        public Builder withTrace(final String traceId, final long sentAtMillis) {
+            this.traceId = traceId;
+            this.sentAtMillis = sentAtMillis;
+            return this;
+        }
+
+        /**
+         * Adds a custom field to the GCM data and the APNS payload.
+         * @param key field name
+         * @param value field value
+         * @return builder
+         */
+        public Builder withData(final String key, final String value) {
+            data.put(key, value);
+            return this;
+        }
+
+        /**
+         * Also sends an APNS structure, for topics with iOS subscribers.
+         * @param apns true to include APNS
+         * @return builder
+         */
+        public Builder withApns(final boolean apns) {
+            this.apns = apns;
+            return this;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        String getMessageId() {
+            return messageId;
+        }
+
+        /** @return a builder with the same fields, changed independently of this one */
+        Builder copy() {
+            final Builder copy = new Builder();
+            copy.message = message;
+            copy.title = title;
+            copy.messageId = messageId;
+            copy.traceId = traceId;
+            copy.sentAtMillis = sentAtMillis;
+            copy.apns = apns;
+            copy.data.putAll(data);
+            return copy;
+        }
+
+        /** @return template of the fixed fields, for rendering many payloads */
+        public Template toTemplate() {
+            return new Template(title, data, apns);
+        }
+
+        public PushPayload build() {
+            if (message == null) {
+                throw new IllegalArgumentException("Missing message.");
+            }
+            return toTemplate().render(message, messageId, traceId, sentAtMillis);
+        }
+    }
+
+    /** Pre-serialized fixed fields of a payload. Thread safe. */
+    public static class Template {
+
+        private static final String DEFAULT_PREFIX = "{\"" + KEY_DEFAULT + "\":\"";
+        private static final String GCM_PREFIX =
+                "\",\"GCM\":\"" + Json.escape("{\"data\":{\"" + KEY_MESSAGE + "\":\"");
+        private static final String GCM_SUFFIX = Json.escape("}}") + "\"";
+        private static final String APNS_PREFIX =
+                ",\"APNS\":\"" + Json.escape("{\"aps\":{\"alert\":\"");
+        private static final String APNS_SUFFIX = Json.escape("}") + "\"";
+        private static final String MESSAGE_ID_PREFIX = Json.escape(",\"" + KEY_MESSAGE_ID + "\":\"");
+        private static final String TRACE_ID_PREFIX = Json.escape(",\"" + KEY_TRACE_ID + "\":\"");
+        private static final String SENT_AT_PREFIX = Json.escape(",\"" + KEY_SENT_AT + "\":\"");
+        private static final String QUOTE = Json.escape("\"");
+
+        private final boolean apns;
+        // Closing quote of the message and the fixed fields, escaped for nesting in the structure
+        private final String gcmFields;
+        private final String apnsFields;
+
+        Template(final String title, final Map<String, String> data, final boolean apns) {
+            this.apns = apns;
+
+            final StringBuilder fields = new StringBuilder();
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                fields.append(',');
+                Json.appendQuoted(fields, entry.getKey());
+                fields.append(':');
+                Json.appendQuoted(fields, entry.getValue());
+            }
+
+            final StringBuilder gcm = new StringBuilder("\"");
+            if (title != null) {
+                gcm.append(",\"" + KEY_TITLE + "\":");
+                Json.appendQuoted(gcm, title);
+            }
+            gcm.append(fields);
+            gcmFields = Json.escape(gcm);
+
+            apnsFields = Json.escape("\"}" + fields);
+        }
+
+        /**
+         * Renders a payload, escaping only the variable parts.
+         * @param message message
+         * @param messageId message ID, may be null
+         * @return payload
+         */
+        public PushPayload render(final String message, final String messageId) {
+            return render(message, messageId, null, -1);
+        }
+
+        /**
+         * Renders a payload stamped for delivery latency tracing.
+         * @param message message
+         * @param messageId message ID, may be null
+         * @param traceId trace ID, may be null
+         * @param sentAtMillis send time, or -1 if not traced
+         * @return payload
+         */
+        public PushPayload render(final String message, final String messageId,
+                                  final String traceId, final long sentAtMillis) {
+            final int idLength = (messageId == null ? 0 : MESSAGE_ID_PREFIX.length() + messageId.length() + QUOTE.length())
+                    + (traceId == null ? 0 : TRACE_ID_PREFIX.length() + traceId.length() + QUOTE.length())
+                    + (sentAtMillis < 0 ? 0 : SENT_AT_PREFIX.length() + 20 + QUOTE.length());
+            final StringBuilder json = new StringBuilder(DEFAULT_PREFIX.length() + GCM_PREFIX.length()
+                    + gcmFields.length() + GCM_SUFFIX.length() + 3 * message.length() + idLength
+                    + (apns ? APNS_PREFIX.length() + apnsFields.length() + APNS_SUFFIX.length() + message.length() + idLength : 0)
+                    + 16);
+
+            json.append(DEFAULT_PREFIX);
+            Json.appendEscaped(json, message);
+            json.append(GCM_PREFIX);
+            Json.appendDoubleEscaped(json, message);
+            json.append(gcmFields);
+            appendVariableFields(json, messageId, traceId, sentAtMillis);
+            json.append(GCM_SUFFIX);
+
+            if (apns) {
+                json.append(APNS_PREFIX);
+                Json.appendDoubleEscaped(json, message);
+                json.append(apnsFields);
+                appendVariableFields(json, messageId, traceId, sentAtMillis);
+                json.append(APNS_SUFFIX);
+            }
+            json.append('}');
+            return new PushPayload(message, messageId, json.toString());
+        }
+
+        private static void appendVariableFields(final StringBuilder json, final String messageId,
+                                                 final String traceId, final long sentAtMillis) {
+            if (messageId != null) {
+                json.append(MESSAGE_ID_PREFIX);
+                Json.appendDoubleEscaped(json, messageId);
+                json.append(QUOTE);
+            }
+            if (traceId != null) {
+                json.append(TRACE_ID_PREFIX);
+                Json.appendDoubleEscaped(json, traceId);
+                json.append(QUOTE);
+            }
+            if (sentAtMillis >= 0) {
+                // GCM data values are strings
+                json.append(SENT_AT_PREFIX).append(sentAtMillis).append(QUOTE);
+            }
+        }
+    }
+
+    private final String message;
+    private final String messageId;
+    private final String json;
+
+    private PushPayload(final String message, final String messageId, final String json) {
+        this.message = message;
+        this.messageId = messageId;
+        this.json = json;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /** @return the encoded message structure */
+    public String toJson() {
+        return json;
+    }
+
+    /**
+     * @param subject subject of the publish, may be null
+     * @return message publishing this payload
+     */
+    public PushMessage toPushMessage(final String subject) {
+        return new PushMessage(subject, json, MESSAGE_STRUCTURE_JSON);
+    }
+}
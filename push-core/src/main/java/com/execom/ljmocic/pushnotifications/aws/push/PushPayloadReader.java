@@ -0,0 +1,166 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+/**
+ * Reads the fields of a received {@link PushPayload}. The reader is reset per message and can be
+ * kept by the receiving service, so reading a push creates no maps or parsers.
+ *
+ * <p>Pushes published without a message structure carry the whole payload as the default
+ * message; if that is a JSON object its fields are streamed out of it.</p>
+ */
+public class PushPayloadReader {
+
+    /** Key-value view of a received push, e.g. the GCM data bundle. */
+    public interface Source {
+        String getString(String key);
+    }
+
+    private final JsonFieldReader jsonReader = new JsonFieldReader();
+    private Source source;
+
+    /**
+     * Starts reading a new message.
+     * @param source fields of the message
+     * @return this reader
+     */
+    public PushPayloadReader reset(final Source source) {
+        this.source = source;
+        return this;
+    }
+
+    /** @return the message text, never null */
+    public String getMessage() {
+        final String message = getString(PushPayload.KEY_MESSAGE);
+        if (message != null) {
+            return message;
+        }
+        final String defaultMessage = source.getString(PushPayload.KEY_DEFAULT);
+        return defaultMessage == null ? "" : defaultMessage;
+    }
+
+    public String getTitle() {
+        return getString(PushPayload.KEY_TITLE);
+    }
+
+    public String getMessageId() {
+        return getString(PushPayload.KEY_MESSAGE_ID);
+    }
+
+    public String getTraceId() {
+        return getString(PushPayload.KEY_TRACE_ID);
+    }
+
+    /** @return send time stamped by the sender, or -1 if the message is not traced */
+    public long getSentAtMillis() {
+        return getLong(PushPayload.KEY_SENT_AT, -1);
+    }
+
+    /** @return encoding of the message, see {@link PayloadPacker#unpack(String, String)}, null if plain text */
+    public String getEncoding() {
+        return getString(PushPayload.KEY_ENCODING);
+    }
+
+    /** @return group ID if the message is a chunk of a larger one, otherwise null */
+    public String getChunkGroupId() {
+        return getString(PushPayload.KEY_CHUNK_GROUP);
+    }
+
+    /** @return index of the chunk in its group, or -1 if the message is not a chunk */
+    public int getChunkIndex() {
+        final String chunk = getString(PushPayload.KEY_CHUNK);
+        final int slash = chunk == null ? -1 : chunk.indexOf('/');
+        return slash < 0 ? -1 : (int) parseLong(chunk, 0, slash, -1);
+    }
+
+    /** @return number of chunks in the group, or -1 if the message is not a chunk */
+    public int getChunkCount() {
+        final String chunk = getString(PushPayload.KEY_CHUNK);
+        final int slash = chunk == null ? -1 : chunk.indexOf('/');
+        return slash < 0 ? -1 : (int) parseLong(chunk, slash + 1, chunk.length(), -1);
+    }
+
+    /**
+     * @param key field name
+     * @return value of the field, looked up in the default message if the push has no such field
+     */
+    public String getString(final String key) {
+        final String value = source.getString(key);
+        if (value != null) {
+            return value;
+        }
+        final String defaultMessage = source.getString(PushPayload.KEY_DEFAULT);
+        if (!isJsonObject(defaultMessage)) {
+            return null;
+        }
+        jsonReader.reset(defaultMessage);
+        for (String field = jsonReader.nextField(); field != null; field = jsonReader.nextField()) {
+            if (field.equals(key)) {
+                return jsonReader.stringValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key field name
+     * @param defaultValue value if the field is missing or not a number
+     * @return value of the field
+     */
+    public long getLong(final String key, final long defaultValue) {
+        final String value = source.getString(key);
+        if (value != null) {
+            return parseLong(value, 0, value.length(), defaultValue);
+        }
+        final String defaultMessage = source.getString(PushPayload.KEY_DEFAULT);
+        if (!isJsonObject(defaultMessage)) {
+            return defaultValue;
+        }
+        jsonReader.reset(defaultMessage);
+        for (String field = jsonReader.nextField(); field != null; field = jsonReader.nextField()) {
+            if (field.equals(key)) {
+                return jsonReader.longValue(defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static boolean isJsonObject(final String value) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    /** Parses a decimal long from part of the text, without creating a substring. */
+    static long parseLong(final CharSequence text, final int start, final int end, final long defaultValue) {
+        if (start >= end) {
+            return defaultValue;
+        }
+        int i = start;
+        final boolean negative = text.charAt(i) == '-';
+        if (negative && ++i == end) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            final int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                return defaultValue;
+            }
+            // Accumulated negatively so Long.MIN_VALUE parses.
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                return defaultValue;
+            }
+            return -value;
+        }
+        return value;
+    }
+}
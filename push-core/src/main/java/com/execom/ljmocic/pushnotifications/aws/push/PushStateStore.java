@@ -0,0 +1,377 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Push state of the device, kept in a single versioned binary file: the GCM token, the SNS
+ * endpoint with its last known attributes, whether push is enabled, the platform application
+ * the endpoint belongs to and the topic subscriptions.
+ *
+ * <p>The file is read once by {@link #load()}. Changes are made through an {@link Editor}, which
+ * updates the in-memory state right away. Edits applied in quick succession are written together
+ * on the disk executor, to a temporary file renamed over the old one, so a crash leaves either the
+ * old or the new state.</p>
+ */
+public class PushStateStore {
+
+    /** Immutable snapshot of the push state. */
+    public static class State {
+
+        static final State EMPTY = new State("", "", "", false, null,
+                Collections.<String, String>emptyMap());
+
+        private final String deviceToken;
+        private final String endpointArn;
+        private final String platformApplicationArn;
+        private final boolean pushEnabled;
+        private final EndpointState endpointState;
+        private final Map<String, String> topicSubscriptions;
+
+        State(final String deviceToken,
+              final String endpointArn,
+              final String platformApplicationArn,
+              final boolean pushEnabled,
+              final EndpointState endpointState,
+              final Map<String, String> topicSubscriptions) {
+            this.deviceToken = deviceToken;
+            this.endpointArn = endpointArn;
+            this.platformApplicationArn = platformApplicationArn;
+            this.pushEnabled = pushEnabled;
+            this.endpointState = endpointState;
+            this.topicSubscriptions = topicSubscriptions;
+        }
+
+        /** @return GCM token, empty if the device was never registered with GCM */
+        public String getDeviceToken() {
+            return deviceToken;
+        }
+
+        /** @return SNS endpoint ARN, empty if there is no endpoint */
+        public String getEndpointArn() {
+            return endpointArn;
+        }
+
+        /** @return platform application the endpoint was created for, empty if unknown */
+        public String getPlatformApplicationArn() {
+            return platformApplicationArn;
+        }
+
+        /** @return whether push should be enabled */
+        public boolean isPushEnabled() {
+            return pushEnabled;
+        }
+
+        /** @return last known attributes of the endpoint, null if unknown */
+        public EndpointState getEndpointState() {
+            return endpointState;
+        }
+
+        /** @return topic ARN to subscription ARN of this device's endpoint */
+        public Map<String, String> getTopicSubscriptions() {
+            return topicSubscriptions;
+        }
+    }
+
+    /** Collects changes to the state, in the style of {@code SharedPreferences.Editor}. */
+    public class Editor {
+
+        private String deviceToken;
+        private String endpointArn;
+        private String platformApplicationArn;
+        private Boolean pushEnabled;
+        private boolean endpointStateChanged;
+        private EndpointState endpointState;
+        private boolean clearRegistration;
+        private final Map<String, String> subscriptionChanges = new HashMap<>();
+
+        private Editor() {
+        }
+
+        public Editor putDeviceToken(final String deviceToken) {
+            this.deviceToken = deviceToken;
+            return this;
+        }
+
+        public Editor putEndpointArn(final String endpointArn) {
+            this.endpointArn = endpointArn;
+            return this;
+        }
+
+        public Editor putPlatformApplicationArn(final String platformApplicationArn) {
+            this.platformApplicationArn = platformApplicationArn;
+            return this;
+        }
+
+        public Editor putPushEnabled(final boolean pushEnabled) {
+            this.pushEnabled = pushEnabled;
+            return this;
+        }
+
+        /**
+         * @param endpointState last known attributes of the endpoint, or null if unknown
+         * @return this editor
+         */
+        public Editor putEndpointState(final EndpointState endpointState) {
+            this.endpointStateChanged = true;
+            this.endpointState = endpointState;
+            return this;
+        }
+
+        public Editor putTopicSubscription(final String topicArn, final String subscriptionArn) {
+            subscriptionChanges.put(topicArn, subscriptionArn);
+            return this;
+        }
+
+        public Editor removeTopicSubscription(final String topicArn) {
+            subscriptionChanges.put(topicArn, null);
+            return this;
+        }
+
+        /**
+         * Forgets the endpoint, its attributes and topic subscriptions, and disables push,
+         * before the other changes of this editor are made. The GCM token is kept.
+         * @return this editor
+         */
+        public Editor clearRegistration() {
+            clearRegistration = true;
+            return this;
+        }
+
+        /** Changes the in-memory state and writes it in the background. */
+        public void apply() {
+            merge();
+            scheduleWrite();
+        }
+
+        /**
+         * Changes the in-memory state and writes it before returning. Must be called from a
+         * background thread.
+         * @return true if the state was written
+         */
+        public boolean commit() {
+            merge();
+            return write();
+        }
+
+        private void merge() {
+            synchronized (PushStateStore.this) {
+                final State previous = clearRegistration
+                        ? new State(state.deviceToken, "", "", false, null, Collections.<String, String>emptyMap())
+                        : state;
+                final Map<String, String> subscriptions = new LinkedHashMap<>(previous.topicSubscriptions);
+                for (Map.Entry<String, String> change : subscriptionChanges.entrySet()) {
+                    if (change.getValue() == null) {
+                        subscriptions.remove(change.getKey());
+                    } else {
+                        subscriptions.put(change.getKey(), change.getValue());
+                    }
+                }
+                state = new State(
+                        deviceToken != null ? deviceToken : previous.deviceToken,
+                        endpointArn != null ? endpointArn : previous.endpointArn,
+                        platformApplicationArn != null ? platformApplicationArn : previous.platformApplicationArn,
+                        pushEnabled != null ? pushEnabled : previous.pushEnabled,
+                        endpointStateChanged ? endpointState : previous.endpointState,
+                        Collections.unmodifiableMap(subscriptions));
+                version++;
+            }
+        }
+    }
+
+    // Identifies the file, followed by the format version
+    private static final int MAGIC = 0x50534831;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final Executor diskExecutor;
+    // Held while writing, so an older snapshot never replaces a newer one
+    private final Object writeLock = new Object();
+    private final Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    // Guarded by this.
+    private State state = State.EMPTY;
+    private long version;
+    private long writtenVersion;
+    private boolean writeScheduled;
+
+    /**
+     * @param file state file
+     * @param diskExecutor single-threaded executor writing the file
+     */
+    public PushStateStore(final File file, final Executor diskExecutor) {
+        this.file = file;
+        this.diskExecutor = diskExecutor;
+    }
+
+    /**
+     * Reads the state file. Must be called once, from a background thread, before the state
+     * is used or edited.
+     * @return true if the file existed; if not, the state is empty and may be migrated
+     * @throws IOException if the file is unreadable, the state is empty then
+     */
+    public boolean load() throws IOException {
+        final byte[] bytes;
+        try {
+            bytes = readFully(file);
+        } catch (final FileNotFoundException ex) {
+            return false;
+        }
+        final State loaded = decode(bytes);
+        synchronized (this) {
+            state = loaded;
+        }
+        return true;
+    }
+
+    public synchronized State get() {
+        return state;
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    private void scheduleWrite() {
+        synchronized (this) {
+            if (writeScheduled) {
+                // The pending write picks up this change as well.
+                return;
+            }
+            writeScheduled = true;
+        }
+        diskExecutor.execute(writer);
+    }
+
+    private boolean write() {
+        synchronized (writeLock) {
+            final State snapshot;
+            final long snapshotVersion;
+            synchronized (this) {
+                writeScheduled = false;
+                if (writtenVersion == version) {
+                    return true;
+                }
+                snapshot = state;
+                snapshotVersion = version;
+            }
+            try {
+                final byte[] bytes = encode(snapshot);
+                final File temp = new File(file.getPath() + ".tmp");
+                final FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    out.write(bytes);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + temp + " to " + file);
+                }
+            } catch (final IOException ex) {
+                // Kept in memory, written with the next change.
+                return false;
+            }
+            synchronized (this) {
+                writtenVersion = snapshotVersion;
+            }
+            return true;
+        }
+    }
+
+    static byte[] encode(final State state) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeUTF(state.deviceToken);
+        out.writeUTF(state.endpointArn);
+        out.writeUTF(state.platformApplicationArn);
+        out.writeBoolean(state.pushEnabled);
+        final EndpointState endpointState = state.endpointState;
+        out.writeBoolean(endpointState != null);
+        if (endpointState != null) {
+            out.writeUTF(endpointState.getToken());
+            out.writeBoolean(endpointState.isEnabled());
+            out.writeLong(endpointState.getVerifiedAt());
+        }
+        out.writeShort(state.topicSubscriptions.size());
+        for (Map.Entry<String, String> subscription : state.topicSubscriptions.entrySet()) {
+            out.writeUTF(subscription.getKey());
+            out.writeUTF(subscription.getValue());
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static State decode(final byte[] bytes) throws IOException {
+        if (bytes.length < 4) {
+            throw new IOException("Truncated push state");
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a push state file");
+        }
+        final int formatVersion = in.readUnsignedByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported push state version " + formatVersion);
+        }
+        final String deviceToken = in.readUTF();
+        final String endpointArn = in.readUTF();
+        final String platformApplicationArn = in.readUTF();
+        final boolean pushEnabled = in.readBoolean();
+        EndpointState endpointState = null;
+        if (in.readBoolean()) {
+            endpointState = new EndpointState(in.readUTF(), in.readBoolean(), in.readLong());
+        }
+        final int subscriptionCount = in.readUnsignedShort();
+        final Map<String, String> subscriptions = new LinkedHashMap<>();
+        for (int i = 0; i < subscriptionCount; i++) {
+            subscriptions.put(in.readUTF(), in.readUTF());
+        }
+        if (in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Corrupt push state");
+        }
+        return new State(deviceToken, endpointArn, platformApplicationArn, pushEnabled, endpointState,
+                Collections.unmodifiableMap(subscriptions));
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[512];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.SDKGlobalConfiguration;
+import com.execom.ljmocic.pushnotifications.aws.metrics.LatencyHistogram;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import java.util.Random;
+
+/**
+ * Delivery latency tracing. The sender stamps a trace ID and send time into the payload; the
+ * receiver compares the send time with its own clock and with the time GCM accepted the
+ * message, splitting the latency into sender + SNS and GCM legs.
+ *
+ * <p>Both clocks are corrected with the offset to AWS that the SDK learns from clock skew
+ * errors ({@link SDKGlobalConfiguration#getGlobalTimeOffset()}), so devices with wrong clocks
+ * still compare against the same time base. Legs whose end is before their start are counted
+ * as skewed instead of recorded.</p>
+ */
+public final class PushTrace {
+
+    // Send to receipt
+    public static final String DELIVERY_TOTAL = "delivery.total";
+    // Send to GCM accepting the message: queueing, retries and SNS
+    public static final String DELIVERY_TO_GCM = "delivery.toGcm";
+    // GCM accepting the message to receipt
+    public static final String DELIVERY_GCM = "delivery.gcm";
+    public static final String DELIVERY_SKEWED = "delivery.skewed";
+
+    private static final Random random = new Random();
+
+    private PushTrace() {
+    }
+
+    /** @return current time corrected for the clock offset to AWS */
+    public static long currentTimeMillis() {
+        return System.currentTimeMillis() - SDKGlobalConfiguration.getGlobalTimeOffset() * 1000L;
+    }
+
+    /** @return new random trace ID, 16 hex digits */
+    public static String newTraceId() {
+        final String digits = Long.toHexString(random.nextLong());
+        return "0000000000000000".substring(digits.length()) + digits;
+    }
+
+    /**
+     * Records the latency of a received message.
+     * @param metrics metrics to record to
+     * @param sentAtMillis send time stamped by the sender, corrected for its clock offset
+     * @param gcmSentAtMillis time GCM accepted the message (GCM's clock), or -1 if unknown
+     * @param receivedAtMillis receipt time, from {@link #currentTimeMillis()}
+     * @return total latency in milliseconds, or -1 if clocks were too far off to tell
+     */
+    public static long recordDelivery(final PushMetrics metrics,
+                                      final long sentAtMillis,
+                                      final long gcmSentAtMillis,
+                                      final long receivedAtMillis) {
+        final long total = receivedAtMillis - sentAtMillis;
+        record(metrics, DELIVERY_TOTAL, total);
+        if (gcmSentAtMillis >= 0) {
+            record(metrics, DELIVERY_TO_GCM, gcmSentAtMillis - sentAtMillis);
+            record(metrics, DELIVERY_GCM, receivedAtMillis - gcmSentAtMillis);
+        }
+        return total >= 0 ? total : -1;
+    }
+
+    private static void record(final PushMetrics metrics, final String name, final long millis) {
+        if (millis < 0) {
+            metrics.counter(DELIVERY_SKEWED).incrementAndGet();
+            return;
+        }
+        final LatencyHistogram histogram = metrics.histogram(name);
+        histogram.record(millis * 1000);
+    }
+}
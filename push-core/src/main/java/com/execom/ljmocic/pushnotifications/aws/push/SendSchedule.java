@@ -0,0 +1,514 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.LatencyHistogram;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persisted schedule of sends due at a later time, surviving process death and reboots.
+ *
+ * <p>Sends are appended to a log file, framed as {@code [length][crc32][body]} like the
+ * {@link OutboundJournal}, and a removal record is appended once a send was cancelled or handed
+ * to the publish path. Only the due time and the log position of each send are kept in memory,
+ * in a {@link TimerWheel}, so adding and cancelling stay O(1) with large backlogs; messages and
+ * targets are read back from the log when the send is due. The log is rewritten once most of its
+ * records are obsolete.</p>
+ *
+ * <p>A send is removed only after it was handed off, a crash in between fires it again.</p>
+ */
+public class SendSchedule {
+
+    /** A send read back from the schedule once due. */
+    public static class ScheduledSend {
+
+        private final long id;
+        private final long dueAtMillis;
+        private final List<PushMessage> parts;
+        private final List<String> targetArns;
+
+        ScheduledSend(final long id,
+                      final long dueAtMillis,
+                      final List<PushMessage> parts,
+                      final List<String> targetArns) {
+            this.id = id;
+            this.dueAtMillis = dueAtMillis;
+            this.parts = parts;
+            this.targetArns = targetArns;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getDueAtMillis() {
+            return dueAtMillis;
+        }
+
+        /** @return messages every target receives, more than one if the payload was chunked */
+        public List<PushMessage> getParts() {
+            return parts;
+        }
+
+        /** @return endpoint ARNs, null if the send goes to the whole endpoint directory */
+        public List<String> getTargetArns() {
+            return targetArns;
+        }
+
+        public boolean isDirectorySend() {
+            return targetArns == null;
+        }
+    }
+
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    private static final int RECORD_VERSION = 1;
+    private static final byte OP_SCHEDULE = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    // Log records before compaction is considered
+    private static final int MIN_COMPACT_RECORDS = 64;
+    private static final String CHARSET = "UTF-8";
+
+    private static class Entry {
+        final long id;
+        long offset;
+        int length;
+        TimerWheel.Timeout<Entry> timeout;
+        // Returned by pollDue, waiting to be removed
+        boolean fired;
+
+        Entry(final long id, final long offset, final int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    private final long tickMillis;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    // Expired, not yet returned by pollDue
+    private final ArrayDeque<Entry> due = new ArrayDeque<>();
+    private final List<Entry> expiredBuffer = new ArrayList<>();
+    private final AtomicLong firedCount = PushMetrics.shared().counter(PushMetrics.SCHEDULED_SENDS_FIRED);
+    private final AtomicLong droppedCount = PushMetrics.shared().counter(PushMetrics.SCHEDULED_SENDS_DROPPED);
+    private final LatencyHistogram lateness = PushMetrics.shared().histogram(PushMetrics.SCHEDULED_SENDS_LATENESS);
+
+    private TimerWheel<Entry> wheel;
+    private RandomAccessFile log;
+    private long nextId;
+    private int records;
+
+    /**
+     * The schedule is read from the file when first used.
+     * @param file log file
+     * @param tickMillis resolution of due times
+     */
+    public SendSchedule(final File file, final long tickMillis) {
+        this.file = file;
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Adds a send and syncs it to disk.
+     * @param parts messages every target receives
+     * @param targetArns endpoint ARNs, null to send to the whole endpoint directory
+     * @param dueAtMillis time the send is due
+     * @return ID of the send
+     * @throws IOException if the send could not be made durable
+     */
+    public synchronized long add(final List<PushMessage> parts,
+                                 final List<String> targetArns,
+                                 final long dueAtMillis) throws IOException {
+        if (parts.isEmpty()) {
+            throw new IllegalArgumentException("Missing message.");
+        }
+        ensureOpen();
+        final long id = nextId++;
+        final byte[] record = encodeSchedule(id, dueAtMillis, parts, targetArns);
+        final long offset = log.length();
+        log.seek(offset);
+        log.write(record);
+        log.getFD().sync();
+        records++;
+        final Entry entry = new Entry(id, offset, record.length);
+        entry.timeout = wheel.schedule(entry, dueAtMillis);
+        entries.put(id, entry);
+        return id;
+    }
+
+    /**
+     * @param id ID returned by {@link #add}
+     * @return true if the send was pending, false if it is unknown or already due
+     * @throws IOException if the cancellation could not be written
+     */
+    public synchronized boolean cancel(final long id) throws IOException {
+        ensureOpen();
+        final Entry entry = entries.get(id);
+        if (entry == null || entry.fired) {
+            return false;
+        }
+        // An expired entry is still in the due queue, and skipped there.
+        wheel.cancel(entry.timeout);
+        removeEntries(Collections.singletonList(id));
+        return true;
+    }
+
+    /**
+     * Returns sends that are due, reading them back from the log. A send is returned once, it
+     * must be {@link #remove}d after it was handed to the publish path.
+     * @param nowMillis current time
+     * @param max maximum number of sends returned
+     * @return due sends, earliest first
+     * @throws IOException if the log could not be read
+     */
+    public synchronized List<ScheduledSend> pollDue(final long nowMillis, final int max) throws IOException {
+        ensureOpen();
+        wheel.advance(nowMillis, expiredBuffer);
+        due.addAll(expiredBuffer);
+        expiredBuffer.clear();
+
+        final List<ScheduledSend> sends = new ArrayList<>(Math.min(max, due.size()));
+        final List<Long> corrupt = new ArrayList<>();
+        while (sends.size() < max && !due.isEmpty()) {
+            final Entry entry = due.poll();
+            if (entries.get(entry.id) != entry) {
+                // Cancelled after it expired.
+                continue;
+            }
+            final ScheduledSend send;
+            try {
+                send = read(entry);
+            } catch (final IOException ex) {
+                // Returned by the next poll.
+                due.addFirst(entry);
+                throw ex;
+            }
+            if (send == null) {
+                corrupt.add(entry.id);
+                continue;
+            }
+            entry.fired = true;
+            sends.add(send);
+            firedCount.incrementAndGet();
+            lateness.record(TimeUnit.MILLISECONDS.toMicros(Math.max(0, nowMillis - send.getDueAtMillis())));
+        }
+        if (!corrupt.isEmpty()) {
+            droppedCount.addAndGet(corrupt.size());
+            removeEntries(corrupt);
+        }
+        return sends;
+    }
+
+    /**
+     * Removes sends that were handed to the publish path.
+     * @param ids IDs of sends returned by {@link #pollDue}
+     * @throws IOException if the removals could not be written
+     */
+    public synchronized void remove(final Collection<Long> ids) throws IOException {
+        ensureOpen();
+        final List<Long> fired = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            final Entry entry = entries.get(id);
+            if (entry != null && entry.fired) {
+                fired.add(id);
+            }
+        }
+        removeEntries(fired);
+    }
+
+    /**
+     * @return earliest time a send may be due, a time not after the current time if sends are
+     *         due already, or -1 if the schedule is empty
+     * @throws IOException if the schedule could not be read
+     */
+    public synchronized long getNextDueAtMillis() throws IOException {
+        ensureOpen();
+        if (!due.isEmpty()) {
+            return 0;
+        }
+        return wheel.getNextTickMillis();
+    }
+
+    /** @return number of sends not yet removed */
+    public synchronized int size() throws IOException {
+        ensureOpen();
+        return entries.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void removeEntries(final List<Long> ids) throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        final ByteArrayOutputStream removals = new ByteArrayOutputStream(ids.size() * 24);
+        for (Long id : ids) {
+            removals.write(encodeRemove(id));
+        }
+        log.seek(log.length());
+        log.write(removals.toByteArray());
+        log.getFD().sync();
+        records += ids.size();
+        for (Long id : ids) {
+            entries.remove(id);
+        }
+        if (records >= MIN_COMPACT_RECORDS && records > 2 * entries.size()) {
+            compact();
+        }
+    }
+
+    private ScheduledSend read(final Entry entry) throws IOException {
+        final byte[] record = new byte[entry.length];
+        log.seek(entry.offset);
+        log.readFully(record);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        final byte[] body = readRecord(in);
+        return body == null ? null : decodeSchedule(body);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (log != null) {
+            return;
+        }
+        final File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create schedule directory " + directory);
+        }
+        final long now = System.currentTimeMillis();
+        wheel = new TimerWheel<>(tickMillis, TimerWheel.DEFAULT_LEVELS, now);
+        entries.clear();
+        due.clear();
+        records = 0;
+        // IDs start at the current time, so they aren't reused after the log was compacted empty.
+        nextId = now;
+
+        // ID to due time, in log order
+        final Map<Long, Long> dueTimes = new LinkedHashMap<>();
+        long validBytes = 0;
+        if (file.exists()) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                byte[] body;
+                while ((body = readRecord(in)) != null) {
+                    final DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                    final int version = record.readUnsignedByte();
+                    if (version < 1 || version > RECORD_VERSION) {
+                        throw new IOException("Unsupported schedule record version " + version);
+                    }
+                    final byte op = record.readByte();
+                    final long id = record.readLong();
+                    if (op == OP_SCHEDULE) {
+                        entries.put(id, new Entry(id, validBytes, RECORD_HEADER_BYTES + body.length));
+                        dueTimes.put(id, record.readLong());
+                    } else if (op == OP_REMOVE) {
+                        entries.remove(id);
+                        dueTimes.remove(id);
+                    }
+                    nextId = Math.max(nextId, id + 1);
+                    records++;
+                    validBytes += RECORD_HEADER_BYTES + body.length;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        log = new RandomAccessFile(file, "rw");
+        if (validBytes < log.length()) {
+            // Torn or corrupt tail, e.g. the process died in the middle of a write.
+            log.setLength(validBytes);
+        }
+        for (Map.Entry<Long, Long> dueTime : dueTimes.entrySet()) {
+            final Entry entry = entries.get(dueTime.getKey());
+            entry.timeout = wheel.schedule(entry, dueTime.getValue());
+        }
+    }
+
+    private void compact() throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(temp);
+        // Log order of the live records is kept, so IDs stay increasing.
+        final List<Entry> live = new ArrayList<>(entries.values());
+        Collections.sort(live, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry first, final Entry second) {
+                return first.offset < second.offset ? -1 : (first.offset == second.offset ? 0 : 1);
+            }
+        });
+        final long[] offsets = new long[live.size()];
+        long offset = 0;
+        try {
+            for (int i = 0; i < live.size(); i++) {
+                final Entry entry = live.get(i);
+                final byte[] record = new byte[entry.length];
+                log.seek(entry.offset);
+                log.readFully(record);
+                out.write(record);
+                offsets[i] = offset;
+                offset += record.length;
+            }
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        log.close();
+        log = null;
+        if (!temp.renameTo(file)) {
+            // The old log is still complete, reopened as it is.
+            log = new RandomAccessFile(file, "rw");
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        log = new RandomAccessFile(file, "rw");
+        for (int i = 0; i < live.size(); i++) {
+            live.get(i).offset = offsets[i];
+        }
+        records = live.size();
+    }
+
+    private static byte[] readRecord(final DataInputStream in) throws IOException {
+        final int length;
+        final int checksum;
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+        } catch (final EOFException ex) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+            return null;
+        }
+        final byte[] body = new byte[length];
+        try {
+            in.readFully(body);
+        } catch (final EOFException ex) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue() == checksum ? body : null;
+    }
+
+    private static byte[] encodeSchedule(final long id,
+                                         final long dueAtMillis,
+                                         final List<PushMessage> parts,
+                                         final List<String> targetArns) throws IOException {
+        final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(256);
+        final DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeByte(RECORD_VERSION);
+        body.writeByte(OP_SCHEDULE);
+        body.writeLong(id);
+        body.writeLong(dueAtMillis);
+        body.writeInt(parts.size());
+        for (PushMessage part : parts) {
+            writeString(body, part.getSubject());
+            writeString(body, part.getMessage());
+            writeString(body, part.getMessageStructure());
+        }
+        if (targetArns == null) {
+            body.writeInt(-1);
+        } else {
+            body.writeInt(targetArns.size());
+            for (String targetArn : targetArns) {
+                writeString(body, targetArn);
+            }
+        }
+        body.flush();
+        return frame(bodyBytes.toByteArray());
+    }
+
+    private static byte[] encodeRemove(final long id) throws IOException {
+        final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(10);
+        final DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeByte(RECORD_VERSION);
+        body.writeByte(OP_REMOVE);
+        body.writeLong(id);
+        body.flush();
+        return frame(bodyBytes.toByteArray());
+    }
+
+    private static byte[] frame(final byte[] body) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_BYTES + body.length);
+        final DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(body.length);
+        out.writeInt((int) crc.getValue());
+        out.write(body);
+        out.flush();
+        return record.toByteArray();
+    }
+
+    private static ScheduledSend decodeSchedule(final byte[] body) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        in.readUnsignedByte();
+        in.readByte();
+        final long id = in.readLong();
+        final long dueAtMillis = in.readLong();
+        final int partCount = in.readInt();
+        final List<PushMessage> parts = new ArrayList<>(partCount);
+        for (int i = 0; i < partCount; i++) {
+            final String subject = readString(in);
+            final String message = readString(in);
+            parts.add(new PushMessage(subject, message, readString(in)));
+        }
+        final int targetCount = in.readInt();
+        List<String> targetArns = null;
+        if (targetCount >= 0) {
+            targetArns = new ArrayList<>(targetCount);
+            for (int i = 0; i < targetCount; i++) {
+                targetArns.add(readString(in));
+            }
+        }
+        return new ScheduledSend(id, dueAtMillis, parts, targetArns);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
@@ -0,0 +1,28 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClient;
+
+/** Creates the SNS clients used by the push code; replaced by a {@link FakeAmazonSNS} for load tests. */
+public interface SnsClientFactory {
+
+    /** Creates real clients talking to AWS. */
+    SnsClientFactory AWS = new SnsClientFactory() {
+        @Override
+        public AmazonSNS createSns(final AWSCredentialsProvider credentialsProvider,
+                                   final ClientConfiguration clientConfiguration,
+                                   final Regions region) {
+            final AmazonSNS sns = new AmazonSNSClient(credentialsProvider, clientConfiguration);
+            sns.setRegion(Region.getRegion(region));
+            return sns;
+        }
+    };
+
+    AmazonSNS createSns(AWSCredentialsProvider credentialsProvider,
+                        ClientConfiguration clientConfiguration,
+                        Regions region);
+}
@@ -0,0 +1,8 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.AmazonSNS;
+
+/** Supplies the SNS client, which may only be created on first use. */
+public interface SnsClientProvider {
+    AmazonSNS getSns();
+}
@@ -0,0 +1,108 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import com.execom.ljmocic.pushnotifications.aws.metrics.LatencyHistogram;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.retry.CircuitBreaker;
+import com.execom.ljmocic.pushnotifications.aws.retry.ErrorClassifier;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every SNS publish goes through a SnsPublisher, which waits for the rate limiter, records the
+ * publish metrics, and tells the limiter whether SNS accepted the call. Publishers sharing a
+ * rate limiter share its rate, even when they use different SNS clients.
+ *
+ * <p>Each attempt is guarded by the circuit breaker, and retryable failures are retried with
+ * the retry policy, waiting for the rate limiter again before every attempt.</p>
+ */
+public class SnsPublisher {
+
+    private final SnsClientProvider snsClientProvider;
+    private final AdaptiveRateLimiter rateLimiter;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final PushMetrics.Operation publishMetrics = PushMetrics.shared().operation(PushMetrics.SNS_PUBLISH);
+    private final LatencyHistogram waitMetrics = PushMetrics.shared().histogram(PushMetrics.SNS_PUBLISH_RATE_LIMIT_WAIT);
+    private final AtomicLong throttledCount = PushMetrics.shared().counter(PushMetrics.SNS_PUBLISH_THROTTLED);
+
+    /**
+     * Creates a publisher making a single attempt per publish.
+     * @param snsClientProvider supplies the SNS client
+     * @param rateLimiter limiter of the publish rate, null for no limit
+     */
+    public SnsPublisher(final SnsClientProvider snsClientProvider, final AdaptiveRateLimiter rateLimiter) {
+        this(snsClientProvider, rateLimiter, RetryPolicy.NONE, null);
+    }
+
+    /**
+     * @param snsClientProvider supplies the SNS client
+     * @param rateLimiter limiter of the publish rate, null for no limit
+     * @param retryPolicy retries of failed publishes
+     * @param circuitBreaker breaker of the SNS circuit, null for none
+     */
+    public SnsPublisher(final SnsClientProvider snsClientProvider,
+                        final AdaptiveRateLimiter rateLimiter,
+                        final RetryPolicy retryPolicy,
+                        final CircuitBreaker circuitBreaker) {
+        this.snsClientProvider = snsClientProvider;
+        this.rateLimiter = rateLimiter;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Publishes once the rate limiter allows it. Must be called from a background thread.
+     * @param request publish request
+     * @return publish result
+     * @throws AmazonClientException if the publish failed, the circuit is open, or the thread was
+     * interrupted while waiting
+     */
+    public PublishResult publish(final PublishRequest request) {
+        return retryPolicy.call(circuitBreaker, new RetryPolicy.Call<PublishResult>() {
+            @Override
+            public PublishResult call() {
+                return publishOnce(request);
+            }
+        });
+    }
+
+    private PublishResult publishOnce(final PublishRequest request) {
+        if (rateLimiter != null) {
+            try {
+                waitMetrics.record(TimeUnit.NANOSECONDS.toMicros(rateLimiter.acquire()));
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted while waiting to publish", ex);
+            }
+        }
+        final long start = publishMetrics.start();
+        final PublishResult result;
+        try {
+            result = snsClientProvider.getSns().publish(request);
+        } catch (final RuntimeException ex) {
+            publishMetrics.failure(start);
+            if (ErrorClassifier.isThrottling(ex)) {
+                throttledCount.incrementAndGet();
+                if (rateLimiter != null) {
+                    rateLimiter.onThrottled();
+                }
+            }
+            throw ex;
+        }
+        publishMetrics.success(start);
+        if (rateLimiter != null) {
+            rateLimiter.onSuccess();
+        }
+        return result;
+    }
+
+    /** @return rate limiter, null if the rate is not limited */
+    public AdaptiveRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+}
@@ -0,0 +1,233 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel. Each level has 64 slots, a slot of level 0 spans one tick and a slot
+ * of every further level spans all of the level below. Timeouts are kept in doubly linked slot
+ * lists, so scheduling and cancelling are O(1) no matter how many timeouts are pending; advancing
+ * the wheel costs one step per tick plus moving each timeout down at most once per level.
+ *
+ * <p>Timeouts further away than the top level spans are parked in its furthest slot and placed
+ * again whenever that slot comes around. Timeouts never expire before their due time, and at most
+ * one tick after it. Not thread safe.</p>
+ *
+ * @param <T> value of a timeout
+ */
+public class TimerWheel<T> {
+
+    /** A scheduled value, the handle to cancel it with. */
+    public static class Timeout<T> {
+
+        private final T value;
+        private final long dueAtMillis;
+        private final long dueTick;
+        private Timeout<T> previous;
+        private Timeout<T> next;
+
+        private Timeout(final T value, final long dueAtMillis, final long dueTick) {
+            this.value = value;
+            this.dueAtMillis = dueAtMillis;
+            this.dueTick = dueTick;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public long getDueAtMillis() {
+            return dueAtMillis;
+        }
+
+        /** @return true while the timeout is in the wheel, neither expired nor cancelled */
+        public boolean isPending() {
+            return next != null;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = null;
+            next = null;
+        }
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    public static final int DEFAULT_LEVELS = 4;
+
+    private final long tickMillis;
+    private final int levels;
+    // Level to slot to sentinel of the slot's circular list
+    private final Timeout<T>[][] wheel;
+    // Timeouts already due when they were scheduled
+    private final Timeout<T> expired;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis duration of a tick, the resolution of the wheel
+     * @param levels number of levels; 4 levels of 1 second ticks span 194 days before timeouts are parked
+     * @param nowMillis current time
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(final long tickMillis, final int levels, final long nowMillis) {
+        if (tickMillis <= 0 || levels < 1 || levels * SLOT_BITS > 48) {
+            throw new IllegalArgumentException("Invalid tick " + tickMillis + " ms or " + levels + " levels.");
+        }
+        this.tickMillis = tickMillis;
+        this.levels = levels;
+        this.wheel = (Timeout<T>[][]) new Timeout<?>[levels][SLOTS];
+        for (int level = 0; level < levels; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[level][slot] = sentinel();
+            }
+        }
+        this.expired = sentinel();
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * @param value value handed back once due
+     * @param dueAtMillis time the value is due, a time in the past expires on the next {@link #advance}
+     * @return handle of the timeout
+     */
+    public Timeout<T> schedule(final T value, final long dueAtMillis) {
+        // Rounded up, so timeouts never expire early.
+        final long dueTick = dueAtMillis / tickMillis + (dueAtMillis % tickMillis > 0 ? 1 : 0);
+        final Timeout<T> timeout = new Timeout<>(value, dueAtMillis, dueTick);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * @param timeout timeout returned by {@link #schedule}
+     * @return true if the timeout was pending
+     */
+    public boolean cancel(final Timeout<T> timeout) {
+        if (!timeout.isPending()) {
+            return false;
+        }
+        timeout.unlink();
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward to the given time.
+     * @param nowMillis current time, a time before the wheel's current time does nothing
+     * @param due receives the values of the expired timeouts, in expiry order
+     * @return number of values added
+     */
+    public int advance(final long nowMillis, final List<T> due) {
+        final int before = due.size();
+        drain(expired, due);
+        final long targetTick = nowMillis / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return due.size() - before;
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Higher levels first, so timeouts cascading two levels land in the slots expiring now.
+            for (int level = levels - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(wheel[level][(int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)]);
+                }
+            }
+            // Cascaded timeouts due this tick were placed in the expired list.
+            drain(expired, due);
+            drain(wheel[0][(int) (currentTick & SLOT_MASK)], due);
+            if (size == 0) {
+                currentTick = targetTick;
+            }
+        }
+        return due.size() - before;
+    }
+
+    /**
+     * @return earliest time something may expire or move down a level, so the wheel needs to be
+     *         advanced no earlier; -1 if the wheel is empty
+     */
+    public long getNextTickMillis() {
+        if (size == 0) {
+            return -1;
+        }
+        if (expired.next != expired) {
+            return currentTick * tickMillis;
+        }
+        long nextTick = Long.MAX_VALUE;
+        for (int level = 0; level < levels; level++) {
+            final int shift = SLOT_BITS * level;
+            final long block = currentTick >>> shift;
+            for (int i = 1; i <= SLOTS; i++) {
+                final Timeout<T> sentinel = wheel[level][(int) ((block + i) & SLOT_MASK)];
+                if (sentinel.next != sentinel) {
+                    nextTick = Math.min(nextTick, (block + i) << shift);
+                    break;
+                }
+            }
+        }
+        return nextTick * tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void place(final Timeout<T> timeout) {
+        final long delta = timeout.dueTick - currentTick;
+        if (delta <= 0) {
+            link(expired, timeout);
+            return;
+        }
+        int level = 0;
+        while (level < levels - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        final int shift = SLOT_BITS * level;
+        // Beyond the top level, parked in the slot coming around last.
+        final long tick = Math.min(timeout.dueTick, currentTick + (1L << (shift + SLOT_BITS)) - 1);
+        link(wheel[level][(int) ((tick >>> shift) & SLOT_MASK)], timeout);
+    }
+
+    private void cascade(final Timeout<T> sentinel) {
+        Timeout<T> timeout = sentinel.next;
+        // Detached first, a parked timeout may be placed in this slot again.
+        sentinel.previous.next = null;
+        sentinel.next = sentinel;
+        sentinel.previous = sentinel;
+        while (timeout != sentinel && timeout != null) {
+            final Timeout<T> next = timeout.next;
+            timeout.previous = null;
+            timeout.next = null;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void drain(final Timeout<T> sentinel, final List<T> due) {
+        while (sentinel.next != sentinel) {
+            final Timeout<T> timeout = sentinel.next;
+            timeout.unlink();
+            size--;
+            due.add(timeout.value);
+        }
+    }
+
+    private static <T> void link(final Timeout<T> sentinel, final Timeout<T> timeout) {
+        timeout.previous = sentinel.previous;
+        timeout.next = sentinel;
+        sentinel.previous.next = timeout;
+        sentinel.previous = timeout;
+    }
+
+    private Timeout<T> sentinel() {
+        final Timeout<T> sentinel = new Timeout<>(null, 0, 0);
+        sentinel.previous = sentinel;
+        sentinel.next = sentinel;
+        return sentinel;
+    }
+}
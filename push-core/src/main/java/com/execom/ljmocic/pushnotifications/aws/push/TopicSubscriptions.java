@@ -0,0 +1,194 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sns.model.SubscribeResult;
+import com.amazonaws.services.sns.model.UnsubscribeRequest;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+import com.execom.ljmocic.pushnotifications.aws.retry.CircuitBreaker;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Topic subscriptions of this device's endpoint, recorded in the {@link PushStateStore} so they
+ * can be carried over when SNS gives the device a new endpoint.
+ *
+ * <p>Every method that calls SNS blocks, it must be called from a background thread.</p>
+ */
+public class TopicSubscriptions {
+
+    private static final String SNS_PROTOCOL_APPLICATION = "application";
+    private static final String ARN_PREFIX = "arn:";
+
+    private final SnsClientProvider snsClientProvider;
+    private final PushStateStore stateStore;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final PushMetrics.Operation subscribeMetrics = PushMetrics.shared().operation(PushMetrics.SNS_SUBSCRIBE);
+
+    // Topic ARN to subscription ARN
+    private final Map<String, String> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * @param snsClientProvider SNS client
+     * @param stateStore store the subscriptions are read from and recorded in
+     * @param retryPolicy retries of failed SNS calls
+     * @param circuitBreaker breaker of the SNS circuit, null for none
+     */
+    public TopicSubscriptions(final SnsClientProvider snsClientProvider,
+                              final PushStateStore stateStore,
+                              final RetryPolicy retryPolicy,
+                              final CircuitBreaker circuitBreaker) {
+        this.snsClientProvider = snsClientProvider;
+        this.stateStore = stateStore;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        subscriptions.putAll(stateStore.get().getTopicSubscriptions());
+    }
+
+    /**
+     * @param topicArn topic ARN, may be null
+     * @return false for a missing ARN or a placeholder like the {@code "-"} of an unset configuration
+     */
+    public static boolean isTopicArn(final String topicArn) {
+        return topicArn != null && topicArn.startsWith(ARN_PREFIX);
+    }
+
+    /**
+     * Subscribes an endpoint to a topic and records the subscription.
+     * @param endpointArn endpoint ARN
+     * @param topicArn topic ARN
+     * @return subscription ARN
+     * @throws IllegalArgumentException if the topic ARN is missing or a placeholder
+     */
+    public String subscribe(final String endpointArn, final String topicArn) {
+        if (!isTopicArn(topicArn)) {
+            throw new IllegalArgumentException("Invalid topic ARN: " + topicArn);
+        }
+        final SubscribeRequest request = new SubscribeRequest()
+                .withTopicArn(topicArn)
+                .withProtocol(SNS_PROTOCOL_APPLICATION)
+                .withEndpoint(endpointArn);
+        final SubscribeResult result = retryPolicy.call(circuitBreaker, new RetryPolicy.Call<SubscribeResult>() {
+            @Override
+            public SubscribeResult call() {
+                final long start = subscribeMetrics.start();
+                try {
+                    final SubscribeResult result = snsClientProvider.getSns().subscribe(request);
+                    subscribeMetrics.success(start);
+                    return result;
+                } catch (final RuntimeException ex) {
+                    subscribeMetrics.failure(start);
+                    throw ex;
+                }
+            }
+        });
+        subscriptions.put(topicArn, result.getSubscriptionArn());
+        stateStore.edit()
+                .putTopicSubscription(topicArn, result.getSubscriptionArn())
+                .apply();
+        return result.getSubscriptionArn();
+    }
+
+    /**
+     * Subscribes an endpoint to the topics it has no recorded subscription to. Missing and
+     * placeholder ARNs are skipped. A failed subscribe doesn't stop the others, the first
+     * failure is thrown once all topics were tried.
+     * @param endpointArn endpoint ARN
+     * @param topicArns topic ARNs
+     */
+    public void subscribeAll(final String endpointArn, final Collection<String> topicArns) {
+        AmazonClientException failure = null;
+        for (String topicArn : topicArns) {
+            if (!isTopicArn(topicArn) || subscriptions.containsKey(topicArn)) {
+                continue;
+            }
+            try {
+                subscribe(endpointArn, topicArn);
+            } catch (final AmazonClientException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Removes the recorded subscription to a topic; does nothing if there is none.
+     * @param topicArn topic ARN
+     * @return false if there was no subscription
+     */
+    public boolean unsubscribe(final String topicArn) {
+        final String subscriptionArn = subscriptions.get(topicArn);
+        if (subscriptionArn == null) {
+            return false;
+        }
+        unsubscribeArn(subscriptionArn);
+        subscriptions.remove(topicArn);
+        stateStore.edit()
+                .removeTopicSubscription(topicArn)
+                .apply();
+        return true;
+    }
+
+    /**
+     * Subscribes a new endpoint to every recorded topic before removing the subscription of the
+     * previous endpoint, so a failed subscribe keeps the topic recorded and the next call retries
+     * it. The first failure is thrown once all topics were tried.
+     * @param endpointArn ARN of the new endpoint
+     */
+    public void moveTo(final String endpointArn) {
+        AmazonClientException failure = null;
+        for (String topicArn : new ArrayList<>(subscriptions.keySet())) {
+            final String staleSubscriptionArn = subscriptions.get(topicArn);
+            try {
+                subscribe(endpointArn, topicArn);
+            } catch (final AmazonClientException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+                continue;
+            }
+            if (staleSubscriptionArn == null || staleSubscriptionArn.equals(subscriptions.get(topicArn))) {
+                continue;
+            }
+            try {
+                unsubscribeArn(staleSubscriptionArn);
+            } catch (final AmazonClientException ex) {
+                // The old subscription points to the previous endpoint, which may not exist
+                // anymore; SNS drops it along with the endpoint.
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public boolean isSubscribed(final String topicArn) {
+        return subscriptions.containsKey(topicArn);
+    }
+
+    /** @return ARNs of the topics with a recorded subscription */
+    public Set<String> getTopicArns() {
+        return Collections.unmodifiableSet(subscriptions.keySet());
+    }
+
+    private void unsubscribeArn(final String subscriptionArn) {
+        retryPolicy.call(circuitBreaker, new RetryPolicy.Call<Void>() {
+            @Override
+            public Void call() {
+                snsClientProvider.getSns().unsubscribe(new UnsubscribeRequest().withSubscriptionArn(subscriptionArn));
+                return null;
+            }
+        });
+    }
+}
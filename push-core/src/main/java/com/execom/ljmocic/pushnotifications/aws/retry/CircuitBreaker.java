@@ -0,0 +1,181 @@
+package com.execom.ljmocic.pushnotifications.aws.retry;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops calling a service during an outage. After {@code failureThreshold} consecutive outage
+ * failures (see {@link ErrorClassifier#isOutage(Exception)}) the circuit opens and calls fail
+ * right away with {@link CircuitOpenException}, without using the radio. Once the open time
+ * has passed a single probe call is let through: if it succeeds the circuit closes, if not it
+ * opens again for twice as long, up to {@code maxOpenMillis}.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_MAX_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    public static class Builder {
+
+        private final String name;
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long openMillis = DEFAULT_OPEN_MILLIS;
+        private long maxOpenMillis = DEFAULT_MAX_OPEN_MILLIS;
+
+        /**
+         * Constructor.
+         * @param name circuit name, used in metrics and errors
+         */
+        public Builder(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * Provides the number of consecutive outage failures that open the circuit.
+         * @param failureThreshold number of failures
+         * @return builder
+         */
+        public Builder withFailureThreshold(final int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * Provides how long the circuit stays open before the first probe.
+         * @param openMillis time in milliseconds
+         * @return builder
+         */
+        public Builder withOpenMillis(final long openMillis) {
+            this.openMillis = openMillis;
+            return this;
+        }
+
+        /**
+         * Provides the longest time the circuit stays open after repeated failed probes.
+         * @param maxOpenMillis time in milliseconds
+         * @return builder
+         */
+        public Builder withMaxOpenMillis(final long maxOpenMillis) {
+            this.maxOpenMillis = maxOpenMillis;
+            return this;
+        }
+
+        public CircuitBreaker build() {
+            if (failureThreshold < 1 || openMillis <= 0 || maxOpenMillis < openMillis) {
+                throw new IllegalArgumentException("Invalid circuit breaker settings for " + name);
+            }
+            return new CircuitBreaker(this);
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long maxOpenNanos;
+    private final AtomicLong openedCount;
+    private final AtomicLong rejectedCount;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long currentOpenNanos;
+    private long openedAtNanos;
+    private long probeStartedNanos;
+
+    private CircuitBreaker(final Builder builder) {
+        this.name = builder.name;
+        this.failureThreshold = builder.failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(builder.openMillis);
+        this.maxOpenNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxOpenMillis);
+        this.currentOpenNanos = openNanos;
+        this.openedCount = PushMetrics.shared().counter("circuit." + name + ".opened");
+        this.rejectedCount = PushMetrics.shared().counter("circuit." + name + ".rejected");
+    }
+
+    /**
+     * Must be called before every call guarded by the breaker.
+     * @throws CircuitOpenException if the call must not be made
+     */
+    public void acquire() {
+        acquire(System.nanoTime());
+    }
+
+    /** Reports that the guarded call succeeded. */
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        currentOpenNanos = openNanos;
+    }
+
+    /**
+     * Reports that the guarded call failed. Failures that show the service is reachable, like
+     * a missing endpoint, leave a closed or open breaker as it is: one such request during an
+     * outage must neither close the circuit nor reset the failure count. A half-open breaker
+     * closes on them though, the service answered its probe.
+     * @param ex failure
+     */
+    public void onFailure(final Exception ex) {
+        onFailure(ex, System.nanoTime());
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    synchronized void acquire(final long nowNanos) {
+        switch (state) {
+            case CLOSED:
+                return;
+            case OPEN:
+                final long openForNanos = nowNanos - openedAtNanos;
+                if (openForNanos >= currentOpenNanos) {
+                    state = State.HALF_OPEN;
+                    probeStartedNanos = nowNanos;
+                    return;
+                }
+                rejectedCount.incrementAndGet();
+                throw new CircuitOpenException(name, TimeUnit.NANOSECONDS.toMillis(currentOpenNanos - openForNanos));
+            default:
+                // A probe that never reported back must not keep the circuit half-open forever.
+                if (nowNanos - probeStartedNanos >= currentOpenNanos) {
+                    probeStartedNanos = nowNanos;
+                    return;
+                }
+                rejectedCount.incrementAndGet();
+                throw new CircuitOpenException(name, TimeUnit.NANOSECONDS.toMillis(currentOpenNanos));
+        }
+    }
+
+    synchronized void onFailure(final Exception ex, final long nowNanos) {
+        if (!ErrorClassifier.isOutage(ex)) {
+            if (state == State.HALF_OPEN) {
+                onSuccess();
+            }
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            currentOpenNanos = Math.min(maxOpenNanos, currentOpenNanos * 2);
+            open(nowNanos);
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open(nowNanos);
+        }
+    }
+
+    private void open(final long nowNanos) {
+        state = State.OPEN;
+        openedAtNanos = nowNanos;
+        openedCount.incrementAndGet();
+    }
+}
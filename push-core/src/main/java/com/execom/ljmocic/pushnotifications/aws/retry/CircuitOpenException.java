@@ -0,0 +1,24 @@
+package com.execom.ljmocic.pushnotifications.aws.retry;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Thrown instead of making a call while its circuit breaker is open. It is an
+ * {@link AmazonClientException}, so callers handle it like the network failure it stands for.
+ */
+public class CircuitOpenException extends AmazonClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    public CircuitOpenException(final String circuitName, final long retryAfterMillis) {
+        super("Circuit " + circuitName + " is open, retry in " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /** @return time until the breaker lets a probe call through */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
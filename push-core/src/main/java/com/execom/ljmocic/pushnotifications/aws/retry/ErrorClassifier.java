@@ -0,0 +1,80 @@
+package com.execom.ljmocic.pushnotifications.aws.retry;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Decides what a failed SNS or Cognito call means: whether calling again may succeed, whether
+ * the caller is being throttled, and whether the failure points at the service or network
+ * being down.
+ */
+public final class ErrorClassifier {
+
+    private ErrorClassifier() {
+    }
+
+    /**
+     * Network failures, throttling and server errors are transient; anything else, like an
+     * invalid or disabled endpoint, will fail the same way when retried.
+     * @param ex failure
+     * @return true if calling again may succeed
+     */
+    public static boolean isRetryable(final Exception ex) {
+        if (ex instanceof AmazonServiceException) {
+            final AmazonServiceException serviceException = (AmazonServiceException) ex;
+            return serviceException.getStatusCode() >= 500
+                    || isThrottling(serviceException)
+                    || "RequestTimeout".equals(serviceException.getErrorCode());
+        }
+        return ex instanceof AmazonClientException;
+    }
+
+    /**
+     * @param ex failure
+     * @return true if the service rejected the call because of the request rate
+     */
+    public static boolean isThrottling(final Exception ex) {
+        if (!(ex instanceof AmazonServiceException)) {
+            return false;
+        }
+        final AmazonServiceException serviceException = (AmazonServiceException) ex;
+        final String errorCode = serviceException.getErrorCode();
+        return serviceException.getStatusCode() == 429
+                || "Throttling".equals(errorCode)
+                || "ThrottlingException".equals(errorCode)
+                || "TooManyRequestsException".equals(errorCode)
+                || "RequestLimitExceeded".equals(errorCode);
+    }
+
+    /**
+     * SNS reports an endpoint whose token GCM invalidated as disabled, and a deleted or
+     * malformed endpoint as not found or as an invalid {@code TargetArn}. Publishing to it
+     * again is a wasted round trip.
+     * @param ex failure of a publish to an endpoint
+     * @return true if the target endpoint can't receive messages
+     */
+    public static boolean isDeadEndpoint(final Exception ex) {
+        if (!(ex instanceof AmazonServiceException)) {
+            return false;
+        }
+        final AmazonServiceException serviceException = (AmazonServiceException) ex;
+        final String errorCode = serviceException.getErrorCode();
+        if ("EndpointDisabled".equals(errorCode) || "NotFound".equals(errorCode)) {
+            return true;
+        }
+        // Other invalid parameters, like an oversized message, say nothing about the endpoint.
+        return "InvalidParameter".equals(errorCode)
+                && serviceException.getErrorMessage() != null
+                && serviceException.getErrorMessage().contains("TargetArn");
+    }
+
+    /**
+     * Throttling means the service is up and only needs a slower caller, and an open circuit
+     * is not another outage.
+     * @param ex failure
+     * @return true if the failure counts towards opening a circuit breaker
+     */
+    public static boolean isOutage(final Exception ex) {
+        return isRetryable(ex) && !isThrottling(ex) && !(ex instanceof CircuitOpenException);
+    }
+}
@@ -0,0 +1,141 @@
+package com.execom.ljmocic.pushnotifications.aws.retry;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries calls failing with a retryable error (see {@link ErrorClassifier#isRetryable(Exception)})
+ * with decorrelated jitter backoff: each delay is random between the base delay and three times
+ * the previous delay, capped at the maximum. Clients failing together spread their retries
+ * instead of hitting the service again in lockstep.
+ *
+ * <p>The same delays drive retries that are scheduled instead of slept, through
+ * {@link #nextDelayMillis(long)}.</p>
+ */
+public class RetryPolicy {
+
+    public interface Call<T> {
+        T call();
+    }
+
+    /** A single attempt. */
+    public static final RetryPolicy NONE = new Builder().withMaxAttempts(1).build();
+
+    /** A few quick retries for calls somebody is waiting for. */
+    public static final RetryPolicy INTERACTIVE = new Builder()
+            .withMaxAttempts(3)
+            .withBaseDelayMillis(200)
+            .withMaxDelayMillis(2000)
+            .build();
+
+    public static class Builder {
+
+        private int maxAttempts = 1;
+        private long baseDelayMillis = 100;
+        private long maxDelayMillis = TimeUnit.SECONDS.toMillis(10);
+
+        /**
+         * Provides the number of attempts, including the first one.
+         * @param maxAttempts number of attempts
+         * @return builder
+         */
+        public Builder withMaxAttempts(final int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * Provides the shortest delay between attempts.
+         * @param baseDelayMillis delay in milliseconds
+         * @return builder
+         */
+        public Builder withBaseDelayMillis(final long baseDelayMillis) {
+            this.baseDelayMillis = baseDelayMillis;
+            return this;
+        }
+
+        /**
+         * Provides the longest delay between attempts.
+         * @param maxDelayMillis delay in milliseconds
+         * @return builder
+         */
+        public Builder withMaxDelayMillis(final long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            if (maxAttempts < 1 || baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis) {
+                throw new IllegalArgumentException("Invalid retry policy settings.");
+            }
+            return new RetryPolicy(this);
+        }
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+
+    private RetryPolicy(final Builder builder) {
+        this.maxAttempts = builder.maxAttempts;
+        this.baseDelayMillis = builder.baseDelayMillis;
+        this.maxDelayMillis = builder.maxDelayMillis;
+    }
+
+    /**
+     * Makes the call, retrying retryable failures. Must be called from a background thread,
+     * it sleeps between attempts.
+     * @param circuitBreaker breaker guarding every attempt, null for none
+     * @param call the call
+     * @param <T> result type
+     * @return result of the first successful attempt
+     * @throws RuntimeException failure of the last attempt, or {@link CircuitOpenException}
+     */
+    public <T> T call(final CircuitBreaker circuitBreaker, final Call<T> call) {
+        long delayMillis = baseDelayMillis;
+        for (int attempt = 1; ; attempt++) {
+            if (circuitBreaker != null) {
+                circuitBreaker.acquire();
+            }
+            try {
+                final T result = call.call();
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
+                }
+                return result;
+            } catch (final RuntimeException ex) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.onFailure(ex);
+                }
+                if (attempt >= maxAttempts || !ErrorClassifier.isRetryable(ex)) {
+                    throw ex;
+                }
+                delayMillis = nextDelayMillis(delayMillis);
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (final InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param previousDelayMillis previous delay, or the base delay before the first retry
+     * @return delay before the next attempt
+     */
+    public long nextDelayMillis(final long previousDelayMillis) {
+        final long upper = Math.max(baseDelayMillis, previousDelayMillis * 3);
+        return Math.min(maxDelayMillis, baseDelayMillis + (long) (random.nextDouble() * (upper - baseDelayMillis)));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+}
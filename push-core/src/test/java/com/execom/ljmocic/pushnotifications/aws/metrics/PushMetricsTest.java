@@ -0,0 +1,84 @@
+package com.execom.ljmocic.pushnotifications.aws.metrics;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PushMetricsTest {
+
+    @Test
+    public void bucketsBoundTheRelativeError() {
+        for (long value = 0; value < 1L << 36; value = value * 5 / 4 + 1) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            final long upper = LatencyHistogram.upperBound(bucket);
+            assertTrue(value + " above " + upper, value <= upper);
+            assertTrue(value + " far below " + upper, upper - value <= value / 8);
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.upperBound(bucket - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesMatchRecordedValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final long[] values = new long[10000];
+        final Random random = new Random(5);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (1000 * Math.exp(random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMaxMicros());
+        for (double percentile : new double[]{50, 90, 99}) {
+            final long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            final long estimate = snapshot.getPercentileMicros(percentile);
+            assertTrue(percentile + ": " + estimate + " vs " + exact,
+                    estimate >= exact && estimate - exact <= exact / 8);
+        }
+    }
+
+    @Test
+    public void countsConcurrentRecordingsAndDumps() throws Exception {
+        final PushMetrics metrics = new PushMetrics();
+        final PushMetrics.Operation operation = metrics.operation(PushMetrics.SNS_PUBLISH);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        operation.record(i % 1000, i % 10 != 0);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final PushMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(360000, snapshot.getCounter(PushMetrics.SNS_PUBLISH + ".success"));
+        assertEquals(40000, snapshot.getCounter(PushMetrics.SNS_PUBLISH + ".failure"));
+        assertEquals(400000, snapshot.getHistograms().get(PushMetrics.SNS_PUBLISH).getCount());
+
+        final File file = File.createTempFile("metrics", ".txt");
+        try {
+            metrics.dump(file);
+            final String dump = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+            assertTrue(dump, dump.contains(PushMetrics.SNS_PUBLISH + ".success 360000\n"));
+            assertTrue(dump, dump.contains(PushMetrics.SNS_PUBLISH + " count=400000 "));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveRateLimiterTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void spacesPermitsAfterTheBurst() {
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(10, 1, 100);
+        final long start = System.nanoTime() + SECOND;
+        // Idle for a second saves up half a second of permits.
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.reserve(start));
+        }
+        assertEquals(0, limiter.reserve(start));
+        assertEquals(SECOND / 10, limiter.reserve(start));
+        assertEquals(2 * SECOND / 10, limiter.reserve(start));
+    }
+
+    @Test
+    public void cutsOncePerCooldownAndRecoversAdditively() {
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(40, 5, 50);
+        final long now = System.nanoTime();
+        limiter.onThrottled(now);
+        // Throttles of calls sent at the old rate don't cut again.
+        limiter.onThrottled(now + SECOND / 2);
+        assertEquals(20, limiter.getRate(), 1e-9);
+        limiter.onThrottled(now + SECOND);
+        assertEquals(10, limiter.getRate(), 1e-9);
+        for (int i = 0; i < 10; i++) {
+            limiter.onThrottled(now + (i + 2) * SECOND);
+        }
+        assertEquals(5, limiter.getRate(), 1e-9);
+
+        for (int i = 0; i < 100000; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(50, limiter.getRate(), 1e-9);
+    }
+
+    @Test
+    public void settlesBelowTheServiceLimit() throws InterruptedException {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withMaxRequestsPerSecond(100).withSeed(5).build();
+        final List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            targets.add(sns.addEndpoint(APP_ARN, "token-" + i));
+        }
+        final AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(90, 10, 1000);
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        final DispatchResult result;
+        try {
+            result = new PushDispatcher(new SnsPublisher(new SnsClientProvider() {
+                @Override
+                public com.amazonaws.services.sns.AmazonSNS getSns() {
+                    return sns;
+                }
+            }, limiter), executor, executor, 16).dispatchAndWait(new PushMessage("s", "m"), targets);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Unlimited, 16 workers would send far more than 100 per second and most would be throttled.
+        assertTrue("Throttled " + sns.getThrottledCount(), sns.getThrottledCount() < targets.size() / 10);
+        assertEquals(targets.size() - sns.getThrottledCount(), result.getSuccessCount());
+        assertTrue("Rate " + limiter.getRate(), limiter.getRate() < 200);
+    }
+}
@@ -0,0 +1,144 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Publishes through each connection profile to a local HTTP stand-in for SNS and prints
+ * throughput and tail latency. Run with {@code -Dbenchmark=true}.
+ */
+public class ConnectionProfileBenchmark {
+
+    private static final int MESSAGES = 2000;
+    private static final int WARM_UP_MESSAGES = 200;
+    private static final int CONCURRENCY = 16;
+    // Simulated service time of the stand-in
+    private static final long SERVICE_MILLIS = 5;
+
+    private static final byte[] PUBLISH_RESPONSE = ("<PublishResponse xmlns=\"http://sns.amazonaws.com/doc/2010-03-31/\">"
+            + "<PublishResult><MessageId>message-id</MessageId></PublishResult>"
+            + "<ResponseMetadata><RequestId>request-id</RequestId></ResponseMetadata>"
+            + "</PublishResponse>").getBytes();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final AtomicLong requests = new AtomicLong();
+
+    @Before
+    public void startServer() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        serverExecutor = Executors.newFixedThreadPool(64);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final InputStream in = exchange.getRequestBody();
+                final byte[] buffer = new byte[4096];
+                while (in.read(buffer) >= 0) {
+                    // Drain the request so the connection can be re-used.
+                }
+                try {
+                    Thread.sleep(SERVICE_MILLIS);
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                requests.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Type", "text/xml");
+                exchange.sendResponseHeaders(200, PUBLISH_RESPONSE.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(PUBLISH_RESPONSE);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void comparesProfiles() throws Exception {
+        final ClientConfiguration base = new ClientConfiguration();
+        base.setUserAgent("benchmark");
+        final ConnectionProfile noKeepAlive = new ConnectionProfile.Builder("bulk-no-keep-alive")
+                .withMaxConnections(ConnectionProfile.BULK.getMaxConnections())
+                .withKeepAlive(false)
+                .build();
+
+        for (ConnectionProfile profile : Arrays.asList(ConnectionProfile.INTERACTIVE, ConnectionProfile.BULK, noKeepAlive)) {
+            ConnectionProfile.configureConnectionReuse(Arrays.asList(profile));
+            final AmazonSNS sns = new AmazonSNSClient(new BasicAWSCredentials("key", "secret"), profile.applyTo(base));
+            sns.setEndpoint("http://127.0.0.1:" + server.getAddress().getPort());
+            final SnsClientProvider provider = new SnsClientProvider() {
+                @Override
+                public AmazonSNS getSns() {
+                    return sns;
+                }
+            };
+            final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY);
+            try {
+                final PushDispatcher dispatcher = new PushDispatcher(provider, executor, executor, CONCURRENCY);
+                final PushMessage message = new PushPayload.Builder().withMessage("benchmark").build().toPushMessage(null);
+
+                dispatcher.dispatchAndWait(message, targets(WARM_UP_MESSAGES));
+                final DispatchResult result = dispatcher.dispatchAndWait(message, targets(MESSAGES));
+                assertEquals(MESSAGES, result.getSuccessCount());
+
+                final long[] latencies = new long[MESSAGES];
+                int i = 0;
+                for (DispatchResult.Outcome outcome : result.getOutcomes()) {
+                    latencies[i++] = outcome.getLatencyMillis();
+                }
+                Arrays.sort(latencies);
+                System.out.println(String.format(Locale.US,
+                        "%s: %.0f publishes/s, p50 %d ms, p99 %d ms, max %d ms",
+                        profile, MESSAGES * 1000.0 / Math.max(1, result.getWallTimeMillis()),
+                        percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[latencies.length - 1]));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static List<String> targets(final int count) {
+        final List<String> targets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            targets.add("arn:aws:sns:us-east-1:123456789012:endpoint/GCM/app/" + i);
+        }
+        return targets;
+    }
+
+    private static long percentile(final long[] sorted, final double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+}
@@ -0,0 +1,98 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.DeleteEndpointRequest;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EndpointDirectoryTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void syncsPageByPageAndResumesFromCheckpoint() throws IOException {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withSeed(1).build();
+        final Map<String, Boolean> expected = new HashMap<>();
+        for (int i = 0; i < 250; i++) {
+            final String arn = sns.addEndpoint(APP_ARN, "token-" + i);
+            if (i % 7 == 0) {
+                sns.disableEndpoint(arn);
+            }
+            expected.put(arn, i % 7 != 0);
+        }
+        final File directoryFile = folder.newFolder();
+
+        assertFalse(directory(directoryFile, sns).sync(1));
+        assertTrue(directory(directoryFile, sns).isSyncInProgress());
+        assertEquals(0, directory(directoryFile, sns).size());
+        // A new instance, as after process death, continues with the third page.
+        final EndpointDirectory directory = directory(directoryFile, sns);
+        assertTrue(directory.sync(5));
+        assertFalse(directory.isSyncInProgress());
+        assertEquals(3, sns.getRequestCount());
+        assertEquals(expected, read(directory));
+        assertTrue(directory.getSyncedAtMillis() > 0);
+        // Front coding keeps an entry well below the length of its ARN.
+        final long indexBytes = new File(directoryFile, "endpoints.idx").length();
+        assertTrue("Index takes " + indexBytes + " bytes", indexBytes < 250 * 60);
+    }
+
+    @Test
+    public void nextPassDropsDeletedEndpoints() throws IOException {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withSeed(2).build();
+        final Map<String, Boolean> expected = new HashMap<>();
+        for (int i = 0; i < 120; i++) {
+            expected.put(sns.addEndpoint(APP_ARN, "token-" + i), true);
+        }
+        final EndpointDirectory directory = directory(folder.newFolder(), sns);
+        assertTrue(directory.sync(Integer.MAX_VALUE));
+        assertEquals(120, directory.size());
+
+        final String deleted = expected.keySet().iterator().next();
+        sns.deleteEndpoint(new DeleteEndpointRequest().withEndpointArn(deleted));
+        expected.remove(deleted);
+        expected.put(sns.addEndpoint(APP_ARN, "token-new"), true);
+
+        // The old index stays readable while the next pass is in progress.
+        assertFalse(directory.sync(1));
+        assertEquals(120, directory.size());
+        assertTrue(directory.sync(Integer.MAX_VALUE));
+        assertEquals(expected, read(directory));
+    }
+
+    private static EndpointDirectory directory(final File file, final AmazonSNS sns) {
+        return new EndpointDirectory(file, new SnsClientProvider() {
+            @Override
+            public AmazonSNS getSns() {
+                return sns;
+            }
+        }, APP_ARN, RetryPolicy.NONE, null);
+    }
+
+    private static Map<String, Boolean> read(final EndpointDirectory directory) throws IOException {
+        final Map<String, Boolean> entries = new HashMap<>();
+        final EndpointDirectory.Cursor cursor = directory.open();
+        try {
+            while (cursor.next()) {
+                assertTrue(cursor.getLastSeenMillis() > 0);
+                assertNull(entries.put(cursor.getEndpointArn(), cursor.isEnabled()));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,113 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.AmazonSNS;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class EndpointQuarantineTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+
+    // Runs the file I/O on the calling thread.
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void persistsAcrossInstancesAndCompacts() throws IOException {
+        final File file = new File(folder.newFolder(), "quarantined-endpoints");
+        final EndpointQuarantine quarantine = new EndpointQuarantine(file, DIRECT);
+        assertTrue(quarantine.quarantine("arn-1"));
+        assertFalse(quarantine.quarantine("arn-1"));
+        assertTrue(quarantine.quarantine("arn-2"));
+        quarantine.markDeleted("arn-2");
+        // Quarantined and released over and over, until the log is compacted.
+        for (int i = 0; i < 100; i++) {
+            quarantine.quarantine("arn-3");
+            quarantine.release("arn-3");
+        }
+        assertTrue(file.length() < 64 * 30);
+
+        final EndpointQuarantine reloaded = new EndpointQuarantine(file, DIRECT);
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.isQuarantined("arn-1"));
+        assertFalse(reloaded.isQuarantined("arn-3"));
+        assertEquals(Arrays.asList("arn-1"), reloaded.getUndeleted(10));
+        assertEquals(Arrays.asList("arn-0", "arn-4"),
+                reloaded.filter(Arrays.asList("arn-0", "arn-1", "arn-2", "arn-4")));
+    }
+
+    @Test
+    public void quarantineExpiresUnlessTheEndpointWasDeleted() throws IOException, InterruptedException {
+        final File file = new File(folder.newFolder(), "quarantined-endpoints");
+        final EndpointQuarantine quarantine = new EndpointQuarantine(file, DIRECT, 50);
+        quarantine.quarantine("arn-1");
+        quarantine.quarantine("arn-2");
+        quarantine.markDeleted("arn-2");
+        final List<String> skipped = new ArrayList<>();
+        assertEquals(Arrays.asList("arn-0"), quarantine.filter(Arrays.asList("arn-0", "arn-1", "arn-2"), skipped));
+        assertEquals(Arrays.asList("arn-1", "arn-2"), skipped);
+
+        Thread.sleep(60);
+        assertEquals(Arrays.asList("arn-0", "arn-1"), quarantine.filter(Arrays.asList("arn-0", "arn-1", "arn-2")));
+        assertFalse(quarantine.isQuarantined("arn-1"));
+        assertTrue(quarantine.isQuarantined("arn-2"));
+        // Failing again quarantines it again.
+        assertTrue(quarantine.quarantine("arn-1"));
+
+        final EndpointQuarantine reloaded = new EndpointQuarantine(file, DIRECT, 50);
+        assertEquals(2, reloaded.size());
+    }
+
+    @Test
+    public void dispatcherQuarantinesDeadEndpoints() throws IOException, InterruptedException {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withSeed(3).build();
+        final List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            targets.add(sns.addEndpoint(APP_ARN, "token-" + i));
+        }
+        sns.disableEndpoint(targets.get(3));
+        final String missing = targets.get(7) + "-missing";
+        targets.add(missing);
+        final EndpointQuarantine quarantine =
+                new EndpointQuarantine(new File(folder.newFolder(), "quarantined-endpoints"), DIRECT);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final DispatchResult result;
+        try {
+            result = new PushDispatcher(new SnsPublisher(new SnsClientProvider() {
+                @Override
+                public AmazonSNS getSns() {
+                    return sns;
+                }
+            }, null), executor, executor, 4, quarantine).dispatchAndWait(new PushMessage("s", "m"), targets);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(2, result.getFailureCount());
+        assertEquals(2, quarantine.size());
+        assertTrue(quarantine.isQuarantined(targets.get(3)));
+        assertTrue(quarantine.isQuarantined(missing));
+        assertEquals(19, quarantine.filter(targets).size());
+    }
+}
@@ -0,0 +1,184 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.CreatePlatformEndpointRequest;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.DeleteEndpointRequest;
+import com.amazonaws.services.sns.model.EndpointDisabledException;
+import com.amazonaws.services.sns.model.GetEndpointAttributesRequest;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationRequest;
+import com.amazonaws.services.sns.model.ListEndpointsByPlatformApplicationResult;
+import com.amazonaws.services.sns.model.NotFoundException;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.SetEndpointAttributesRequest;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.execom.ljmocic.pushnotifications.aws.retry.ErrorClassifier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FakeAmazonSNSTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+
+    @Test
+    public void modelsEndpointLifecycle() {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withSeed(1).build();
+        final String arn = sns.createPlatformEndpoint(
+                new CreatePlatformEndpointRequest().withPlatformApplicationArn(APP_ARN).withToken("a")).getEndpointArn();
+        assertEquals(arn, sns.createPlatformEndpoint(
+                new CreatePlatformEndpointRequest().withPlatformApplicationArn(APP_ARN).withToken("a")).getEndpointArn());
+
+        sns.setEndpointAttributes(new SetEndpointAttributesRequest().withEndpointArn(arn)
+                .withAttributes(Collections.singletonMap("Enabled", "false")));
+        assertEquals("false", sns.getEndpointAttributes(
+                new GetEndpointAttributesRequest().withEndpointArn(arn)).getAttributes().get("Enabled"));
+        try {
+            sns.publish(new PublishRequest().withTargetArn(arn).withMessage("m"));
+            fail();
+        } catch (final EndpointDisabledException ex) {
+            assertEquals("EndpointDisabled", ex.getErrorCode());
+        }
+
+        sns.deleteEndpoint(new DeleteEndpointRequest().withEndpointArn(arn));
+        try {
+            sns.getEndpointAttributes(new GetEndpointAttributesRequest().withEndpointArn(arn));
+            fail();
+        } catch (final NotFoundException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void publishesToTopicSubscribersAndPagesEndpoints() {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withSeed(1).build();
+        final String topicArn = sns.createTopic(new CreateTopicRequest().withName("news")).getTopicArn();
+        final Set<String> created = new HashSet<>();
+        for (int i = 0; i < 250; i++) {
+            final String arn = sns.addEndpoint(APP_ARN, "token-" + i);
+            created.add(arn);
+            sns.subscribe(new SubscribeRequest().withTopicArn(topicArn).withProtocol("application").withEndpoint(arn));
+            if (i % 10 == 0) {
+                sns.disableEndpoint(arn);
+            }
+        }
+        sns.publish(new PublishRequest().withTopicArn(topicArn).withMessage("m"));
+        assertEquals(225, sns.getDeliveryCount());
+
+        final Set<String> listed = new HashSet<>();
+        String nextToken = null;
+        do {
+            final ListEndpointsByPlatformApplicationResult page = sns.listEndpointsByPlatformApplication(
+                    new ListEndpointsByPlatformApplicationRequest().withPlatformApplicationArn(APP_ARN).withNextToken(nextToken));
+            for (com.amazonaws.services.sns.model.Endpoint endpoint : page.getEndpoints()) {
+                listed.add(endpoint.getEndpointArn());
+            }
+            nextToken = page.getNextToken();
+        } while (nextToken != null);
+        assertEquals(created, listed);
+    }
+
+    @Test
+    public void injectsThrottlingAndDisabledEndpoints() throws InterruptedException {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder()
+                .withThrottlingProbability(0.1)
+                .withEndpointDisabledProbability(0.05)
+                .withSeed(7)
+                .build();
+        final List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            targets.add(sns.addEndpoint(APP_ARN, "token-" + i));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final DispatchResult result;
+        try {
+            result = new PushDispatcher(provider(sns), executor, executor, 8)
+                    .dispatchAndWait(new PushMessage("s", "m"), targets);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int throttled = 0;
+        int disabled = 0;
+        for (DispatchResult.Outcome failure : result.getFailures()) {
+            final AmazonServiceException error = (AmazonServiceException) failure.getError();
+            if ("Throttling".equals(error.getErrorCode())) {
+                assertTrue(ErrorClassifier.isRetryable(error));
+                throttled++;
+            } else {
+                assertEquals("EndpointDisabled", error.getErrorCode());
+                assertFalse(ErrorClassifier.isRetryable(error));
+                disabled++;
+            }
+        }
+        assertEquals(sns.getThrottledCount(), throttled);
+        assertTrue(throttled > 100 && throttled < 300);
+        assertTrue(disabled > 40 && disabled < 150);
+        assertEquals(2000 - throttled - disabled, sns.getDeliveryCount());
+    }
+
+    @Test
+    public void sustainsThousandsOfOperationsPerSecond() throws Exception {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder()
+                .withLatency(FakeAmazonSNS.logNormalLatency(200, 0.5))
+                .withSeed(3)
+                .build();
+        final int devices = 2000;
+        final ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            final long startNanos = System.nanoTime();
+            // Registration path: create the endpoint, then read back its attributes.
+            final List<Future<String>> registrations = new ArrayList<>();
+            for (int i = 0; i < devices; i++) {
+                final String token = "token-" + i;
+                registrations.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        final String arn = sns.createPlatformEndpoint(new CreatePlatformEndpointRequest()
+                                .withPlatformApplicationArn(APP_ARN).withToken(token)).getEndpointArn();
+                        sns.getEndpointAttributes(new GetEndpointAttributesRequest().withEndpointArn(arn));
+                        return arn;
+                    }
+                }));
+            }
+            final List<String> targets = new ArrayList<>();
+            for (Future<String> registration : registrations) {
+                targets.add(registration.get());
+            }
+            // Publish path: fan out to every registered endpoint, twice.
+            final PushDispatcher dispatcher = new PushDispatcher(provider(sns), executor, executor, 32);
+            for (int i = 0; i < 2; i++) {
+                assertTrue(dispatcher.dispatchAndWait(new PushMessage("s", "m"), targets).isSuccess());
+            }
+            final double seconds = (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+
+            assertEquals(devices * 4, sns.getRequestCount());
+            assertTrue("Only " + (sns.getRequestCount() / seconds) + " operations/s",
+                    sns.getRequestCount() / seconds > 1000);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static SnsClientProvider provider(final AmazonSNS sns) {
+        return new SnsClientProvider() {
+            @Override
+            public AmazonSNS getSns() {
+                return sns;
+            }
+        };
+    }
+}
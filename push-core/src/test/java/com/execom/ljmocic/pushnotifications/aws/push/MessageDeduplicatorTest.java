@@ -0,0 +1,63 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageDeduplicatorTest {
+
+    @Test
+    public void detectsRedeliveryAndCountsHits() {
+        final MessageDeduplicator deduplicator = new MessageDeduplicator(4);
+        assertFalse(deduplicator.isDuplicate("a"));
+        assertFalse(deduplicator.isDuplicate("b"));
+        assertTrue(deduplicator.isDuplicate("a"));
+        assertEquals(1, deduplicator.getHitCount());
+        assertEquals(2, deduplicator.getMissCount());
+    }
+
+    @Test
+    public void forgetsOldestIdsBeyondCapacity() {
+        final int capacity = 64;
+        final MessageDeduplicator deduplicator = new MessageDeduplicator(capacity);
+        final Deque<String> window = new ArrayDeque<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            final String id = "message-" + random.nextInt(200);
+            final boolean expected = window.contains(id);
+            assertEquals(id, expected, deduplicator.isDuplicate(id));
+            if (!expected) {
+                window.addLast(id);
+                if (window.size() > capacity) {
+                    window.removeFirst();
+                }
+            }
+        }
+        assertEquals(capacity, deduplicator.size());
+    }
+
+    @Test
+    public void restoresSavedIds() throws IOException {
+        final File file = File.createTempFile("dedup", ".bin");
+        try {
+            final MessageDeduplicator deduplicator = new MessageDeduplicator(8);
+            deduplicator.isDuplicate("a");
+            deduplicator.isDuplicate("b");
+            deduplicator.save(file);
+
+            final MessageDeduplicator restored = new MessageDeduplicator(8);
+            restored.load(file);
+            assertTrue(restored.isDuplicate("a"));
+            assertTrue(restored.isDuplicate("b"));
+            assertFalse(restored.isDuplicate("c"));
+        } finally {
+            file.delete();
+        }
+    }
+}
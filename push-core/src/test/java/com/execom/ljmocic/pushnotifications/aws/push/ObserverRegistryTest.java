@@ -0,0 +1,144 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ObserverRegistryTest {
+
+    private interface Observer {
+        void onEvent(String event);
+    }
+
+    private static class Recorder implements Observer {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onEvent(final String event) {
+            events.add(event);
+        }
+    }
+
+    private static class Slow implements Observer {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void onEvent(final String event) {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Failing implements Observer {
+
+        @Override
+        public void onEvent(final String event) {
+            throw new IllegalStateException(event);
+        }
+    }
+
+    private static ObserverRegistry.Notification<Observer> event(final String event) {
+        return new ObserverRegistry.Notification<Observer>() {
+            @Override
+            public void notify(final Observer observer) {
+                observer.onEvent(event);
+            }
+        };
+    }
+
+    @Test
+    public void addsAndRemovesObservers() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final ObserverRegistry<Observer> registry = new ObserverRegistry<>("test.registry", executor, 1000);
+            final Recorder first = new Recorder();
+            final Recorder second = new Recorder();
+            assertTrue(registry.add(first));
+            assertFalse(registry.add(first));
+            assertTrue(registry.add(second));
+            registry.dispatch(event("a")).get(5, TimeUnit.SECONDS);
+
+            assertTrue(registry.remove(first));
+            assertFalse(registry.remove(first));
+            assertEquals(1, registry.size());
+            registry.dispatch(event("b")).get(5, TimeUnit.SECONDS);
+
+            assertEquals(Collections.singletonList("a"), first.events);
+            assertEquals(2, second.events.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void slowAndFailingObserversDontHoldUpOthers() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final List<Observer> failed = Collections.synchronizedList(new ArrayList<Observer>());
+            final ObserverRegistry<Observer> registry = new ObserverRegistry<>("test.timing", executor, 10,
+                    new ObserverRegistry.FailureListener<Observer>() {
+                        @Override
+                        public void onObserverFailed(final Observer observer, final RuntimeException ex) {
+                            failed.add(observer);
+                        }
+                    });
+            final Failing failing = new Failing();
+            final Slow slow = new Slow();
+            final Recorder recorder = new Recorder();
+            registry.add(slow);
+            registry.add(failing);
+            registry.add(recorder);
+
+            final Future<Void> done = registry.dispatch(event("a"));
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (recorder.events.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Collections.singletonList("a"), recorder.events);
+            assertFalse(done.isDone());
+
+            Thread.sleep(20);
+            slow.release.countDown();
+            done.get(5, TimeUnit.SECONDS);
+
+            final PushMetrics.Snapshot metrics = PushMetrics.shared().snapshot();
+            final String slowName = "test.timing." + Slow.class.getName();
+            final String failingName = "test.timing." + Failing.class.getName();
+            assertEquals(1, metrics.getCounter(slowName + ".success"));
+            assertEquals(1, metrics.getCounter(slowName + ObserverRegistry.SUFFIX_SLOW));
+            assertEquals(1, metrics.getCounter(failingName + ".failure"));
+            assertEquals(1, metrics.getHistograms().get(slowName).getCount());
+            assertEquals(Collections.<Observer>singletonList(failing), failed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void dispatchWithoutObserversCompletes() throws Exception {
+        final ObserverRegistry<Observer> registry = new ObserverRegistry<>("test.empty", new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                fail("Nothing to notify.");
+            }
+        }, 1000);
+        assertTrue(registry.dispatch(event("a")).isDone());
+    }
+}
@@ -0,0 +1,119 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboundJournalTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void pendingEntriesSurviveReopen() throws IOException {
+        final OutboundJournal journal = new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_BYTES);
+        final List<OutboundJournal.Entry> entries =
+                journal.append(new PushMessage("subject", "message"), Arrays.asList("arn:1", "arn:2", "arn:3"));
+        journal.acknowledge(Collections.singletonList(entries.get(1).getSeq()));
+        journal.close();
+
+        final OutboundJournal reopened = new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_BYTES);
+        final List<OutboundJournal.Entry> pending = reopened.readPending(10, Collections.<Long>emptySet());
+        assertEquals(2, pending.size());
+        assertEquals("arn:1", pending.get(0).getTargetArn());
+        assertEquals("arn:3", pending.get(1).getTargetArn());
+        assertEquals("message", pending.get(1).getMessage().getMessage());
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        final OutboundJournal journal = new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_BYTES);
+        journal.append(new PushMessage(null, "message"), Arrays.asList("arn:1", "arn:2"));
+        journal.close();
+
+        final File segment = directory.listFiles()[0];
+        final FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        out.close();
+
+        final OutboundJournal reopened = new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_BYTES);
+        assertEquals(2, reopened.pendingCount());
+        final List<OutboundJournal.Entry> appended =
+                reopened.append(new PushMessage(null, "next"), Collections.singletonList("arn:3"));
+        assertEquals(2, appended.get(0).getSeq());
+        assertEquals(3, reopened.readPending(10, Collections.<Long>emptySet()).size());
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreCompacted() throws IOException {
+        final OutboundJournal journal = new OutboundJournal(directory, 64);
+        final List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            targets.add("arn:" + i);
+        }
+        final List<Long> seqs = new ArrayList<>();
+        for (OutboundJournal.Entry entry : journal.append(new PushMessage(null, "message"), targets)) {
+            seqs.add(entry.getSeq());
+        }
+        assertTrue(directory.listFiles().length > 1);
+
+        journal.acknowledge(seqs);
+        assertEquals(0, journal.pendingCount());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void mostlyAcknowledgedSegmentsAreCompacted() throws IOException {
+        final OutboundJournal journal = new OutboundJournal(directory, 64 * 1024);
+        final List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            targets.add("arn:" + i);
+        }
+        final List<OutboundJournal.Entry> entries = journal.append(new PushMessage(null, "message"), targets);
+        final List<Long> acked = new ArrayList<>();
+        for (int i = 1; i < entries.size(); i++) {
+            acked.add(entries.get(i).getSeq());
+        }
+        journal.acknowledge(acked);
+        // The tail is never compacted.
+        assertEquals(0, journal.compact(Collections.<Long>emptySet()));
+
+        journal.close();
+        final OutboundJournal reopened = new OutboundJournal(directory, 64 * 1024);
+        assertEquals(0, reopened.compact(Collections.singleton(entries.get(0).getSeq())));
+        assertEquals(1, reopened.compact(Collections.<Long>emptySet()));
+        assertEquals(1, directory.listFiles().length);
+
+        final List<OutboundJournal.Entry> pending = reopened.readPending(10, Collections.<Long>emptySet());
+        assertEquals(1, pending.size());
+        assertEquals("arn:0", pending.get(0).getTargetArn());
+        assertEquals(entries.get(0).getCreatedAt(), pending.get(0).getCreatedAt());
+        assertTrue(pending.get(0).getSeq() > entries.get(entries.size() - 1).getSeq());
+    }
+}
@@ -0,0 +1,171 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.AmazonSNS;
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("queue", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void entriesThatKeepFailingAreGivenUpOn() throws Exception {
+        // Every publish is throttled, which is retryable.
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withThrottlingProbability(1).withSeed(1).build();
+        final String target = sns.addEndpoint(APP_ARN, "token");
+        final ExecutorService network = Executors.newFixedThreadPool(2);
+        final ScheduledExecutorService disk = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final PushDispatcher dispatcher = new PushDispatcher(provider(sns), network, network, 2);
+            final OutboundQueue queue = new OutboundQueue(
+                    new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_BYTES),
+                    dispatcher, disk, OutboundQueue.DEFAULT_BATCH_SIZE, 3, TimeUnit.DAYS.toMillis(1));
+            final long expiredBefore = PushMetrics.shared().counter(PushMetrics.OUTBOUND_EXPIRED).get();
+
+            final CountDownLatch firstAttempt = new CountDownLatch(1);
+            queue.send(new PushMessage(null, "message"), Collections.singletonList(target),
+                    new PushDispatcher.Callback() {
+                        @Override
+                        public void onDispatchComplete(final DispatchResult result) {
+                            firstAttempt.countDown();
+                        }
+                    });
+            assertTrue(firstAttempt.await(5, TimeUnit.SECONDS));
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                // Skips the backoff between drains.
+                queue.onNetworkAvailable();
+                Thread.sleep(5);
+            }
+
+            assertEquals(0, queue.getPendingCount());
+            assertEquals(3, sns.getThrottledCount());
+            assertEquals(expiredBefore + 1, PushMetrics.shared().counter(PushMetrics.OUTBOUND_EXPIRED).get());
+        } finally {
+            network.shutdownNow();
+            disk.shutdownNow();
+        }
+    }
+
+    @Test
+    public void interactiveSendsDontWaitForTheDiskQueue() throws Exception {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().build();
+        final String target = sns.addEndpoint(APP_ARN, "token");
+        final ExecutorService network = Executors.newFixedThreadPool(2);
+        final ScheduledExecutorService disk = Executors.newSingleThreadScheduledExecutor();
+        final CountDownLatch diskBusy = new CountDownLatch(1);
+        try {
+            final PushDispatcher dispatcher = new PushDispatcher(provider(sns), network, network, 2);
+            final OutboundQueue queue = new OutboundQueue(
+                    new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_BYTES),
+                    dispatcher, disk, OutboundQueue.DEFAULT_BATCH_SIZE);
+            // Stands in for fan-out batch reads and drains occupying the disk thread.
+            disk.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        diskBusy.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            final CountDownLatch sent = new CountDownLatch(1);
+            final DispatchResult[] result = new DispatchResult[1];
+            queue.send(new PushMessage(null, "message"), Collections.singletonList(target),
+                    PushDispatcher.Lane.INTERACTIVE, new PushDispatcher.Callback() {
+                        @Override
+                        public void onDispatchComplete(final DispatchResult dispatched) {
+                            result[0] = dispatched;
+                            sent.countDown();
+                        }
+                    });
+
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            assertEquals(1, result[0].getSuccessCount());
+            assertEquals(1, sns.getPublishCount());
+            diskBusy.countDown();
+            assertEquals(0, queue.getPendingCount());
+        } finally {
+            diskBusy.countDown();
+            network.shutdownNow();
+            disk.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedInteractiveTargetsAreJournaled() throws Exception {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withThrottlingProbability(1).withSeed(1).build();
+        final String target = sns.addEndpoint(APP_ARN, "token");
+        final ExecutorService network = Executors.newFixedThreadPool(2);
+        final ScheduledExecutorService disk = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final PushDispatcher dispatcher = new PushDispatcher(provider(sns), network, network, 2);
+            final OutboundQueue queue = new OutboundQueue(
+                    new OutboundJournal(directory, OutboundJournal.DEFAULT_SEGMENT_BYTES),
+                    dispatcher, disk, OutboundQueue.DEFAULT_BATCH_SIZE);
+
+            final CountDownLatch sent = new CountDownLatch(1);
+            queue.send(new PushMessage(null, "message"), Collections.singletonList(target),
+                    PushDispatcher.Lane.INTERACTIVE, new PushDispatcher.Callback() {
+                        @Override
+                        public void onDispatchComplete(final DispatchResult result) {
+                            sent.countDown();
+                        }
+                    });
+            assertTrue(sent.await(5, TimeUnit.SECONDS));
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getPendingCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+
+            assertEquals(1, queue.getPendingCount());
+        } finally {
+            network.shutdownNow();
+            disk.shutdownNow();
+        }
+    }
+
+    private static SnsClientProvider provider(final AmazonSNS sns) {
+        return new SnsClientProvider() {
+            @Override
+            public AmazonSNS getSns() {
+                return sns;
+            }
+        };
+    }
+}
@@ -0,0 +1,157 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.services.sns.AmazonSNS;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PushDispatcherTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+    private static final long PUBLISH_MICROS = 500;
+
+    @Test
+    public void interactiveSendsOvertakeBulkFanOut() throws Exception {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder()
+                .withLatency(FakeAmazonSNS.fixedLatency(PUBLISH_MICROS))
+                .withSeed(1)
+                .build();
+        final List<String> bulkTargets = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            bulkTargets.add(sns.addEndpoint(APP_ARN, "token-" + i));
+        }
+        final String interactiveTarget = sns.addEndpoint(APP_ARN, "interactive");
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final PushDispatcher dispatcher = new PushDispatcher(provider(sns), executor, executor, 4);
+            final Future<DispatchResult> bulk = dispatcher.dispatch(new PushMessage("s", "bulk"), bulkTargets,
+                    PushDispatcher.Lane.BULK, null);
+
+            final long[] latencies = new long[40];
+            for (int i = 0; i < latencies.length; i++) {
+                assertFalse(bulk.isDone());
+                final long start = System.nanoTime();
+                assertTrue(dispatcher.dispatch(new PushMessage("s", "interactive"),
+                        Collections.singletonList(interactiveTarget), PushDispatcher.Lane.INTERACTIVE, null)
+                        .get().isSuccess());
+                latencies[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(latencies);
+            final long p95Micros = TimeUnit.NANOSECONDS.toMicros(latencies[(int) (latencies.length * 0.95)]);
+            // A worker is always free for interactive sends, they never wait for the bulk targets queued.
+            assertTrue("Interactive p95 " + p95Micros + " us", p95Micros < 20 * PUBLISH_MICROS);
+
+            assertTrue(bulk.get().isSuccess());
+            assertEquals(10000 + latencies.length, sns.getDeliveryCount());
+            assertEquals(0, dispatcher.getQueuedCount(PushDispatcher.Lane.BULK));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void lowerLanesKeepTheirShare() throws Exception {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder()
+                .withLatency(FakeAmazonSNS.fixedLatency(PUBLISH_MICROS))
+                .withSeed(2)
+                .build();
+        final List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            targets.add(sns.addEndpoint(APP_ARN, "token-" + i));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final PushDispatcher dispatcher = new PushDispatcher(provider(sns), executor, executor, 2);
+            final Future<DispatchResult> bulk = dispatcher.dispatch(new PushMessage("s", "bulk"), targets,
+                    PushDispatcher.Lane.BULK, null);
+            final Future<DispatchResult> normal = dispatcher.dispatch(new PushMessage("s", "normal"), targets,
+                    PushDispatcher.Lane.NORMAL, null);
+            final Future<DispatchResult> interactive = dispatcher.dispatch(new PushMessage("s", "interactive"),
+                    targets, PushDispatcher.Lane.INTERACTIVE, null);
+            interactive.get();
+            // Weights of 8, 3 and 1: bulk got a share of the publishes while both other lanes were busy.
+            final int bulkPublished = 1000 - dispatcher.getQueuedCount(PushDispatcher.Lane.BULK);
+            assertTrue("Bulk published " + bulkPublished, bulkPublished > 50);
+            assertTrue(normal.get().isSuccess());
+            assertTrue(bulk.get().isSuccess());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void errorsCompleteTheFanOutAndAreRethrown() throws Exception {
+        final FakeAmazonSNS sns = new FakeAmazonSNS.Builder().withSeed(3).build();
+        final List<String> targets = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            targets.add(sns.addEndpoint(APP_ARN, "token-" + i));
+        }
+        final OutOfMemoryError error = new OutOfMemoryError("Simulated");
+        final AtomicInteger publishes = new AtomicInteger();
+        final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+        final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable);
+                thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(final Thread thread, final Throwable ex) {
+                        uncaught.add(ex);
+                    }
+                });
+                return thread;
+            }
+        });
+        try {
+            final PushDispatcher dispatcher = new PushDispatcher(new SnsClientProvider() {
+                @Override
+                public AmazonSNS getSns() {
+                    if (publishes.incrementAndGet() == 5) {
+                        throw error;
+                    }
+                    return sns;
+                }
+            }, executor, executor, 2);
+
+            final DispatchResult result = dispatcher.dispatch(new PushMessage("s", "m"), targets,
+                    PushDispatcher.Lane.NORMAL, null).get(5, TimeUnit.SECONDS);
+            assertEquals(19, result.getSuccessCount());
+            assertEquals(1, result.getFailureCount());
+            // Rethrown after the outcome was recorded, so it may reach the thread a moment later.
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (uncaught.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Collections.<Throwable>singletonList(error), uncaught);
+
+            // The worker that died doesn't count against the concurrency.
+            for (int i = 0; i < 3; i++) {
+                assertTrue(dispatcher.dispatch(new PushMessage("s", "m"), targets,
+                        PushDispatcher.Lane.NORMAL, null).get(5, TimeUnit.SECONDS).isSuccess());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static SnsClientProvider provider(final AmazonSNS sns) {
+        return new SnsClientProvider() {
+            @Override
+            public AmazonSNS getSns() {
+                return sns;
+            }
+        };
+    }
+}
@@ -0,0 +1,359 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.execom.ljmocic.pushnotifications.aws.metrics.PushMetrics;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PushPayloadTest {
+
+    private static final String MESSAGE = "Line \"one\"\nback\\slash   tab\t";
+    // Data GCM accepts per message
+    private static final int GCM_MAX_DATA_BYTES = 4096;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] WORDS = ("the a of to and in is for on with that your new order has been shipped "
+            + "delivery update account payment received meeting tomorrow reminder please check status "
+            + "message from team report weekly summary price changed café naïve über").split(" ");
+
+    @Test
+    public void encodesNestedPlatformStructures() {
+        final PushPayload payload = new PushPayload.Builder()
+                .withMessage(MESSAGE)
+                .withTitle("Title")
+                .withMessageId("id-1")
+                .withData("thread", "t\"1")
+                .withApns(true)
+                .build();
+
+        final Map<String, String> structure = readObject(payload.toJson());
+        assertEquals(MESSAGE, structure.get(PushPayload.KEY_DEFAULT));
+
+        final Map<String, String> gcm = readObject(structure.get("GCM"));
+        final Map<String, String> data = readObject(gcm.get("data"));
+        assertEquals(MESSAGE, data.get(PushPayload.KEY_MESSAGE));
+        assertEquals("Title", data.get(PushPayload.KEY_TITLE));
+        assertEquals("id-1", data.get(PushPayload.KEY_MESSAGE_ID));
+        assertEquals("t\"1", data.get("thread"));
+
+        final Map<String, String> apns = readObject(structure.get("APNS"));
+        assertEquals(MESSAGE, readObject(apns.get("aps")).get("alert"));
+        assertEquals("id-1", apns.get(PushPayload.KEY_MESSAGE_ID));
+
+        final PushMessage pushMessage = payload.toPushMessage("Subject");
+        assertEquals(PushPayload.MESSAGE_STRUCTURE_JSON, pushMessage.getMessageStructure());
+        assertEquals(payload.toJson(), pushMessage.getMessage());
+    }
+
+    @Test
+    public void templateRendersSameJsonAsBuilder() {
+        final PushPayload.Builder builder = new PushPayload.Builder().withTitle("Title").withData("topic", "news");
+        final PushPayload.Template template = builder.toTemplate();
+        for (int i = 0; i < 10; i++) {
+            final String message = MESSAGE + i;
+            assertEquals(builder.withMessage(message).withMessageId("id-" + i).build().toJson(),
+                    template.render(message, "id-" + i).toJson());
+        }
+    }
+
+    @Test
+    public void readsFieldsFromDataAndDefaultMessage() {
+        final Map<String, String> data = new HashMap<>();
+        data.put(PushPayload.KEY_MESSAGE, "hello");
+        data.put("sentAt", "-1234");
+        final PushPayloadReader reader = new PushPayloadReader().reset(mapSource(data));
+        assertEquals("hello", reader.getMessage());
+        assertEquals(-1234, reader.getLong("sentAt", 0));
+        assertEquals(7, reader.getLong("missing", 7));
+        assertNull(reader.getMessageId());
+
+        // Raw JSON published without a message structure arrives as the default message.
+        data.clear();
+        data.put(PushPayload.KEY_DEFAULT, "{\"nested\":{\"message\":\"no\"},\"message\":\"a\\u0041\",\"n\":42}");
+        reader.reset(mapSource(data));
+        assertEquals("aA", reader.getString(PushPayload.KEY_MESSAGE));
+        assertEquals(42, reader.getLong("n", 0));
+
+        data.put(PushPayload.KEY_DEFAULT, "plain text");
+        assertEquals("plain text", reader.reset(mapSource(data)).getMessage());
+        assertNull(reader.getMessageId());
+    }
+
+    @Test
+    public void parsesLongsWithoutOverflow() {
+        assertEquals(Long.MAX_VALUE, PushPayloadReader.parseLong("9223372036854775807", 0, 19, 0));
+        assertEquals(Long.MIN_VALUE, PushPayloadReader.parseLong("-9223372036854775808", 0, 20, 0));
+        assertEquals(-1, PushPayloadReader.parseLong("9223372036854775808", 0, 19, -1));
+        assertEquals(-1, PushPayloadReader.parseLong("12x", 0, 3, -1));
+        assertEquals(12, PushPayloadReader.parseLong("12x", 0, 2, -1));
+    }
+
+    @Test
+    public void tracesDeliveryLatency() {
+        final PushPayload payload = new PushPayload.Builder()
+                .withMessage(MESSAGE).withMessageId("id-1").withTrace("00000000deadbeef", 1000L).build();
+        final Map<String, String> data = readObject(readObject(readObject(payload.toJson()).get("GCM")).get("data"));
+        final PushPayloadReader reader = new PushPayloadReader().reset(mapSource(data));
+        assertEquals("00000000deadbeef", reader.getTraceId());
+        assertEquals(1000L, reader.getSentAtMillis());
+        assertEquals(payload.toJson(), new PushPayload.Builder().toTemplate()
+                .render(MESSAGE, "id-1", "00000000deadbeef", 1000L).toJson());
+
+        data.remove(PushPayload.KEY_SENT_AT);
+        assertEquals(-1, reader.reset(mapSource(data)).getSentAtMillis());
+        assertEquals(16, PushTrace.newTraceId().length());
+
+        final PushMetrics metrics = new PushMetrics();
+        assertEquals(250, PushTrace.recordDelivery(metrics, 1000, 1200, 1250));
+        // GCM's clock ahead of the receiver: the GCM leg is skewed, the others still count.
+        assertEquals(250, PushTrace.recordDelivery(metrics, 1000, 1300, 1250));
+        final PushMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getHistograms().get(PushTrace.DELIVERY_TOTAL).getCount());
+        assertEquals(2, snapshot.getHistograms().get(PushTrace.DELIVERY_TO_GCM).getCount());
+        assertEquals(1, snapshot.getHistograms().get(PushTrace.DELIVERY_GCM).getCount());
+        assertEquals(1, snapshot.getCounter(PushTrace.DELIVERY_SKEWED));
+    }
+
+    @Test
+    public void templatesAndReadersAllocateLessThanBuilders() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        final int messages = 20000;
+        final PushPayload.Template template = new PushPayload.Builder()
+                .withTitle("Title").withData("thread", "t1").withData("topic", "news").toTemplate();
+
+        final Map<String, String> data = new HashMap<>();
+        data.put(PushPayload.KEY_MESSAGE, MESSAGE);
+        data.put(PushPayload.KEY_MESSAGE_ID, "id");
+        data.put("sentAt", "1476000000000");
+        final PushPayloadReader reader = new PushPayloadReader();
+        final PushPayloadReader.Source source = mapSource(data);
+
+        // Warm up before measuring
+        for (int i = 0; i < messages; i++) {
+            build(i);
+            template.render(MESSAGE, "id");
+            read(reader, source);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < messages; i++) {
+            build(i);
+        }
+        final long builderBytes = (threads.getThreadAllocatedBytes(threadId) - before) / messages;
+
+        before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < messages; i++) {
+            template.render(MESSAGE, "id");
+        }
+        final long templateBytes = (threads.getThreadAllocatedBytes(threadId) - before) / messages;
+
+        before = threads.getThreadAllocatedBytes(threadId);
+        long sum = 0;
+        for (int i = 0; i < messages; i++) {
+            sum += read(reader, source);
+        }
+        final long readerBytes = (threads.getThreadAllocatedBytes(threadId) - before) / messages;
+
+        // Keeps the reads from being optimized away.
+        assertTrue(sum > 0);
+        assertTrue(templateBytes < builderBytes);
+        // Reading fields present in the data only looks them up.
+        assertTrue(readerBytes < 64);
+    }
+
+    @Test
+    public void packsLargeMessagesIntoChunksWithinGcmLimit() throws IOException {
+        final String message = corpusText(new Random(7), 60000);
+        final List<PushPayload> parts = PayloadPacker.DEFAULT.pack(new PushPayload.Builder()
+                .withMessage(message).withTitle("Title").withMessageId("id-1").withData("thread", "t1")
+                .withTrace("trace", 1476000000000L).withApns(true));
+        assertTrue(parts.size() > 1);
+
+        final List<Map<String, String>> received = new ArrayList<>();
+        for (PushPayload part : parts) {
+            final Map<String, String> structure = readObject(part.toJson());
+            assertNull(structure.get("APNS"));
+            final String gcm = structure.get("GCM");
+            assertTrue("GCM data of " + gcm.getBytes(UTF_8).length + " bytes",
+                    gcm.getBytes(UTF_8).length <= GCM_MAX_DATA_BYTES);
+            received.add(readObject(readObject(gcm).get("data")));
+        }
+        // GCM delivers in any order, and may deliver twice.
+        Collections.shuffle(received, new Random(3));
+        received.add(1, received.get(0));
+
+        final ChunkReassembler reassembler = new ChunkReassembler(ChunkReassembler.DEFAULT_MAX_GROUPS,
+                ChunkReassembler.DEFAULT_MAX_CHARS, ChunkReassembler.DEFAULT_TIMEOUT_MILLIS);
+        final PushPayloadReader reader = new PushPayloadReader();
+        String reassembled = null;
+        for (int i = 0; i < received.size(); i++) {
+            reader.reset(mapSource(received.get(i)));
+            assertEquals("t1", reader.getString("thread"));
+            assertEquals("id-1:" + reader.getChunkIndex(), reader.getMessageId());
+            assertEquals(parts.size(), reader.getChunkCount());
+            assertNull(reassembled);
+            reassembled = reassembler.offer(reader.getChunkGroupId(), reader.getChunkIndex(),
+                    reader.getChunkCount(), reader.getMessage(), 1000 + i);
+        }
+        assertEquals(message, PayloadPacker.unpack(reader.getEncoding(), reassembled));
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void reassemblerDropsExpiredAndExcessGroups() {
+        final ChunkReassembler reassembler = new ChunkReassembler(2, 100, 1000);
+        assertNull(reassembler.offer("a", 0, 2, "a0", 0));
+        assertNull(reassembler.offer("b", 0, 2, "b0", 500));
+        // "a" expired by the time its second chunk arrives.
+        assertNull(reassembler.offer("a", 1, 2, "a1", 1200));
+        assertEquals("b0b1", reassembler.offer("b", 1, 2, "b1", 1300));
+
+        assertNull(reassembler.offer("c", 0, 2, "c0", 1400));
+        assertNull(reassembler.offer("d", 0, 2, "d0", 1400));
+        // A third group pushes out the oldest one.
+        assertNull(reassembler.offer("e", 0, 2, "e0", 1400));
+        assertEquals(2, reassembler.getPendingCount());
+        assertEquals("d0d1", reassembler.offer("d", 1, 2, "d1", 1400));
+        assertNull(reassembler.offer("c", 1, 2, "c1", 1400));
+        assertEquals("plain", reassembler.offer("f", 0, 1, "plain", 1400));
+    }
+
+    @Test
+    public void compressesCorpus() throws IOException {
+        final Random random = new Random(11);
+        final StringBuilder json = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 40; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(1000 + i)
+                    .append(",\"name\":\"").append(corpusText(random, 24)).append("\",\"status\":\"shipped\"}");
+        }
+        json.append("]}");
+        final StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            noise.append((char) ('0' + random.nextInt(75)));
+        }
+        final String[][] corpus = {
+                {"chat", "See you at 6, bring the slides?"},
+                {"notification", corpusText(random, 1500)},
+                {"json", json.toString()},
+                {"article", corpusText(random, 20000)},
+                {"noise", noise.toString()},
+        };
+
+        for (String[] entry : corpus) {
+            final String message = entry[1];
+            final PushPayload.Builder builder = new PushPayload.Builder().withMessage(message).withMessageId("id");
+            final List<PushPayload> parts = PayloadPacker.DEFAULT.pack(builder);
+
+            int packedBytes = 0;
+            final StringBuilder packed = new StringBuilder();
+            for (PushPayload part : parts) {
+                packedBytes += PayloadPacker.escapedUtf8Length(part.getMessage());
+                packed.append(part.getMessage());
+            }
+            final int messageBytes = PayloadPacker.escapedUtf8Length(message);
+            final double ratio = (double) packedBytes / messageBytes;
+
+            if (parts.get(0).getMessage().equals(message)) {
+                // Small or incompressible, sent as it is.
+                assertEquals(1, parts.size());
+            } else {
+                assertEquals(message, PayloadPacker.unpack(PayloadPacker.ENCODING_GZIP, packed.toString()));
+                assertTrue(ratio < 0.7);
+            }
+        }
+    }
+
+    private static String corpusText(final Random random, final int length) {
+        final StringBuilder text = new StringBuilder(length + 64);
+        while (text.length() < length) {
+            final int sentenceWords = 4 + random.nextInt(12);
+            for (int i = 0; i < sentenceWords; i++) {
+                // Skewed towards the first words, like natural text.
+                final String word = WORDS[(int) (Math.abs(random.nextGaussian()) * WORDS.length / 3) % WORDS.length];
+                text.append(i == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+                text.append(i == sentenceWords - 1 ? ". " : (random.nextInt(10) == 0 ? ", " : " "));
+            }
+            if (random.nextInt(6) == 0) {
+                text.append("Order #").append(100000 + random.nextInt(900000))
+                        .append(" \"").append(WORDS[random.nextInt(WORDS.length)]).append("\"\n");
+            }
+        }
+        return text.substring(0, length);
+    }
+
+    private static int build(final int i) {
+        return new PushPayload.Builder()
+                .withMessage(MESSAGE).withMessageId("id").withTitle("Title")
+                .withData("thread", "t1").withData("topic", "news")
+                .build().toJson().length() + i;
+    }
+
+    private static long read(final PushPayloadReader reader, final PushPayloadReader.Source source) {
+        reader.reset(source);
+        return reader.getMessage().length() + reader.getMessageId().length() + reader.getLong("sentAt", 0);
+    }
+
+    private static PushPayloadReader.Source mapSource(final Map<String, String> data) {
+        return new PushPayloadReader.Source() {
+            @Override
+            public String getString(final String key) {
+                return data.get(key);
+            }
+        };
+    }
+
+    private static Map<String, String> readObject(final String json) {
+        assertNotNull(json);
+        final Map<String, String> fields = new HashMap<>();
+        final JsonFieldReader reader = new JsonFieldReader().reset(json);
+        for (String field = reader.nextField(); field != null; field = reader.nextField()) {
+            final int start = json.indexOf(':', json.indexOf('"' + field + '"')) + 1;
+            final char first = json.charAt(start);
+            if (first == '{') {
+                fields.put(field, json.substring(start, matchingBrace(json, start) + 1));
+                reader.stringValue();
+            } else {
+                fields.put(field, reader.stringValue());
+            }
+        }
+        return fields;
+    }
+
+    private static int matchingBrace(final String json, final int start) {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = start; i < json.length(); i++) {
+            final char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        throw new AssertionError("Unbalanced " + json);
+    }
+}
@@ -0,0 +1,101 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PushStateStoreTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+    private static final String ENDPOINT_ARN = APP_ARN.replace(":app/", ":endpoint/") + "/0a1b2c3d";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void coalescesWritesAndReloads() throws IOException {
+        final File file = new File(folder.newFolder(), "push-state");
+        final List<Runnable> pending = new ArrayList<>();
+        final PushStateStore store = new PushStateStore(file, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                pending.add(command);
+            }
+        });
+        assertFalse(store.load());
+
+        store.edit().putDeviceToken("token").apply();
+        store.edit()
+                .putPlatformApplicationArn(APP_ARN)
+                .putEndpointArn(ENDPOINT_ARN)
+                .putPushEnabled(true)
+                .putEndpointState(new EndpointState("token", true, 1234L))
+                .putTopicSubscription("topic-1", "subscription-1")
+                .putTopicSubscription("topic-2", "subscription-2")
+                .apply();
+        store.edit().removeTopicSubscription("topic-1").apply();
+        // Visible right away, written by a single pending write.
+        assertEquals(ENDPOINT_ARN, store.get().getEndpointArn());
+        assertEquals(1, pending.size());
+        assertFalse(file.exists());
+        pending.get(0).run();
+
+        final PushStateStore reloaded = new PushStateStore(file, null);
+        assertTrue(reloaded.load());
+        final PushStateStore.State state = reloaded.get();
+        assertEquals("token", state.getDeviceToken());
+        assertEquals(ENDPOINT_ARN, state.getEndpointArn());
+        assertEquals(APP_ARN, state.getPlatformApplicationArn());
+        assertTrue(state.isPushEnabled());
+        assertTrue(state.getEndpointState().matches("token", true));
+        assertEquals(1234L, state.getEndpointState().getVerifiedAt());
+        assertEquals(1, state.getTopicSubscriptions().size());
+        assertEquals("subscription-2", state.getTopicSubscriptions().get("topic-2"));
+        assertTrue(file.length() < 512);
+    }
+
+    @Test
+    public void clearRegistrationKeepsToken() throws IOException {
+        final File file = new File(folder.newFolder(), "push-state");
+        final PushStateStore store = new PushStateStore(file, null);
+        store.edit()
+                .putDeviceToken("token")
+                .putEndpointArn(ENDPOINT_ARN)
+                .putPushEnabled(true)
+                .putTopicSubscription("topic", "subscription")
+                .commit();
+        assertTrue(store.edit().clearRegistration().putPlatformApplicationArn(APP_ARN).commit());
+
+        final PushStateStore reloaded = new PushStateStore(file, null);
+        assertTrue(reloaded.load());
+        assertEquals("token", reloaded.get().getDeviceToken());
+        assertEquals("", reloaded.get().getEndpointArn());
+        assertEquals(APP_ARN, reloaded.get().getPlatformApplicationArn());
+        assertFalse(reloaded.get().isPushEnabled());
+        assertNull(reloaded.get().getEndpointState());
+        assertTrue(reloaded.get().getTopicSubscriptions().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptFile() throws IOException {
+        final File file = new File(folder.newFolder(), "push-state");
+        assertTrue(new PushStateStore(file, null).edit().putEndpointArn(ENDPOINT_ARN).commit());
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(12);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+        new PushStateStore(file, null).load();
+    }
+}
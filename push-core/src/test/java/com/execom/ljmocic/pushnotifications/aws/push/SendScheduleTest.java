@@ -0,0 +1,101 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SendScheduleTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void firesDueSendsInBatchesAfterReopening() throws IOException {
+        final File file = new File(folder.newFolder(), "scheduled-sends");
+        final SendSchedule schedule = new SendSchedule(file, SendSchedule.DEFAULT_TICK_MILLIS);
+        final long now = System.currentTimeMillis();
+        final List<PushMessage> parts = Arrays.asList(new PushMessage(null, "part 1"),
+                new PushMessage("subject", "part 2", "json"));
+        final long later = schedule.add(parts, Arrays.asList("arn-1", "arn-2"), now + HOUR);
+        final long directory = schedule.add(parts, null, now + 2 * HOUR);
+        final long cancelled = schedule.add(parts, Collections.singletonList("arn-3"), now + HOUR);
+        for (int i = 0; i < 5; i++) {
+            schedule.add(parts, Collections.singletonList("arn-" + i), now - HOUR - i);
+        }
+        assertTrue(schedule.cancel(cancelled));
+        assertFalse(schedule.cancel(cancelled));
+        schedule.close();
+
+        // Overdue sends fire right away after a restart.
+        final SendSchedule reopened = new SendSchedule(file, SendSchedule.DEFAULT_TICK_MILLIS);
+        assertEquals(7, reopened.size());
+        assertTrue(reopened.getNextDueAtMillis() <= System.currentTimeMillis());
+        final List<SendSchedule.ScheduledSend> first = reopened.pollDue(now, 3);
+        assertEquals(3, first.size());
+        assertEquals(2, reopened.pollDue(now, 3).size());
+        assertTrue(reopened.pollDue(now, 3).isEmpty());
+        assertTrue(reopened.getNextDueAtMillis() <= now + HOUR);
+        // Removing handed off sends, the others are still pending.
+        final List<Long> ids = new ArrayList<>();
+        for (SendSchedule.ScheduledSend send : first) {
+            ids.add(send.getId());
+        }
+        reopened.remove(ids);
+        assertEquals(4, reopened.size());
+
+        final List<SendSchedule.ScheduledSend> due = reopened.pollDue(now + 3 * HOUR, 10);
+        assertEquals(2, due.size());
+        assertEquals(later, due.get(0).getId());
+        assertEquals(Arrays.asList("arn-1", "arn-2"), due.get(0).getTargetArns());
+        assertEquals("part 2", due.get(0).getParts().get(1).getMessage());
+        assertEquals("json", due.get(0).getParts().get(1).getMessageStructure());
+        assertNull(due.get(0).getParts().get(0).getSubject());
+        assertEquals(directory, due.get(1).getId());
+        assertTrue(due.get(1).isDirectorySend());
+        assertFalse(reopened.cancel(directory));
+        reopened.close();
+    }
+
+    @Test
+    public void truncatesTornTailAndCompacts() throws IOException {
+        final File file = new File(folder.newFolder(), "scheduled-sends");
+        final SendSchedule schedule = new SendSchedule(file, SendSchedule.DEFAULT_TICK_MILLIS);
+        final long now = System.currentTimeMillis();
+        final List<PushMessage> parts = Collections.singletonList(new PushMessage(null, "message"));
+        final long kept = schedule.add(parts, Collections.singletonList("arn"), now + HOUR);
+        // Scheduled and cancelled over and over, until the log is compacted.
+        for (int i = 0; i < 100; i++) {
+            assertTrue(schedule.cancel(schedule.add(parts, Collections.singletonList("arn"), now + HOUR)));
+        }
+        assertTrue(file.length() < 64 * 80);
+        schedule.add(parts, Collections.singletonList("torn"), now + HOUR);
+        schedule.close();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        final SendSchedule reopened = new SendSchedule(file, SendSchedule.DEFAULT_TICK_MILLIS);
+        assertEquals(1, reopened.size());
+        final List<SendSchedule.ScheduledSend> due = reopened.pollDue(now + 2 * HOUR, 10);
+        assertEquals(1, due.size());
+        assertEquals(kept, due.get(0).getId());
+        // New IDs never repeat the ones in the log.
+        assertTrue(reopened.add(parts, Collections.singletonList("arn"), now) > kept + 100);
+        reopened.close();
+    }
+}
@@ -0,0 +1,71 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 1000;
+
+    @Test
+    public void expiresEveryLevelOnTimeAndInOrder() {
+        final long start = 1500000000000L;
+        final TimerWheel<Long> wheel = new TimerWheel<>(TICK, TimerWheel.DEFAULT_LEVELS, start);
+        // Due on every level, and beyond the top level.
+        final long[] delays = {0, 1, 63 * TICK, 64 * TICK + 1, 3600 * TICK, 5 * 24 * 3600 * TICK,
+                400L * 24 * 3600 * TICK};
+        for (int i = delays.length - 1; i >= 0; i--) {
+            wheel.schedule(start + delays[i], start + delays[i]);
+        }
+        final TimerWheel.Timeout<Long> cancelled = wheel.schedule(-1L, start + 10 * TICK);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertEquals(delays.length, wheel.size());
+
+        final List<Long> due = new ArrayList<>();
+        long now = start;
+        while (wheel.size() > 0) {
+            final long next = wheel.getNextTickMillis();
+            assertTrue(next >= now);
+            now = Math.max(now, next);
+            due.clear();
+            wheel.advance(now, due);
+            for (Long dueAt : due) {
+                // Never early, at most one tick late.
+                assertTrue(dueAt <= now);
+                assertTrue(now - dueAt < TICK);
+            }
+        }
+        assertEquals(-1, wheel.getNextTickMillis());
+    }
+
+    @Test
+    public void matchesSortedOrderWhenAdvancedInSteps() {
+        final long start = 0;
+        final TimerWheel<Long> wheel = new TimerWheel<>(TICK, 3, start);
+        final Random random = new Random(7);
+        final long[] dueTimes = new long[10000];
+        for (int i = 0; i < dueTimes.length; i++) {
+            dueTimes[i] = start + (long) (random.nextDouble() * 2 * 64 * 64 * 64 * TICK);
+            wheel.schedule(dueTimes[i], dueTimes[i]);
+        }
+        Arrays.sort(dueTimes);
+
+        final List<Long> due = new ArrayList<>();
+        for (long now = start; due.size() < dueTimes.length; now += 37 * TICK) {
+            final int before = due.size();
+            wheel.advance(now, due);
+            for (int i = before; i < due.size(); i++) {
+                assertTrue(due.get(i) <= now);
+                assertTrue(dueTimes[i] > now - 37 * TICK - TICK);
+            }
+        }
+        assertEquals(0, wheel.size());
+    }
+}
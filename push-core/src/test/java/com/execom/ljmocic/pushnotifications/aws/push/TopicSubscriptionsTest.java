@@ -0,0 +1,166 @@
+package com.execom.ljmocic.pushnotifications.aws.push;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.execom.ljmocic.pushnotifications.aws.retry.RetryPolicy;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class TopicSubscriptionsTest {
+
+    private static final String APP_ARN = "arn:aws:sns:us-east-1:000000000000:app/GCM/test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeAmazonSNS sns;
+    private File stateFile;
+    private PushStateStore stateStore;
+
+    @Before
+    public void setUp() throws IOException {
+        sns = new FakeAmazonSNS.Builder().withSeed(1).build();
+        stateFile = new File(folder.newFolder(), "push-state");
+        stateStore = new PushStateStore(stateFile, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void subscribesAndUnsubscribes() throws IOException {
+        final String topic = createTopic("news");
+        final String endpoint = sns.addEndpoint(APP_ARN, "token");
+        final TopicSubscriptions subscriptions = subscriptions();
+
+        final String subscriptionArn = subscriptions.subscribe(endpoint, topic);
+        assertTrue(subscriptions.isSubscribed(topic));
+        assertEquals(Collections.singletonMap(topic, subscriptionArn), reloaded().getTopicSubscriptions());
+        assertEquals(1, publish(topic));
+
+        assertTrue(subscriptions.unsubscribe(topic));
+        assertFalse(subscriptions.unsubscribe(topic));
+        assertFalse(subscriptions.isSubscribed(topic));
+        assertTrue(reloaded().getTopicSubscriptions().isEmpty());
+        assertEquals(0, publish(topic));
+    }
+
+    @Test
+    public void subscribesToConfiguredTopicsOnceAndSkipsPlaceholders() {
+        final String defaultTopic = createTopic("default");
+        final String otherTopic = createTopic("other");
+        final String endpoint = sns.addEndpoint(APP_ARN, "token");
+        final TopicSubscriptions subscriptions = subscriptions();
+
+        subscriptions.subscribeAll(endpoint, Arrays.asList(defaultTopic, "-", null, otherTopic));
+        assertEquals(new HashSet<>(Arrays.asList(defaultTopic, otherTopic)), subscriptions.getTopicArns());
+        final long requests = sns.getRequestCount();
+        subscriptions.subscribeAll(endpoint, Arrays.asList(defaultTopic, otherTopic));
+        assertEquals(requests, sns.getRequestCount());
+
+        // A topic that doesn't exist fails, the others are still subscribed to.
+        final String thirdTopic = createTopic("third");
+        try {
+            subscriptions.subscribeAll(endpoint, Arrays.asList(defaultTopic + "-missing", thirdTopic));
+            fail();
+        } catch (final AmazonServiceException ex) {
+            assertEquals("NotFound", ex.getErrorCode());
+        }
+        assertTrue(subscriptions.isSubscribed(thirdTopic));
+    }
+
+    @Test
+    public void movesSubscriptionsToANewEndpoint() {
+        final String topic = createTopic("news");
+        final String oldEndpoint = sns.addEndpoint(APP_ARN, "old-token");
+        subscriptions().subscribe(oldEndpoint, topic);
+
+        // A new instance, as after a restart, reads the subscriptions from the store.
+        final TopicSubscriptions subscriptions = subscriptions();
+        final String newEndpoint = sns.addEndpoint(APP_ARN, "new-token");
+        subscriptions.moveTo(newEndpoint);
+
+        assertTrue(subscriptions.isSubscribed(topic));
+        // Only the new endpoint's subscription is left.
+        assertEquals(1, publish(topic));
+        sns.disableEndpoint(newEndpoint);
+        assertEquals(0, publish(topic));
+    }
+
+    @Test
+    public void failedMoveKeepsTheOldSubscription() {
+        final String topic = createTopic("news");
+        final String endpoint = sns.addEndpoint(APP_ARN, "token");
+        final TopicSubscriptions subscriptions = subscriptions();
+        final String subscriptionArn = subscriptions.subscribe(endpoint, topic);
+
+        try {
+            subscriptions.moveTo(APP_ARN.replace(":app/", ":endpoint/") + "/missing");
+            fail();
+        } catch (final AmazonServiceException ex) {
+            assertEquals("NotFound", ex.getErrorCode());
+        }
+        assertEquals(Collections.singletonMap(topic, subscriptionArn), stateStore.get().getTopicSubscriptions());
+        assertEquals(1, publish(topic));
+    }
+
+    @Test
+    public void rejectsMissingAndPlaceholderTopics() {
+        assertFalse(TopicSubscriptions.isTopicArn(null));
+        assertFalse(TopicSubscriptions.isTopicArn("-"));
+        assertTrue(TopicSubscriptions.isTopicArn(createTopic("news")));
+        try {
+            subscriptions().subscribe(sns.addEndpoint(APP_ARN, "token"), "-");
+            fail();
+        } catch (final IllegalArgumentException expected) {
+        }
+        // Only the topic was created, nothing was sent to SNS.
+        assertEquals(1, sns.getRequestCount());
+    }
+
+    private TopicSubscriptions subscriptions() {
+        return new TopicSubscriptions(new SnsClientProvider() {
+            @Override
+            public AmazonSNS getSns() {
+                return sns;
+            }
+        }, stateStore, RetryPolicy.INTERACTIVE, null);
+    }
+
+    private String createTopic(final String name) {
+        return sns.createTopic(new CreateTopicRequest().withName(name)).getTopicArn();
+    }
+
+    // Returns the number of endpoints a broadcast to the topic reached.
+    private long publish(final String topicArn) {
+        final long before = sns.getDeliveryCount();
+        new SnsPublisher(new SnsClientProvider() {
+            @Override
+            public AmazonSNS getSns() {
+                return sns;
+            }
+        }, null).publish(new PushMessage(null, "message").toTopicPublishRequest(topicArn));
+        return sns.getDeliveryCount() - before;
+    }
+
+    private PushStateStore.State reloaded() throws IOException {
+        final PushStateStore store = new PushStateStore(stateFile, null);
+        assertTrue(store.load());
+        return store.get();
+    }
+}
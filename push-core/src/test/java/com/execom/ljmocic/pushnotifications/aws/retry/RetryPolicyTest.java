@@ -0,0 +1,170 @@
+package com.execom.ljmocic.pushnotifications.aws.retry;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void classifiesErrors() {
+        assertTrue(ErrorClassifier.isRetryable(serviceException("InternalError", 500)));
+        assertTrue(ErrorClassifier.isRetryable(new AmazonClientException("Unable to execute HTTP request")));
+        assertTrue(ErrorClassifier.isThrottling(serviceException("Throttling", 400)));
+        assertTrue(ErrorClassifier.isThrottling(serviceException(null, 429)));
+        assertFalse(ErrorClassifier.isRetryable(serviceException("InvalidParameter", 400)));
+        assertFalse(ErrorClassifier.isRetryable(new IllegalStateException()));
+
+        assertTrue(ErrorClassifier.isOutage(serviceException("InternalError", 500)));
+        assertFalse(ErrorClassifier.isOutage(serviceException("Throttling", 400)));
+        assertFalse(ErrorClassifier.isOutage(new CircuitOpenException("sns", 10)));
+    }
+
+    @Test
+    public void jitteredDelaysStayWithinBounds() {
+        final RetryPolicy policy = new RetryPolicy.Builder().withBaseDelayMillis(100).withMaxDelayMillis(5000).build();
+        long delay = policy.getBaseDelayMillis();
+        long previous;
+        boolean reachedMax = false;
+        for (int i = 0; i < 1000; i++) {
+            previous = delay;
+            delay = policy.nextDelayMillis(delay);
+            assertTrue(delay >= 100 && delay <= 5000);
+            assertTrue(delay <= Math.max(100, previous * 3));
+            reachedMax |= delay > 2500;
+        }
+        assertTrue(reachedMax);
+    }
+
+    @Test
+    public void retriesOnlyRetryableFailures() {
+        final RetryPolicy policy = new RetryPolicy.Builder()
+                .withMaxAttempts(4).withBaseDelayMillis(1).withMaxDelayMillis(5).build();
+        final AtomicInteger attempts = new AtomicInteger();
+        assertEquals("ok", policy.call(null, new RetryPolicy.Call<String>() {
+            @Override
+            public String call() {
+                if (attempts.incrementAndGet() < 3) {
+                    throw serviceException("ServiceUnavailable", 503);
+                }
+                return "ok";
+            }
+        }));
+        assertEquals(3, attempts.get());
+
+        attempts.set(0);
+        try {
+            policy.call(null, new RetryPolicy.Call<String>() {
+                @Override
+                public String call() {
+                    attempts.incrementAndGet();
+                    throw serviceException("NotFound", 404);
+                }
+            });
+            fail();
+        } catch (final AmazonServiceException ex) {
+            assertEquals("NotFound", ex.getErrorCode());
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void circuitOpensDuringOutageAndProbesWithGrowingDelays() {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder("test")
+                .withFailureThreshold(3).withOpenMillis(1000).withMaxOpenMillis(3000).build();
+        final long now = System.nanoTime();
+        // Errors showing the service is up don't count.
+        breaker.onFailure(serviceException("Throttling", 400), now);
+        breaker.onFailure(serviceException("InvalidParameter", 400), now);
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire(now);
+            breaker.onFailure(serviceException("InternalError", 500), now);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertRejected(breaker, now + SECOND / 2);
+
+        // First probe fails: open for twice as long.
+        breaker.acquire(now + SECOND);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertRejected(breaker, now + SECOND);
+        breaker.onFailure(new AmazonClientException("Unable to execute HTTP request"), now + SECOND);
+        assertRejected(breaker, now + 2 * SECOND);
+
+        // Second probe succeeds: closed again.
+        breaker.acquire(now + 3 * SECOND);
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire(now + 3 * SECOND);
+    }
+
+    @Test
+    public void errorsShowingTheServiceIsUpOnlyCloseAHalfOpenCircuit() {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder("unchanged")
+                .withFailureThreshold(2).withOpenMillis(1000).build();
+        final long now = System.nanoTime();
+        breaker.onFailure(serviceException("InternalError", 500), now);
+        // Doesn't reset the count of consecutive outage failures.
+        breaker.onFailure(serviceException("NotFound", 404), now);
+        breaker.onFailure(serviceException("InternalError", 500), now);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        breaker.onFailure(serviceException("InvalidParameter", 400), now);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertRejected(breaker, now + SECOND / 2);
+
+        // The probe reached the service: closed again.
+        breaker.acquire(now + SECOND);
+        breaker.onFailure(serviceException("EndpointDisabled", 400), now + SECOND);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire(now + SECOND);
+
+        // With the failure count reset.
+        breaker.onFailure(serviceException("InternalError", 500), now + SECOND);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void openCircuitStopsRetries() {
+        final CircuitBreaker breaker = new CircuitBreaker.Builder("stops").withFailureThreshold(2).build();
+        final RetryPolicy policy = new RetryPolicy.Builder()
+                .withMaxAttempts(5).withBaseDelayMillis(1).withMaxDelayMillis(5).build();
+        final AtomicInteger attempts = new AtomicInteger();
+        try {
+            policy.call(breaker, new RetryPolicy.Call<Void>() {
+                @Override
+                public Void call() {
+                    attempts.incrementAndGet();
+                    throw serviceException("InternalError", 500);
+                }
+            });
+            fail();
+        } catch (final CircuitOpenException ex) {
+            assertTrue(ex.getRetryAfterMillis() > 0);
+        }
+        assertEquals(2, attempts.get());
+    }
+
+    private static void assertRejected(final CircuitBreaker breaker, final long nowNanos) {
+        try {
+            breaker.acquire(nowNanos);
+            fail();
+        } catch (final CircuitOpenException expected) {
+            // Rejected without calling.
+        }
+    }
+
+    private static AmazonServiceException serviceException(final String errorCode, final int statusCode) {
+        final AmazonServiceException ex = new AmazonServiceException(errorCode);
+        ex.setErrorCode(errorCode);
+        ex.setStatusCode(statusCode);
+        return ex;
+    }
+}